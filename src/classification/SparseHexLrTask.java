@@ -1,5 +1,6 @@
 package classification;
 
+import hexgraph.CompiledHexModel;
 import hexgraph.Configuration;
 import hexgraph.HEXGraph;
 import hexgraph.HEXGraphFactory;
@@ -49,6 +50,8 @@ public class SparseHexLrTask {
 	
 	private final int NUM_ITERATIONS = 50;
 	
+	private static final String MODEL_DIRECTORY = "src/model_files";
+	
 	/**
 	 * Constructs a new {@link HexLrTask} from the given parameters.
 	 * 
@@ -61,15 +64,15 @@ public class SparseHexLrTask {
 	 */
 	public SparseHexLrTask(File graphFile, int numFeatures, NameSpace<String> nameSpace) throws IOException {
 		mNameSpace = nameSpace;
-		HEXGraphFactory factory = new HEXGraphFactory(nameSpace);
-		factory.buildHEXGraph(graphFile.getPath());
-		mHexGraphMethods = new HEXGraphMethods(factory, graphFile.getPath(), nameSpace);
 		
 		long startTime = System.currentTimeMillis();
-		mJunctionTree = mHexGraphMethods.buildJunctionTree();
+		File modelFile = CompiledHexModel.getArtifactFile(graphFile, new File(MODEL_DIRECTORY));
+		CompiledHexModel model = CompiledHexModel.loadOrCompile(graphFile.getPath(), modelFile, nameSpace);
+		mHexGraphMethods = model.getMethods();
+		mJunctionTree = model.getJunctionTree();
 		long endTime = System.currentTimeMillis();
-		System.out.println(String.format("Building junction tree took %d ms", endTime - startTime));
-		mJunctionTreeStateSpace = mHexGraphMethods.getJunctionTreeStateSpaces(mJunctionTree);
+		System.out.println(String.format("Loading the compiled model took %d ms", endTime - startTime));
+		mJunctionTreeStateSpace = model.getJunctionTreeStateSpaces();
 		
 		mNumFeatures = numFeatures;
 		mThreadedHexRunner = new ThreadedHexRunner(mHexGraphMethods, mJunctionTree, mNameSpace, mNameSpace.size());
@@ -185,16 +188,7 @@ public class SparseHexLrTask {
 			if (USING_THREADED) {	
 				updatedScores = mThreadedHexRunner.process(scores);
 			} else {
-				for (int i = 0; i < x_batch.getRows(); i++) {
-					double[] instanceScore = new double[mClassifiers.length];
-					for (int c = 0; c < mClassifiers.length; c++) {
-						instanceScore[c] = scores[c][i];
-					}
-					instanceScore = getHexData(instanceScore);
-					for (int c = 0; c < mClassifiers.length; c++) {
-						updatedScores[c][i] = instanceScore[c];
-					}
-				}
+				updatedScores = getHexData(scores);
 			}
 		}
 		// Run the update step
@@ -348,15 +342,10 @@ public class SparseHexLrTask {
 				scores[c] = mClassifiers[c].train(x_test);
 			}
 			// get the score for every instance
+			double[][] hexScores = getHexData(scores);
 			for (int i = 0; i < x_test.getRows(); i++) {
-				double[] instanceScore = new double[mClassifiers.length];
 				for (int c = 0; c < mClassifiers.length; c++) {
-					instanceScore[c] = scores[c][i];
-				}
-				instanceScore = getHexData(instanceScore);
-				// System.out.println(Arrays.toString(instanceScore));
-				for (int c = 0; c < mClassifiers.length; c++) {
-					if (instanceScore[c] > 0.9) {
+					if (hexScores[c][i] > 0.9) {
 						if (y_test.get(c, i) == 1.0) {
 							results[c][0]++;
 						} else {
@@ -467,27 +456,35 @@ public class SparseHexLrTask {
 	}
 	
 	/**
-	 * Queries the {@link HEXGraph} with a vector of scores from all classifiers being trained in 
-	 * parallel. The {@link HEXGraph} returns a new (presumably improved) score that we normalize 
-	 * and use in our update step
+	 * Queries the {@link HEXGraph} with the scores from all classifiers being trained in 
+	 * parallel, for a whole batch of instances in one call. The {@link HEXGraph} returns new
+	 * (presumably improved) scores that we normalize and use in our update step
 	 * 
-	 * @param scores - the predictions from this round of training
-	 * @return a double array of updated predictions using the HEXGraph
+	 * @param scores - the predictions from this round of training, scores[c][i] for classifier c
+	 * 	and instance i
+	 * @return updated predictions using the HEXGraph, laid out like scores
 	 */
-	private double[] getHexData(double[] scores) {
-		double[] hexScores = new double[scores.length];
-		Map<String, Double> results = mHexGraphMethods.exactMarginalInference(
-				mJunctionTree, mJunctionTreeStateSpace, scores);
-		
-		double max = -1;
-		for (int i = 0; i < scores.length; i++) {
-			hexScores[i] = results.get(mNameSpace.get(i));
-			if (hexScores[i] > max) max = hexScores[i];
+	private double[][] getHexData(double[][] scores) {
+		int numInstances = scores[0].length;
+		double[][] instanceScores = new double[numInstances][scores.length];
+		for (int c = 0; c < scores.length; c++) {
+			for (int i = 0; i < numInstances; i++) {
+				instanceScores[i][c] = scores[c][i];
+			}
 		}
+		double[][] marginals = mHexGraphMethods.exactMarginalInference(
+				mJunctionTree, mJunctionTreeStateSpace, instanceScores);
 		
-		// OLD REGULARIZATION
-		for (int i = 0; i < hexScores.length; i++) {
-			hexScores[i] /= max;
+		double[][] hexScores = new double[scores.length][numInstances];
+		for (int i = 0; i < numInstances; i++) {
+			double max = -1;
+			for (int c = 0; c < scores.length; c++) {
+				if (marginals[i][c] > max) max = marginals[i][c];
+			}
+			// OLD REGULARIZATION
+			for (int c = 0; c < scores.length; c++) {
+				hexScores[c][i] = marginals[i][c] / max;
+			}
 		}
 		
 		return hexScores;	
@@ -14,22 +14,23 @@ import java.util.concurrent.Executors;
 
 import util.NameSpace;
 
-
+/**
+ * Runs marginal inference for a batch of instances on a pool of threads. Every task shares the
+ * same {@link HEXGraphMethods}, {@link JunctionTree} and clique state spaces, since inference
+ * keeps its message state per thread rather than in them.
+ */
 public class ThreadedHexRunner {
 	private ExecutorService mExecutorService;
 	private NameSpace<String> mNameSpace;
 	
-	private HEXGraphMethods[] mHexGraphMethods;
-	private JunctionTree<String>[] mJunctionTrees;
-	private Map<JunctionTreeNode<String>, Set<Configuration>>[] mJunctionTreeStateSpaces;
+	private final HEXGraphMethods mHexGraphMethods;
+	private final JunctionTree<String> mJunctionTree;
+	private final Map<JunctionTreeNode<String>, Set<Configuration>> mJunctionTreeStateSpaces;
 	
 	private double[][] mScores;
 	
-	private int mNextRun = 0;
-	
 	private final int NUM_THREADS = 10;
 	
-	@SuppressWarnings("unchecked")
 	public ThreadedHexRunner(
 			HEXGraphMethods hexGraphMethods,
 			JunctionTree<String> junctionTree,
@@ -39,19 +40,9 @@ public class ThreadedHexRunner {
 		mExecutorService = Executors.newFixedThreadPool(NUM_THREADS);
 		mNameSpace = nameSpace;
 		
-		mHexGraphMethods = new HEXGraphMethods[NUM_THREADS];
-		mJunctionTrees = (JunctionTree<String>[]) new JunctionTree[NUM_THREADS];
-		mJunctionTreeStateSpaces = (Map<JunctionTreeNode<String>, Set<Configuration>>[]) new Map[NUM_THREADS];
-		
-		// Make NUM_THREADS instances of the proper JunctionTree and HexGraphMethods using deep copy
-		// and store them in a field
-		
-		for (int i = 0; i < NUM_THREADS; i++) {
-			mHexGraphMethods[i] = hexGraphMethods.getDeepCopy();
-			mJunctionTrees[i] = junctionTree.getDeepCopy();
-			mJunctionTreeStateSpaces[i] = hexGraphMethods.getJunctionTreeStateSpaces(junctionTree);
-		}
-		
+		mHexGraphMethods = hexGraphMethods;
+		mJunctionTree = junctionTree;
+		mJunctionTreeStateSpaces = hexGraphMethods.getJunctionTreeStateSpaces(junctionTree);
 	}
 
 	/**
@@ -69,18 +60,15 @@ public class ThreadedHexRunner {
 					instanceScore[c] = scores[c][i];
 				}
 				Thread task = new HexDelegate(
-						mHexGraphMethods[mNextRun],
+						mHexGraphMethods,
 						instanceScore,
-						mJunctionTrees[mNextRun],
-						mJunctionTreeStateSpaces[mNextRun],
+						mJunctionTree,
+						mJunctionTreeStateSpaces,
 						mNameSpace,
 						this,
 						i);
 				threads.add(task);
 				mExecutorService.execute(task);
-				mNextRun++;
-				mNextRun %= NUM_THREADS;
-				// System.out.println("Next run: " + mNextRun);
 			} catch (Exception e) {
 				e.printStackTrace();
 				if (mExecutorService != null) {
@@ -0,0 +1,438 @@
+package hexgraph;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import util.NameSpace;
+
+/**
+ * Everything a runner builds from a .hxg file before it can serve inference: the name space, the
+ * sparse and dense graphs, the junction tree and the state space of every clique. A model is
+ * compiled once with {@link #compile(String, NameSpace)}, written to a binary artifact with
+ * {@link #write(File)} and read back with {@link #load(File, NameSpace)}, which skips the
+ * parsing, triangulation, tree building and enumeration. Loading maps the artifact but copies
+ * everything out of the mapping into ordinary graphs, cliques and configurations, so it still
+ * takes time and memory in proportion to the model; only the work to derive them is saved.
+ *
+ * The artifact holds the CRC32 of the .hxg file it was compiled from, so
+ * {@link #loadOrCompile(String, File, NameSpace)} can tell a stale artifact from a current one and
+ * recompile it.
+ *
+ * Inference never writes to a model's graphs or tree, so one model, its junction tree and the
+ * methods from {@link #getMethods()} can serve any number of threads at once.
+ *
+ * Layout, big endian, with class sets and configurations packed 64 classes per long word:
+ * <pre>
+ * int magic, int version, long source checksum, long dense graph fingerprint
+ * int classes, then per class: int length, UTF-8 name
+ * sparse graph, then dense graph: node words, then per node: child words, exclusion words
+ * int cliques, then per clique: member words
+ * int edges, then per edge: int first clique, int second clique
+ * per clique: int states, then per state: value words
+ * </pre>
+ */
+public class CompiledHexModel {
+	public static final int MAGIC = 0x48584731; // "HXG1"
+	public static final int VERSION = 1;
+	public static final String EXTENSION = ".hxm";
+
+	// CRC32 checksums are never negative
+	private static final long NO_CHECKSUM = -1L;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final long mSourceChecksum;
+	private final NameSpace<String> mNameSpace;
+	private final HEXGraph<String> mSparseGraph;
+	private final HEXGraph<String> mDenseGraph;
+	private final JunctionTree<String> mJunctionTree;
+	private final List<JunctionTreeNode<String>> mCliques;
+	private final Configuration[][] mStateTables;
+	private final Map<JunctionTreeNode<String>, Set<Configuration>> mStateSpaces;
+
+	private CompiledHexModel(long sourceChecksum, NameSpace<String> nameSpace,
+			HEXGraph<String> sparseGraph, HEXGraph<String> denseGraph,
+			JunctionTree<String> junctionTree, Configuration[][] stateTables) {
+		mSourceChecksum = sourceChecksum;
+		mNameSpace = nameSpace;
+		mSparseGraph = sparseGraph;
+		mDenseGraph = denseGraph;
+		mJunctionTree = junctionTree;
+		mCliques = new ArrayList<JunctionTreeNode<String>>(junctionTree.getNodeSet());
+		mStateTables = stateTables;
+		mStateSpaces = new HashMap<JunctionTreeNode<String>, Set<Configuration>>();
+		for (int c = 0; c < mCliques.size(); c++) {
+			mStateSpaces.put(mCliques.get(c), Collections.unmodifiableSet(
+					new LinkedHashSet<Configuration>(Arrays.asList(stateTables[c]))));
+		}
+		junctionTree.pinStateSpaces(denseGraph.getFingerprint(), mStateSpaces);
+	}
+
+	/**
+	 * Parses graphFile and builds its graphs, junction tree and clique state spaces
+	 *
+	 * @throws IOException if graphFile can not be read
+	 */
+	public static CompiledHexModel compile(String graphFile, NameSpace<String> nameSpace)
+			throws IOException {
+		long checksum = checksum(new File(graphFile));
+		HEXGraphFactory factory = new HEXGraphFactory(nameSpace);
+		factory.buildHEXGraph(graphFile);
+		if (factory.getDenseGraph(graphFile) == null) {
+			throw new IOException("Could not build a graph from " + graphFile);
+		}
+		HEXGraphMethods methods = new HEXGraphMethods(factory, graphFile, nameSpace);
+		JunctionTree<String> tree = methods.buildJunctionTree();
+
+		HEXGraph<String> denseGraph = factory.getDenseGraph(graphFile);
+		List<JunctionTreeNode<String>> cliques =
+				new ArrayList<JunctionTreeNode<String>>(tree.getNodeSet());
+		Configuration[][] stateTables = new Configuration[cliques.size()][];
+		for (int c = 0; c < cliques.size(); c++) {
+			stateTables[c] = new StateSpaceEnumerator(denseGraph, cliques.get(c).getMembers()).toArray();
+		}
+		CompiledHexModel model = new CompiledHexModel(checksum, nameSpace,
+				factory.getSparseGraph(graphFile), denseGraph, tree, stateTables);
+		model.preloadStateSpaces();
+		return model;
+	}
+
+	/**
+	 * Loads the artifact for graphFile if it is current, otherwise compiles graphFile and writes
+	 * a fresh artifact. An artifact is current if it has this version, was compiled from a file
+	 * with the same checksum as graphFile and has the same class names as nameSpace.
+	 *
+	 * @throws IOException if graphFile can not be read or the artifact can not be written
+	 */
+	public static CompiledHexModel loadOrCompile(String graphFile, File artifact,
+			NameSpace<String> nameSpace) throws IOException {
+		if (artifact.isFile()) {
+			try {
+				return load(artifact, nameSpace, checksum(new File(graphFile)));
+			} catch (IOException e) {
+				System.err.println(String.format("Could not load %s (%s), recompiling",
+						artifact, e.getMessage()));
+			}
+		}
+		CompiledHexModel model = compile(graphFile, nameSpace);
+		model.write(artifact);
+		return model;
+	}
+
+	/**
+	 * Returns where the artifact for graphFile goes in modelDirectory: the same base name with
+	 * the {@link #EXTENSION} extension
+	 */
+	public static File getArtifactFile(File graphFile, File modelDirectory) {
+		String name = graphFile.getName();
+		int dot = name.lastIndexOf('.');
+		if (dot > 0) {
+			name = name.substring(0, dot);
+		}
+		return new File(modelDirectory, name + EXTENSION);
+	}
+
+	/**
+	 * Memory maps artifact and rebuilds the model from it, copying every graph row, clique and
+	 * state out of the mapping, without checking it against its source file.
+	 *
+	 * @param nameSpace - the name space to build the graphs over, which must have the same class
+	 * 	names as the artifact. If null, a new one is made from the artifact's names.
+	 * @throws IOException if artifact can not be read, is not a model artifact, has another
+	 * 	version or does not match nameSpace
+	 */
+	public static CompiledHexModel load(File artifact, NameSpace<String> nameSpace)
+			throws IOException {
+		return load(artifact, nameSpace, NO_CHECKSUM);
+	}
+
+	/**
+	 * Loads artifact, failing as soon as its header shows it was not compiled from a file with
+	 * the given checksum, or not checking if it is {@link #NO_CHECKSUM}
+	 */
+	private static CompiledHexModel load(File artifact, NameSpace<String> nameSpace,
+			long sourceChecksum) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(artifact, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			return read(buffer, nameSpace, sourceChecksum);
+		} catch (BufferUnderflowException | IndexOutOfBoundsException | NegativeArraySizeException e) {
+			throw new IOException(artifact + " is truncated or corrupt");
+		} finally {
+			file.close();
+		}
+	}
+
+	private static CompiledHexModel read(ByteBuffer buffer, NameSpace<String> nameSpace,
+			long sourceChecksum) throws IOException {
+		if (buffer.getInt() != MAGIC) {
+			throw new IOException("Not a compiled HEX model");
+		}
+		int version = buffer.getInt();
+		if (version != VERSION) {
+			throw new IOException(String.format("Model version %d, expected %d", version, VERSION));
+		}
+		long checksum = buffer.getLong();
+		if (sourceChecksum != NO_CHECKSUM && checksum != sourceChecksum) {
+			throw new IOException("Model is stale");
+		}
+		long fingerprint = buffer.getLong();
+
+		String[] names = new String[buffer.getInt()];
+		for (int i = 0; i < names.length; i++) {
+			byte[] bytes = new byte[buffer.getInt()];
+			buffer.get(bytes);
+			names[i] = new String(bytes, UTF8);
+		}
+		if (nameSpace == null) {
+			nameSpace = new NameSpace<String>(names);
+		} else if (!Arrays.equals(names, nameSpace.getNames())) {
+			throw new IOException("Model was compiled over a different name space");
+		}
+		int words = getWordCount(names.length);
+
+		HEXGraph<String> sparseGraph = readGraph(buffer, nameSpace, words);
+		HEXGraph<String> denseGraph = readGraph(buffer, nameSpace, words);
+		if (denseGraph.getFingerprint() != fingerprint) {
+			throw new IOException("Dense graph does not match its fingerprint");
+		}
+
+		JunctionTree<String> tree = new JunctionTree<String>(nameSpace, denseGraph.size());
+		List<JunctionTreeNode<String>> cliques = new ArrayList<JunctionTreeNode<String>>();
+		int numCliques = buffer.getInt();
+		for (int c = 0; c < numCliques; c++) {
+			cliques.add(tree.addNode(readBits(buffer, words)));
+		}
+		int numEdges = buffer.getInt();
+		for (int e = 0; e < numEdges; e++) {
+			tree.addEdge(cliques.get(buffer.getInt()), cliques.get(buffer.getInt()));
+		}
+
+		Configuration[][] stateTables = new Configuration[numCliques][];
+		for (int c = 0; c < numCliques; c++) {
+			long[] members = Arrays.copyOf(cliques.get(c).getMembers().toLongArray(), words);
+			stateTables[c] = new Configuration[buffer.getInt()];
+			for (int k = 0; k < stateTables[c].length; k++) {
+				long[] values = new long[words];
+				for (int w = 0; w < words; w++) {
+					values[w] = buffer.getLong();
+				}
+				stateTables[c][k] = new Configuration(names.length, members.clone(), values);
+			}
+		}
+
+		CompiledHexModel model = new CompiledHexModel(checksum, nameSpace, sparseGraph, denseGraph,
+				tree, stateTables);
+		model.preloadStateSpaces();
+		return model;
+	}
+
+	private static HEXGraph<String> readGraph(ByteBuffer buffer, NameSpace<String> nameSpace,
+			int words) {
+		HEXGraph<String> graph = new HEXGraph<String>(nameSpace);
+		BitSet nodes = readBits(buffer, words);
+		for (int i = nodes.nextSetBit(0); i >= 0; i = nodes.nextSetBit(i + 1)) {
+			graph.addNode(i);
+		}
+		for (int i = nodes.nextSetBit(0); i >= 0; i = nodes.nextSetBit(i + 1)) {
+			BitSet children = readBits(buffer, words);
+			for (int c = children.nextSetBit(0); c >= 0; c = children.nextSetBit(c + 1)) {
+				graph.addHierarchy(i, c);
+			}
+			BitSet excluded = readBits(buffer, words);
+			for (int x = excluded.nextSetBit(0); x >= 0; x = excluded.nextSetBit(x + 1)) {
+				graph.addExclusion(i, x);
+			}
+		}
+		return graph;
+	}
+
+	private static BitSet readBits(ByteBuffer buffer, int words) {
+		long[] packed = new long[words];
+		for (int w = 0; w < words; w++) {
+			packed[w] = buffer.getLong();
+		}
+		return BitSet.valueOf(packed);
+	}
+
+	/**
+	 * Writes the model to artifact. The artifact is written next to its final name and renamed
+	 * over it, so a reader never maps a half written file.
+	 *
+	 * @throws IOException if the artifact can not be written
+	 */
+	public void write(File artifact) throws IOException {
+		File directory = artifact.getAbsoluteFile().getParentFile();
+		if (directory != null && !directory.exists()) {
+			directory.mkdirs();
+		}
+		File temp = new File(artifact.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(temp)));
+		try {
+			write(out);
+		} finally {
+			out.close();
+		}
+		if (!temp.renameTo(artifact)) {
+			artifact.delete();
+			if (!temp.renameTo(artifact)) {
+				throw new IOException("Could not move " + temp + " to " + artifact);
+			}
+		}
+	}
+
+	private void write(DataOutputStream out) throws IOException {
+		int numClasses = mNameSpace.size();
+		int words = getWordCount(numClasses);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeLong(mSourceChecksum);
+		out.writeLong(mDenseGraph.getFingerprint());
+
+		out.writeInt(numClasses);
+		for (int i = 0; i < numClasses; i++) {
+			byte[] bytes = mNameSpace.get(i).getBytes(UTF8);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+
+		writeGraph(out, mSparseGraph, words);
+		writeGraph(out, mDenseGraph, words);
+
+		Map<JunctionTreeNode<String>, Integer> position = new HashMap<JunctionTreeNode<String>, Integer>();
+		out.writeInt(mCliques.size());
+		for (JunctionTreeNode<String> clique : mCliques) {
+			position.put(clique, position.size());
+			writeBits(out, clique.getMembers(), words);
+		}
+		List<int[]> edges = new ArrayList<int[]>();
+		for (int c = 0; c < mCliques.size(); c++) {
+			for (JunctionTreeEdge<String> edge : mCliques.get(c).getEdges()) {
+				int other = position.get(edge.getOther(mCliques.get(c)));
+				if (other > c) {
+					edges.add(new int[] { c, other });
+				}
+			}
+		}
+		out.writeInt(edges.size());
+		for (int[] edge : edges) {
+			out.writeInt(edge[0]);
+			out.writeInt(edge[1]);
+		}
+
+		for (Configuration[] states : mStateTables) {
+			out.writeInt(states.length);
+			for (Configuration state : states) {
+				for (int w = 0; w < words; w++) {
+					out.writeLong(state.getValueWord(w));
+				}
+			}
+		}
+	}
+
+	private static void writeGraph(DataOutputStream out, HEXGraph<String> graph, int words)
+			throws IOException {
+		BitSet nodes = graph.getNodeIndices();
+		writeBits(out, nodes, words);
+		for (int i = nodes.nextSetBit(0); i >= 0; i = nodes.nextSetBit(i + 1)) {
+			writeBits(out, graph.getChildIndices(i), words);
+			writeBits(out, graph.getExcludedIndices(i), words);
+		}
+	}
+
+	private static void writeBits(DataOutputStream out, BitSet bits, int words) throws IOException {
+		long[] packed = bits.toLongArray();
+		for (int w = 0; w < words; w++) {
+			out.writeLong(w < packed.length ? packed[w] : 0L);
+		}
+	}
+
+	private static int getWordCount(int numClasses) {
+		return (numClasses + Long.SIZE - 1) / Long.SIZE;
+	}
+
+	/**
+	 * Seeds the shared state space cache with the stored tables, so the junction tree's state
+	 * spaces are never listed again
+	 */
+	private void preloadStateSpaces() {
+		long fingerprint = mDenseGraph.getFingerprint();
+		for (JunctionTreeNode<String> clique : mCliques) {
+			StateSpaceCache.getShared().preload(mDenseGraph, fingerprint, clique.getMembers(),
+					mStateSpaces.get(clique));
+		}
+	}
+
+	/**
+	 * Returns the CRC32 of the contents of file
+	 */
+	public static long checksum(File file) throws IOException {
+		CRC32 crc = new CRC32();
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				crc.update(buffer, 0, read);
+			}
+		} finally {
+			in.close();
+		}
+		return crc.getValue();
+	}
+
+	/**
+	 * Returns whether this model was compiled from the current contents of graphFile
+	 */
+	public boolean isCurrent(File graphFile) throws IOException {
+		return graphFile.isFile() && checksum(graphFile) == mSourceChecksum;
+	}
+
+	public long getSourceChecksum() {
+		return mSourceChecksum;
+	}
+
+	public NameSpace<String> getNameSpace() {
+		return mNameSpace;
+	}
+
+	/**
+	 * Returns a new {@link HEXGraphMethods} over the model's graphs
+	 */
+	public HEXGraphMethods getMethods() {
+		return new HEXGraphMethods(mDenseGraph, mSparseGraph, mNameSpace);
+	}
+
+	public JunctionTree<String> getJunctionTree() {
+		return mJunctionTree;
+	}
+
+	/**
+	 * Returns the stored state space of every clique of the junction tree, as unmodifiable sets
+	 */
+	public Map<JunctionTreeNode<String>, Set<Configuration>> getJunctionTreeStateSpaces() {
+		return new HashMap<JunctionTreeNode<String>, Set<Configuration>>(mStateSpaces);
+	}
+}
@@ -8,191 +8,249 @@ import util.TriState;
 
 /**
  * The Configuration class represents a single configuration within a probabilistic distribution.
- * 
+ *
  * This specific implementation relies on a global name-space to map between string class name and
  * an integer index that we will use to specify whether that class is part of the distribution,
- * and if so, whether it is set to true or false. 
+ * and if so, whether it is set to true or false.
  *
+ * A configuration is packed into two bit masks of 64 classes per word: one marks the classes that
+ * are set and the other holds their values. A value bit is only ever set for a member class, so
+ * equality, subsumption and trimming are plain word operations that allocate nothing. The
+ * {@link TriState} methods read and write the same masks.
  */
 public class Configuration {
 	public static final int CONFIG_FALSE = 0;
 	public static final int CONFIG_TRUE = 1;
 	public final int CONFIG_UNSET = 2;
-	
-	private TriState[] mConfig;
-	private BitSet mMemberList;
-	private BitSet mBitwiseConfig;
+
+	private final int mSize;
+	private final long[] mMembers;
+	private final long[] mValues;
 
 	public Configuration() {
-		mConfig = new TriState[10];
-		mMemberList = new BitSet();
-		mBitwiseConfig = new BitSet();
+		this(10);
 	}
-	
+
 	public Configuration(int numClasses) {
-		mConfig = new TriState[numClasses];
-		for (int i = 0; i < mConfig.length; i++) {
-			mConfig[i] = TriState.UNSET;
-		}
-		mMemberList = new BitSet(numClasses);
-		mBitwiseConfig = new BitSet(numClasses);
+		mSize = numClasses;
+		mMembers = new long[(numClasses + Long.SIZE - 1) / Long.SIZE];
+		mValues = new long[mMembers.length];
 	}
-	
+
 	public Configuration(int numClasses, int[] set) {
 		this(numClasses);
 		setValues(set, TriState.TRUE);
 	}
-	
+
 	public Configuration(TriState[] config) {
-		mConfig = config;
-		mMemberList = new BitSet(config.length);
-		mBitwiseConfig = new BitSet(config.length);
+		this(config.length);
 		for (int i = 0; i < config.length; i++) {
-			switch (config[i]) {
-			case TRUE:
-				mBitwiseConfig.set(i);
-			case FALSE:
-				mMemberList.set(i);
-				break;
-			default: break;
-			}
+			setValue(i, config[i]);
+		}
+	}
+
+	/**
+	 * Wraps packed masks without copying them, e.g. to read a state back from a compiled model
+	 */
+	Configuration(int size, long[] members, long[] values) {
+		mSize = size;
+		mMembers = members;
+		mValues = values;
+	}
+
+	private void checkIndex(int idx) {
+		if (idx < 0 || idx >= mSize) {
+			throw new ArrayIndexOutOfBoundsException(idx);
 		}
 	}
-	
+
 	public boolean contains(int idx) {
-		return mConfig[idx] != TriState.UNSET;
+		checkIndex(idx);
+		return (mMembers[idx >>> 6] & (1L << idx)) != 0;
 	}
-	
+
 	public boolean isSet(int idx) {
-		return mConfig[idx] == TriState.TRUE;
+		checkIndex(idx);
+		return (mValues[idx >>> 6] & (1L << idx)) != 0;
 	}
-	
+
 	public TriState get(int idx) {
-		return mConfig[idx];
+		if (!contains(idx)) return TriState.UNSET;
+		return isSet(idx) ? TriState.TRUE : TriState.FALSE;
 	}
-	
+
 	public BitSet getMembers() {
-		return (BitSet) mMemberList.clone();
+		return BitSet.valueOf(mMembers);
 	}
-	
+
 	public BitSet getBitwiseConfig() {
-		return (BitSet) mBitwiseConfig.clone();
+		return BitSet.valueOf(mValues);
+	}
+
+	/**
+	 * Returns the value mask word w, without copying it
+	 */
+	long getValueWord(int w) {
+		return mValues[w];
+	}
+
+	/**
+	 * Returns whether the classes set in this configuration are exactly members, without copying
+	 * either side
+	 */
+	public boolean hasMembers(BitSet members) {
+		int count = 0;
+		for (int i = members.nextSetBit(0); i >= 0; i = members.nextSetBit(i + 1)) {
+			if (i >= mSize || (mMembers[i >>> 6] & (1L << i)) == 0) return false;
+			count++;
+		}
+		int size = 0;
+		for (long word : mMembers) {
+			size += Long.bitCount(word);
+		}
+		return size == count;
 	}
-	
+
 	public Configuration getDeepCopy() {
-		return new Configuration(Arrays.copyOf(mConfig, mConfig.length));
+		return new Configuration(mSize, mMembers.clone(), mValues.clone());
 	}
-	
+
 	public int size() {
-		return mConfig.length;
+		return mSize;
 	}
-	
+
 	public void setValues(int[] indices, TriState val) {
 		for (int i : indices) {
 			setValue(i, val);
 		}
 	}
-	
+
 	public void setValues(Set<Integer> indices, TriState val) {
 		for (int i : indices) {
 			setValue(i, val);
 		}
 	}
-	
+
 	public void setValue(int idx, TriState val) {
-		mConfig[idx] = val;
+		checkIndex(idx);
+		int word = idx >>> 6;
+		long bit = 1L << idx;
 		switch (val) {
 		case TRUE:
-			mBitwiseConfig.set(idx);
-			mMemberList.set(idx);
+			mMembers[word] |= bit;
+			mValues[word] |= bit;
 			break;
 		case FALSE:
-			mBitwiseConfig.clear(idx);
-			mMemberList.set(idx);
+			mMembers[word] |= bit;
+			mValues[word] &= ~bit;
 			break;
 		case UNSET:
-			mBitwiseConfig.clear(idx);
-			mMemberList.clear(idx);
+			mMembers[word] &= ~bit;
+			mValues[word] &= ~bit;
 			break;
 		}
 	}
-	
+
 	/**
 	 * Not a good method to call on this implementation
 	 */
 	public boolean containsMapping(Map<Integer, TriState> mapping) {
 		for (Integer idx : mapping.keySet()) {
-			if (mapping.get(idx) != mConfig[idx]) return false;
+			if (mapping.get(idx) != get(idx)) return false;
 		}
 		return true;
 	}
-	
+
 	/**
-	 * Checks to see if the two configurations have the same entries AND that the entries are 
+	 * Checks to see if the two configurations have the same entries AND that the entries are
 	 * set to the same value
 	 */
 	public boolean hasSameEntries(Configuration other) {
-		BitSet checkConfig = other.getBitwiseConfig();
-		checkConfig.xor(mBitwiseConfig);
-		
-		BitSet checkMembers = other.getMembers();
-		checkMembers.xor(mMemberList);
-		
-		return checkConfig.isEmpty() && checkMembers.isEmpty();
-	}
-	
+		int words = Math.max(mMembers.length, other.mMembers.length);
+		for (int w = 0; w < words; w++) {
+			if (word(mMembers, w) != word(other.mMembers, w)
+					|| word(mValues, w) != word(other.mValues, w)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
 	/**
 	 * Returns a new configuration that is trimmed such that the only indices in the configuration
 	 * are in the indices passed in.
 	 */
 	public Configuration trimTo(BitSet indices) {
-		Configuration newConfig = getDeepCopy();
-		for (int i = 0; i < mConfig.length; i++) {
-			if (!indices.get(i)) newConfig.setValue(i, TriState.UNSET);
+		long[] members = new long[mMembers.length];
+		for (int i = indices.nextSetBit(0); i >= 0 && i < mSize; i = indices.nextSetBit(i + 1)) {
+			members[i >>> 6] |= 1L << i;
+		}
+		long[] values = new long[mValues.length];
+		for (int w = 0; w < members.length; w++) {
+			members[w] &= mMembers[w];
+			values[w] = mValues[w] & members[w];
 		}
-		return newConfig;
+		return new Configuration(mSize, members, values);
 	}
-	
+
 	/**
 	 * Returns true if this configuration is a complete subset of configuration other. To be a
 	 * complete subset, for each enabled index in this, other must have that index enabled, and
-	 * with the same value. 
+	 * with the same value.
 	 */
 	public boolean isSubsumed(Configuration other) {
-		BitSet checkConfig = getBitwiseConfig();
-		checkConfig.andNot(other.getBitwiseConfig());
-		
-		BitSet checkMembers = getMembers();
-		checkMembers.andNot(other.getMembers());
-		
-		return checkConfig.isEmpty() && checkMembers.isEmpty();
-	}
-	
+		for (int w = 0; w < mMembers.length; w++) {
+			long members = mMembers[w];
+			if ((members & ~word(other.mMembers, w)) != 0) return false;
+			if (((mValues[w] ^ word(other.mValues, w)) & members) != 0) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns true if this configuration and other give the same value to every index set in
+	 * both, e.g. whether a state is consistent with a set of clamped classes
+	 */
+	public boolean agreesWith(Configuration other) {
+		int words = Math.min(mMembers.length, other.mMembers.length);
+		for (int w = 0; w < words; w++) {
+			if (((mValues[w] ^ other.mValues[w]) & mMembers[w] & other.mMembers[w]) != 0) return false;
+		}
+		return true;
+	}
+
+	private static long word(long[] words, int w) {
+		return w < words.length ? words[w] : 0L;
+	}
+
 	@Override
 	public boolean equals(Object o) {
-		return (o instanceof Configuration && Arrays.equals(((Configuration) o).mConfig, mConfig));
+		if (!(o instanceof Configuration)) return false;
+		Configuration other = (Configuration) o;
+		return mSize == other.mSize && Arrays.equals(mMembers, other.mMembers)
+				&& Arrays.equals(mValues, other.mValues);
 	}
-	
+
 	@Override
 	public int hashCode() {
-		return Arrays.hashCode(mConfig);
+		return 31 * (31 * mSize + Arrays.hashCode(mMembers)) + Arrays.hashCode(mValues);
 	}
-	
+
 	public String toString() {
-		String s = String.format("Configuration (%d): ", size());
-		for (int i = 0; i < mConfig.length; i++) {
-			switch (mConfig[i]) {
+		StringBuilder s = new StringBuilder(String.format("Configuration (%d): ", size()));
+		for (int i = 0; i < mSize; i++) {
+			switch (get(i)) {
 			case TRUE:
-				s += CONFIG_TRUE;
+				s.append(CONFIG_TRUE);
 				break;
 			case FALSE:
-				s += CONFIG_FALSE;
+				s.append(CONFIG_FALSE);
 				break;
 			case UNSET:
-				s += CONFIG_UNSET;
+				s.append(CONFIG_UNSET);
 				break;
 			}
 		}
-		return s;
+		return s.toString();
 	}
 }
@@ -0,0 +1,24 @@
+package hexgraph;
+
+/**
+ * Greedy rules for picking the next node to eliminate while triangulating a {@link HEXGraph}.
+ * The elimination order decides the cliques of the {@link JunctionTree}, and with them the size
+ * of every clique state space and factor.
+ */
+public enum EliminationHeuristic {
+	/**
+	 * Eliminate the node whose elimination adds the fewest fill edges
+	 */
+	MIN_FILL,
+
+	/**
+	 * Eliminate the node with the fewest remaining neighbors
+	 */
+	MIN_DEGREE,
+
+	/**
+	 * Eliminate the node whose clique (the node plus its remaining neighbors) has the fewest
+	 * legal HEX configurations. This needs the densified graph to count configurations.
+	 */
+	MIN_STATES
+}
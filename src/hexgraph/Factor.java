@@ -1,166 +1,229 @@
 package hexgraph;
+import java.util.Arrays;
 import java.util.BitSet;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.Set;
-
-import util.TriState;
 
 
+/**
+ * A table of log scores over the enumerated states of a set of classes. State k of the factor
+ * is mStates[k] and its score is mValues[k]. Factors over the same variables built from the same
+ * state array line up entry for entry.
+ *
+ * Moving between a clique and one of its separators goes through a projection map: an int[]
+ * giving, for each clique state, the index of the separator state it agrees with. Summing out,
+ * multiplying in and dividing are then single passes over the arrays, done by {@link LogSpace}.
+ */
 public class Factor {
-	private Map<Configuration, Double> mDistribution;
-	private BitSet mMemberClasses;
-	
-	private final double DEFAULT_SCORE = 1.0;
-	
-	// scores must be the length of the total number of classes
-	public Factor(Set<Configuration> configSet, BitSet memberClasses, double[] scores) {
-		this();
-		mMemberClasses = memberClasses;
-		for (Configuration config : configSet) {
-			if (!config.getMembers().equals(mMemberClasses)) {
-				throw new IllegalStateException("Configuration not over the proper variables");
-			}
-			
-			double score = 1.0;
-			for (int i = 0; i < scores.length; i++) {
-				score += (config.get(i) == TriState.TRUE ? 1 : 0) * scores[i];
+	private static final Configuration[] NO_STATES = new Configuration[0];
+
+	private final Configuration[] mStates;
+	private final double[] mValues;
+	private final BitSet mMemberClasses;
+	// position of each state, built the first time a state is looked up
+	private Map<Configuration, Integer> mIndex;
+
+	// log of the potential of a state with no scored class set to true
+	private static final double DEFAULT_SCORE = 0.0;
+
+	/**
+	 * Builds the log potential of a clique: each state scores the sum of the scores of the
+	 * scored classes it sets to true. Every class should be scored by exactly one clique of a
+	 * tree, or its score is counted more than once.
+	 *
+	 * @param states - the states of the clique
+	 * @param memberClasses - the classes of the clique
+	 * @param scoredIndices - the member classes whose scores this clique carries
+	 * @param scores - the scores of all classes, indexed by name space index
+	 */
+	public Factor(Configuration[] states, BitSet memberClasses, int[] scoredIndices, double[] scores) {
+		this(states, memberClasses, new double[states.length]);
+		for (int k = 0; k < states.length; k++) {
+			double score = DEFAULT_SCORE;
+			for (int i : scoredIndices) {
+				if (states[k].isSet(i)) score += scores[i];
 			}
-			mDistribution.put(config, score);
+			mValues[k] = score;
 		}
 	}
-	
-	public Factor(Set<Configuration> configSet, BitSet memberClasses) {
-		this();
-		mMemberClasses = memberClasses;
-		for (Configuration config : configSet) {
-			if (!config.getMembers().equals(mMemberClasses)) {
-				throw new IllegalStateException("Configuration not over the proper variables");
-			}
-			mDistribution.put(config, DEFAULT_SCORE);
+
+	/**
+	 * Rules out every state that disagrees with evidence on a class they both set, by giving it
+	 * a log score of negative infinity
+	 */
+	void clampTo(Configuration evidence) {
+		for (int k = 0; k < mStates.length; k++) {
+			if (!mStates[k].agreesWith(evidence)) mValues[k] = Double.NEGATIVE_INFINITY;
 		}
 	}
-	
+
+	/**
+	 * Builds a factor that gives every state the default score
+	 */
+	public Factor(Configuration[] states, BitSet memberClasses) {
+		this(states, memberClasses, new double[states.length]);
+		Arrays.fill(mValues, DEFAULT_SCORE);
+	}
+
 	public Factor() {
-		mDistribution = new HashMap<Configuration, Double>();
-		mMemberClasses = new BitSet();
+		this(NO_STATES, new BitSet(), new double[0]);
 	}
-	
-	private Factor(Map<Configuration, Double> dist, BitSet members) {
-		mDistribution = dist;
+
+	private Factor(Configuration[] states, BitSet members, double[] values) {
+		mStates = states;
 		mMemberClasses = members;
+		mValues = values;
 	}
-	
+
+	/**
+	 * Returns the factor as a map from state to score. This copies the table, so it is meant
+	 * for printing and inspection rather than inference.
+	 */
 	public Map<Configuration, Double> getDist() {
-		return mDistribution;
+		Map<Configuration, Double> dist = new LinkedHashMap<Configuration, Double>();
+		for (int k = 0; k < mStates.length; k++) {
+			dist.put(mStates[k], mValues[k]);
+		}
+		return dist;
 	}
-	
+
+	/**
+	 * Returns a copy of the scores. The states are shared, since factors never change them.
+	 */
 	public Factor getDeepCopy() {
-		Map<Configuration, Double> newDist = new HashMap<Configuration, Double>();
-		BitSet newMembers = (BitSet) mMemberClasses.clone();
-		for (Configuration config : mDistribution.keySet()) {
-			newDist.put(config.getDeepCopy(), mDistribution.get(config));
-		}
-		return new Factor(newDist, newMembers);
-	}
-	
-	public void addConfiguration(Configuration config, double score) {
-		if (mMemberClasses.isEmpty()) {
-			mMemberClasses = config.getMembers();
-		} else if (!mMemberClasses.equals(config.getMembers())) {
-			throw new IllegalArgumentException("New config is over the wrong variables");
-		}
-		mDistribution.put(config, score);
+		return new Factor(mStates, (BitSet) mMemberClasses.clone(), mValues.clone());
 	}
-	
+
 	public BitSet getVariables() {
 		return (BitSet) mMemberClasses.clone();
 	}
-	
+
+	public int size() {
+		return mValues.length;
+	}
+
+	public Configuration getState(int k) {
+		return mStates[k];
+	}
+
+	public double getValue(int k) {
+		return mValues[k];
+	}
+
 	/**
-	 * Runs a sum over the certain subdistribtution
-	 * @param vars
-	 * @param scoreMap
-	 * @return
+	 * Returns the score of the state that config agrees with on the classes of this factor.
+	 * Config may set other classes too. A state this factor does not have scores negative
+	 * infinity, i.e. has probability zero.
 	 */
-	public Factor getSubDistribution(BitSet indices) {
-		// Assert variables are in this factor
-		BitSet copyIndices = (BitSet) indices.clone();
-		copyIndices.andNot(mMemberClasses);
-		if (!copyIndices.isEmpty()) {
-			throw new IllegalArgumentException("Subdistribution over unset variables");
-		}
-		// create a smaller factor over the possibilities for variables
-		Factor newFactor = new Factor();
-		newFactor.mMemberClasses = indices;
-		
-		
-		for (Configuration config : mDistribution.keySet()) {
-			double d = mDistribution.get(config);
-			Configuration trimmed = config.trimTo(indices);
-			if (newFactor.mDistribution.containsKey(trimmed)) {
-				newFactor.mDistribution.put(trimmed, logSumOfExponentials(d, newFactor.mDistribution.get(trimmed)));
-			} else {	
-				newFactor.mDistribution.put(trimmed, d);
-			}
-		}
-		return newFactor;
-	}
-	
-	public void combineDistributionProduct(Factor separator) {
-		for (Configuration config : this.mDistribution.keySet()) {
-			for (Configuration other : separator.mDistribution.keySet()) {
-				// other will be the smaller factor than config
-				if (other.isSubsumed(config)) {
-					mDistribution.put(config, this.mDistribution.get(config) + separator.mDistribution.get(other));
-				}
+	public double getLogValue(Configuration config) {
+		if (mIndex == null) {
+			Map<Configuration, Integer> index = new HashMap<Configuration, Integer>(mStates.length * 2);
+			for (int k = 0; k < mStates.length; k++) {
+				index.put(mStates[k], k);
 			}
+			mIndex = index;
 		}
+		Integer k = mIndex.get(config.trimTo(mMemberClasses));
+		return k == null ? Double.NEGATIVE_INFINITY : mValues[k];
 	}
-	
+
+	/**
+	 * Returns the log of the sum of the exponentiated scores of all states
+	 */
+	public double getLogPartition() {
+		return LogSpace.logSumExp(mValues);
+	}
+
+	/**
+	 * Returns the probability of each state: its exponentiated score over the sum of them all
+	 */
+	public double[] getProbabilities() {
+		double[] probabilities = new double[mValues.length];
+		LogSpace.normalize(mValues, probabilities);
+		return probabilities;
+	}
+
+	/**
+	 * Sums this factor down onto a separator in log space.
+	 *
+	 * @param projection - for each state of this factor, the separator state it agrees with
+	 * @param separatorStates - the states of the separator
+	 * @param separator - the classes of the separator
+	 */
+	public Factor getSubDistribution(int[] projection, Configuration[] separatorStates, BitSet separator) {
+		double[] values = new double[separatorStates.length];
+		LogSpace.sumOut(mValues, projection, values);
+		return new Factor(separatorStates, separator, values);
+	}
+
+	/**
+	 * Maximizes this factor down onto a separator in log space, the max-product counterpart of
+	 * {@link #getSubDistribution(int[], Configuration[], BitSet)}.
+	 *
+	 * @param argmax - filled with, for each separator state, the state of this factor that
+	 * 	achieves its maximum
+	 */
+	public Factor getMaxDistribution(int[] projection, Configuration[] separatorStates, BitSet separator,
+			int[] argmax) {
+		double[] values = new double[separatorStates.length];
+		LogSpace.maxOut(mValues, projection, values, argmax);
+		return new Factor(separatorStates, separator, values);
+	}
+
+	/**
+	 * Returns the index of the state with the highest score, the lowest one on ties
+	 */
+	public int getArgMax() {
+		return LogSpace.argMax(mValues);
+	}
+
+	/**
+	 * Multiplies a separator factor into this one, i.e. adds its log scores
+	 *
+	 * @param projection - for each state of this factor, the separator state it agrees with
+	 */
+	public void combineDistributionProduct(Factor separator, int[] projection) {
+		LogSpace.addProjected(mValues, separator.mValues, projection);
+	}
+
+	/**
+	 * Divides other out of this factor, i.e. subtracts its log scores. Both factors must be over
+	 * the same state array.
+	 */
 	public Factor divide(Factor other) {
-		Factor newFactor = getDeepCopy();
-		for (Configuration config : newFactor.mDistribution.keySet()) {
-			for (Configuration otherConfig : other.mDistribution.keySet()) {
-				if (config.hasSameEntries(otherConfig)) {
-					newFactor.mDistribution.put(config, newFactor.mDistribution.get(config) - other.mDistribution.get(otherConfig));
-				}
-			}
-		}
-		return newFactor;
-	}
-	
-	public double getScoreIfSubsumed(Configuration query) {
-		double sum = 0.0;
-		for (Configuration config : mDistribution.keySet()) {
-			if (query.isSubsumed(config)) {
-				sum += mDistribution.get(config);
-			}
+		if (other.mStates != mStates) {
+			throw new IllegalArgumentException("Factors are over different states");
 		}
-		return sum == 0.0 ? 1 : sum;
-	}
-	
-	 public static double logSumOfExponentials(double a, double b) {
-        double max = a > b ? a : b;
-        double sum = 0.0;
-        sum += Math.exp(a - max);
-        sum += Math.exp(b - max);
-        return max + java.lang.Math.log(sum);
-    }
-
-	
+		double[] values = new double[mValues.length];
+		LogSpace.subtract(mValues, other.mValues, values);
+		return new Factor(mStates, mMemberClasses, values);
+	}
+
+	/**
+	 * Returns log(exp(a) + exp(b)). Summing a whole table this way takes a log per entry, so
+	 * tables go through {@link LogSpace} instead.
+	 */
+	public static double logSumOfExponentials(double a, double b) {
+		if (a == Double.NEGATIVE_INFINITY) return b;
+		if (b == Double.NEGATIVE_INFINITY) return a;
+		double max = a > b ? a : b;
+		return max + Math.log(Math.exp(a - max) + Math.exp(b - max));
+	}
+
+
 	public void print(String name) {
 		System.out.println("PRINTING FACTOR "+ name + ":");
-		for (Configuration config : mDistribution.keySet()) {
-			System.out.println(config.toString() + ": " + mDistribution.get(config));
+		for (int k = 0; k < mStates.length; k++) {
+			System.out.println(mStates[k].toString() + ": " + mValues[k]);
 		}
 		System.out.println("------");
 	}
-	
+
 	public void print(String name, BitSet members) {
 		System.out.println("PRINTING FACTOR "+ name + " with members " + members.toString() + ":");
-		for (Configuration config : mDistribution.keySet()) {
-			System.out.println(config.toString() + ": " + mDistribution.get(config));
+		for (int k = 0; k < mStates.length; k++) {
+			System.out.println(mStates[k].toString() + ": " + mValues[k]);
 		}
 		System.out.println("------");
 	}
@@ -0,0 +1,429 @@
+package hexgraph;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import util.NameSpace;
+
+/**
+ * Approximate marginal inference for graphs whose junction tree cliques are too big to list, by
+ * Gibbs sampling over the legal configurations of the dense graph. Every sweep visits each class
+ * in turn and redraws it given all the others: if both values keep the configuration legal, it
+ * is true with probability sigmoid(score), otherwise it keeps the only legal value. Turning
+ * classes off leaves first reaches the empty configuration from any legal one and turning them
+ * on top down reaches any legal one from it, so the chain visits the whole legal state space and
+ * its samples follow the same distribution exact inference sums over.
+ *
+ * Legality is kept with counts rather than set operations: for every class, how many of its
+ * ancestors, descendants and excluded classes are true. A class can be turned on when all its
+ * ancestors are true and none of the classes it excludes are, and off when none of its
+ * descendants are true.
+ *
+ * Single class moves cannot get from one mode to another when the legal path between them runs
+ * through configurations of much lower score, e.g. from an excluded class that is true to a
+ * branch whose root scores badly but whose children score well. So every chain is a ladder of
+ * tempered replicas, replica r sampling with the scores scaled by 2^-r, and after every sweep
+ * neighboring replicas swap configurations with the Metropolis probability of the swap. The
+ * flattened replicas cross between modes freely and pass what they find down to replica 0, the
+ * only one sampling the actual distribution and the only one counted.
+ *
+ * Marginals are averaged with the conditional probability of each class at every visit rather
+ * than its drawn value, which has the same expectation and less variance. Several chains run side
+ * by side from the empty configuration with their own random streams, and the spread of their
+ * estimates gives the standard error of each marginal. Sampling stops once the largest standard
+ * error is within the tolerance, or when the sweep or time budget runs out, whichever comes
+ * first.
+ *
+ * The settings are the only state, so one sampler can serve any number of threads.
+ */
+public class GibbsSampler<V> {
+	public static final int DEFAULT_CHAINS = 4;
+	public static final int DEFAULT_TEMPERATURES = 4;
+	public static final int DEFAULT_BURN_IN_SWEEPS = 500;
+	public static final int DEFAULT_MAX_SWEEPS = 10000;
+	public static final long DEFAULT_MAX_MILLIS = 1000;
+	public static final double DEFAULT_TOLERANCE = 0.005;
+
+	// sweeps between convergence checks, and the fewest before the spread of a handful of chains
+	// says enough about the error to stop on
+	private static final int CHECK_INTERVAL = 50;
+	private static final int MIN_CONVERGED_SWEEPS = 1000;
+
+	private final NameSpace<V> mNameSpace;
+	// the classes of the graph, in the order every sweep visits them
+	private final int[] mClasses;
+	private final int[][] mAncestors;
+	private final int[][] mDescendants;
+	private final int[][] mExcluded;
+
+	private int mChains = DEFAULT_CHAINS;
+	private int mTemperatures = DEFAULT_TEMPERATURES;
+	private int mBurnInSweeps = DEFAULT_BURN_IN_SWEEPS;
+	private int mMaxSweeps = DEFAULT_MAX_SWEEPS;
+	private long mMaxMillis = DEFAULT_MAX_MILLIS;
+	private double mTolerance = DEFAULT_TOLERANCE;
+	private long mSeed = 0L;
+
+	/**
+	 * @param denseGraph - the densified graph, whose ancestor, descendant and exclusion sets are
+	 * 	closed
+	 */
+	GibbsSampler(HEXGraph<V> denseGraph, NameSpace<V> nameSpace) {
+		mNameSpace = nameSpace;
+		BitSet nodes = denseGraph.getNodeIndices();
+		mClasses = toArray(nodes, nodes);
+		mAncestors = new int[nameSpace.size()][];
+		mDescendants = new int[nameSpace.size()][];
+		mExcluded = new int[nameSpace.size()][];
+		for (int i : mClasses) {
+			mAncestors[i] = toArray(denseGraph.getAncestorIndices(i), nodes);
+			mDescendants[i] = toArray(denseGraph.getDescendantIndices(i), nodes);
+			mExcluded[i] = toArray(denseGraph.getExcludedIndices(i), nodes);
+		}
+	}
+
+	private static int[] toArray(BitSet bits, BitSet nodes) {
+		BitSet kept = (BitSet) bits.clone();
+		kept.and(nodes);
+		int[] indices = new int[kept.cardinality()];
+		int k = 0;
+		for (int i = kept.nextSetBit(0); i >= 0; i = kept.nextSetBit(i + 1)) {
+			indices[k++] = i;
+		}
+		return indices;
+	}
+
+	/**
+	 * Sets the number of chains. With one chain there is no spread to estimate an error from, so
+	 * sampling always runs to the end of its budget.
+	 */
+	public void setChains(int chains) {
+		if (chains < 1) {
+			throw new IllegalArgumentException("Need at least one chain");
+		}
+		mChains = chains;
+	}
+
+	/**
+	 * Sets the number of tempered replicas in each chain, the first one untempered. One gives
+	 * plain Gibbs sampling, which costs less per sweep but can stay stuck in one mode.
+	 */
+	public void setTemperatures(int temperatures) {
+		if (temperatures < 1) {
+			throw new IllegalArgumentException("Need at least one temperature");
+		}
+		mTemperatures = temperatures;
+	}
+
+	/**
+	 * Sets the number of sweeps each chain runs before its samples count
+	 */
+	public void setBurnInSweeps(int sweeps) {
+		if (sweeps < 0) {
+			throw new IllegalArgumentException("Burn in must not be negative");
+		}
+		mBurnInSweeps = sweeps;
+	}
+
+	/**
+	 * Sets the most sweeps each chain runs after burn in
+	 */
+	public void setMaxSweeps(int sweeps) {
+		if (sweeps < 1) {
+			throw new IllegalArgumentException("Need at least one sweep");
+		}
+		mMaxSweeps = sweeps;
+	}
+
+	/**
+	 * Sets the time budget of one call, burn in included. At least one sweep is always counted.
+	 */
+	public void setMaxMillis(long millis) {
+		if (millis < 0) {
+			throw new IllegalArgumentException("Time budget must not be negative");
+		}
+		mMaxMillis = millis;
+	}
+
+	/**
+	 * Sets the largest standard error of any marginal at which sampling stops early, once each
+	 * chain has counted at least a thousand sweeps; 0 never stops early
+	 */
+	public void setTolerance(double tolerance) {
+		if (tolerance < 0) {
+			throw new IllegalArgumentException("Tolerance must not be negative");
+		}
+		mTolerance = tolerance;
+	}
+
+	/**
+	 * Sets the seed chain c draws from, as seed + c, so runs can be repeated
+	 */
+	public void setSeed(long seed) {
+		mSeed = seed;
+	}
+
+	/**
+	 * Estimates the probability that each class is true
+	 *
+	 * @param scores - the score of each class, indexed by name space index
+	 */
+	public Estimate<V> sample(double[] scores) {
+		long start = System.nanoTime();
+		long budget = mMaxMillis > Long.MAX_VALUE / 1000000L ? Long.MAX_VALUE : mMaxMillis * 1000000L;
+		int numClasses = mNameSpace.size();
+		// probabilities[r][i]: the probability class i is true, when free to be, in replica r
+		double[][] probabilities = new double[mTemperatures][numClasses];
+		double[] inverseTemperatures = new double[mTemperatures];
+		for (int r = 0; r < mTemperatures; r++) {
+			inverseTemperatures[r] = Math.scalb(1.0, -r);
+			for (int i : mClasses) {
+				probabilities[r][i] = 1.0 / (1.0 + Math.exp(-inverseTemperatures[r] * scores[i]));
+			}
+		}
+
+		Chain[] chains = new Chain[mChains];
+		for (int c = 0; c < mChains; c++) {
+			chains[c] = new Chain(this, scores, inverseTemperatures, new Random(mSeed + c));
+		}
+		for (int s = 0; s < mBurnInSweeps && System.nanoTime() - start < budget; s++) {
+			for (Chain chain : chains) {
+				chain.sweep(probabilities, null);
+			}
+		}
+
+		// sums[c][i]: the conditional probabilities of class i summed over the sweeps of chain c
+		double[][] sums = new double[mChains][numClasses];
+		double[] errors = new double[numClasses];
+		int sweeps = 0;
+		boolean converged = false;
+		while (sweeps < mMaxSweeps && (sweeps == 0 || System.nanoTime() - start < budget)) {
+			for (int c = 0; c < mChains; c++) {
+				chains[c].sweep(probabilities, sums[c]);
+			}
+			sweeps++;
+			if (sweeps >= MIN_CONVERGED_SWEEPS && sweeps % CHECK_INTERVAL == 0
+					&& getStandardErrors(sums, sweeps, errors) <= mTolerance) {
+				converged = true;
+				break;
+			}
+		}
+		double largest = getStandardErrors(sums, sweeps, errors);
+
+		double[] marginals = new double[numClasses];
+		for (int i : mClasses) {
+			for (int c = 0; c < mChains; c++) {
+				marginals[i] += sums[c][i];
+			}
+			marginals[i] /= (double) sweeps * mChains;
+		}
+		return new Estimate<V>(mNameSpace, marginals, errors, largest, sweeps, converged);
+	}
+
+	/**
+	 * Writes the standard error of every marginal, from the spread of the chains' estimates,
+	 * into errors and returns the largest one, or infinity with a single chain
+	 */
+	private double getStandardErrors(double[][] sums, int sweeps, double[] errors) {
+		if (mChains < 2) {
+			for (int i : mClasses) {
+				errors[i] = Double.POSITIVE_INFINITY;
+			}
+			return mClasses.length == 0 ? 0.0 : Double.POSITIVE_INFINITY;
+		}
+		double largest = 0.0;
+		for (int i : mClasses) {
+			double mean = 0.0;
+			for (int c = 0; c < mChains; c++) {
+				mean += sums[c][i] / sweeps;
+			}
+			mean /= mChains;
+			double variance = 0.0;
+			for (int c = 0; c < mChains; c++) {
+				double d = sums[c][i] / sweeps - mean;
+				variance += d * d;
+			}
+			variance /= mChains - 1;
+			errors[i] = Math.sqrt(variance / mChains);
+			largest = Math.max(largest, errors[i]);
+		}
+		return largest;
+	}
+
+	/**
+	 * A ladder of tempered replicas, the first one untempered, with the random stream they share
+	 */
+	private static final class Chain {
+		private final Replica[] mReplicas;
+		private final double[] mInverseTemperatures;
+		private final Random mRandom;
+
+		Chain(GibbsSampler<?> sampler, double[] scores, double[] inverseTemperatures, Random random) {
+			mReplicas = new Replica[inverseTemperatures.length];
+			for (int r = 0; r < mReplicas.length; r++) {
+				mReplicas[r] = new Replica(sampler, scores);
+			}
+			mInverseTemperatures = inverseTemperatures;
+			mRandom = random;
+		}
+
+		/**
+		 * Sweeps every replica once, adding the conditional probabilities of the untempered one
+		 * into sums unless it is null, then offers every neighboring pair a swap
+		 */
+		void sweep(double[][] probabilities, double[] sums) {
+			for (int r = 0; r < mReplicas.length; r++) {
+				mReplicas[r].sweep(probabilities[r], r == 0 ? sums : null, mRandom);
+			}
+			for (int r = 0; r + 1 < mReplicas.length; r++) {
+				double logRatio = (mInverseTemperatures[r] - mInverseTemperatures[r + 1])
+						* (mReplicas[r + 1].mLogScore - mReplicas[r].mLogScore);
+				if (logRatio >= 0 || mRandom.nextDouble() < Math.exp(logRatio)) {
+					Replica swapped = mReplicas[r];
+					mReplicas[r] = mReplicas[r + 1];
+					mReplicas[r + 1] = swapped;
+				}
+			}
+		}
+	}
+
+	/**
+	 * The configuration one replica is at, with its log score and the counts that say which
+	 * flips keep it legal. It starts at the empty configuration.
+	 */
+	private static final class Replica {
+		private final int[] mClasses;
+		private final int[][] mAncestors;
+		private final int[][] mDescendants;
+		private final int[][] mExcluded;
+		private final double[] mScores;
+		private final boolean[] mOn;
+		private final int[] mOnAncestors;
+		private final int[] mOnDescendants;
+		private final int[] mOnExcluded;
+		private double mLogScore;
+
+		Replica(GibbsSampler<?> sampler, double[] scores) {
+			int numClasses = sampler.mNameSpace.size();
+			mClasses = sampler.mClasses;
+			mAncestors = sampler.mAncestors;
+			mDescendants = sampler.mDescendants;
+			mExcluded = sampler.mExcluded;
+			mScores = scores;
+			mOn = new boolean[numClasses];
+			mOnAncestors = new int[numClasses];
+			mOnDescendants = new int[numClasses];
+			mOnExcluded = new int[numClasses];
+		}
+
+		/**
+		 * Redraws every class once, adding the probability each one is true given the others
+		 * into sums unless it is null
+		 */
+		void sweep(double[] probabilities, double[] sums, Random random) {
+			for (int i : mClasses) {
+				boolean on = mOn[i];
+				boolean canOn = on || (mOnAncestors[i] == mAncestors[i].length && mOnExcluded[i] == 0);
+				boolean canOff = !on || mOnDescendants[i] == 0;
+				double p = canOn && canOff ? probabilities[i] : (on ? 1.0 : 0.0);
+				if (sums != null) sums[i] += p;
+				boolean next = random.nextDouble() < p;
+				if (next != on) set(i, next);
+			}
+		}
+
+		private void set(int i, boolean on) {
+			mOn[i] = on;
+			mLogScore += on ? mScores[i] : -mScores[i];
+			int delta = on ? 1 : -1;
+			for (int d : mDescendants[i]) {
+				mOnAncestors[d] += delta;
+			}
+			for (int a : mAncestors[i]) {
+				mOnDescendants[a] += delta;
+			}
+			for (int x : mExcluded[i]) {
+				mOnExcluded[x] += delta;
+			}
+		}
+	}
+
+	/**
+	 * The marginals a run of the sampler estimated, with how far they can be trusted, or exact
+	 * marginals when {@link HEXGraphMethods#marginalInference(Map)} did not need to sample
+	 */
+	public static final class Estimate<V> {
+		private final NameSpace<V> mNameSpace;
+		private final double[] mMarginals;
+		private final double[] mStandardErrors;
+		private final double mMaxStandardError;
+		private final int mSweeps;
+		private final boolean mConverged;
+
+		Estimate(NameSpace<V> nameSpace, double[] marginals, double[] standardErrors,
+				double maxStandardError, int sweeps, boolean converged) {
+			mNameSpace = nameSpace;
+			mMarginals = marginals;
+			mStandardErrors = standardErrors;
+			mMaxStandardError = maxStandardError;
+			mSweeps = sweeps;
+			mConverged = converged;
+		}
+
+		/**
+		 * Returns exact marginals as an estimate: no standard error, no sweeps, and converged
+		 */
+		static <V> Estimate<V> exact(NameSpace<V> nameSpace, double[] marginals) {
+			return new Estimate<V>(nameSpace, marginals, new double[marginals.length], 0.0, 0, true);
+		}
+
+		/**
+		 * Returns the estimated probability that each class is true
+		 */
+		public Map<V, Double> getMarginals() {
+			Map<V, Double> marginals = new HashMap<V, Double>();
+			for (int i = 0; i < mMarginals.length; i++) {
+				marginals.put(mNameSpace.get(i), mMarginals[i]);
+			}
+			return marginals;
+		}
+
+		public double getMarginal(V label) {
+			return mMarginals[mNameSpace.getIndex(label)];
+		}
+
+		/**
+		 * Returns the standard error of the marginal of label, from the spread of the chains
+		 */
+		public double getStandardError(V label) {
+			return mStandardErrors[mNameSpace.getIndex(label)];
+		}
+
+		public double getMaxStandardError() {
+			return mMaxStandardError;
+		}
+
+		/**
+		 * Returns the number of sweeps each chain counted after burn in
+		 */
+		public int getSweeps() {
+			return mSweeps;
+		}
+
+		/**
+		 * Returns whether sampling stopped because every standard error was within the
+		 * tolerance, rather than because the budget ran out
+		 */
+		public boolean isConverged() {
+			return mConverged;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%d sweeps, largest standard error %.3g, %s", mSweeps,
+					mMaxStandardError, mConverged ? "converged" : "budget exhausted");
+		}
+	}
+}
@@ -1,15 +1,13 @@
 package hexgraph;
 
-import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.BitSet;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.Comparator;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Random;
 import java.util.Set;
 
 import util.NameSpace;
@@ -18,497 +16,1093 @@ import util.NameSpace;
 
 /**
  * @author Daniel Gorrie
- * 
- * This is a generic implementation of a Hierarchy and Exclusion Graph. There are two parts to
- * this implementation, the graph object, and a node object. Edges in this graph are implied
- * (Nodes store other nodes they connect to).
- * 
+ *
+ * This is a generic implementation of a Hierarchy and Exclusion Graph. Nodes are identified by
+ * their index in the graph's {@link NameSpace}, and edges are stored as one {@link BitSet} row
+ * per node for each kind of edge, so relation checks and set operations are bit operations.
+ * The methods that take a label of type V are a thin layer over the index based core.
+ *
  * There are two types of edges in this graph. The first kind is a hierarchy edge, which
- * represents that a node is a subset of another class (for example, husky is a subset of dog). 
+ * represents that a node is a subset of another class (for example, husky is a subset of dog).
  * The second is an exclusion edge, which describes two classes that are exclusive to one another
  * (a mountain cannot also be an airplane)
- * 
+ *
  * This graph has a specific purpose of being used to represent relations between certain
  * classes for natural language entity recognition. We have implemented several functions specific
- * to this end, namely functions to sparsify, densify, enumerate the state space, and extract 
+ * to this end, namely functions to sparsify, densify, enumerate the state space, and extract
  * inferences between nodes in the graph.
- * 
+ *
  * For the purposes of documentation, nodes and classes are the same thing.
  */
 public class HEXGraph<V> {
-	
-	private Map<V, GraphNode<V>> nodes;
-	private NameSpace<V> mNameSpace;
-	
+
+	private final NameSpace<V> mNameSpace;
+
+	/**
+	 * Indices of the nodes that are part of this graph
+	 */
+	private BitSet mNodes;
+
+	/**
+	 * Row i holds the nodes that node i is hierarchically above (by one level)
+	 */
+	private BitSet[] mHierarchy;
+
+	/**
+	 * Transitive closure of mHierarchy. Row i holds every node above (mAncestors) or below
+	 * (mDescendants) node i, and both are kept up to date as hierarchy edges and nodes change.
+	 */
+	private BitSet[] mAncestors;
+	private BitSet[] mDescendants;
+
+	/**
+	 * Row i holds the nodes that node i is excluded from
+	 */
+	private BitSet[] mExcluded;
+
+	/**
+	 * Row i holds the nodes that node i has a triangulation relationship with (no semantic meaning)
+	 */
+	private BitSet[] mTriangulated;
+
+	/**
+	 * Classification score of each node, indexed the same way as the rows
+	 */
+	private double[] mScores;
+
+	/**
+	 * True if this graph is a read-only view that shares its rows with another graph
+	 */
+	private final boolean mView;
+
 	/**
 	 * Default constructor. Constructs an empty HEXGraph
 	 */
 	public HEXGraph(NameSpace<V> nameSpace) {
-		nodes = new HashMap<V, GraphNode<V>>();
 		mNameSpace = nameSpace;
+		int capacity = nameSpace.size();
+		mNodes = new BitSet(capacity);
+		mHierarchy = new BitSet[capacity];
+		mAncestors = new BitSet[capacity];
+		mDescendants = new BitSet[capacity];
+		mExcluded = new BitSet[capacity];
+		mTriangulated = new BitSet[capacity];
+		for (int i = 0; i < capacity; i++) {
+			mHierarchy[i] = new BitSet();
+			mAncestors[i] = new BitSet();
+			mDescendants[i] = new BitSet();
+			mExcluded[i] = new BitSet();
+			mTriangulated[i] = new BitSet();
+		}
+		mScores = new double[capacity];
+		mView = false;
 	}
-	
+
+	/**
+	 * Constructs a read-only view of parent that only contains the nodes in mask. The view shares
+	 * all of parent's rows and masks every query with its own node set, so making one costs a
+	 * single BitSet copy no matter how many edges the graph has.
+	 *
+	 * A view reflects later changes made to parent's edges, but keeps the node set it was made
+	 * with. Relations are those of parent restricted to the view, which matches the induced
+	 * subgraph exactly when parent is densified.
+	 */
+	private HEXGraph(HEXGraph<V> parent, BitSet mask) {
+		mNameSpace = parent.mNameSpace;
+		mNodes = (BitSet) parent.mNodes.clone();
+		mNodes.and(mask);
+		mHierarchy = parent.mHierarchy;
+		mAncestors = parent.mAncestors;
+		mDescendants = parent.mDescendants;
+		mExcluded = parent.mExcluded;
+		mTriangulated = parent.mTriangulated;
+		mScores = parent.mScores;
+		mView = true;
+	}
+
 	/**
 	 * Returns a deep copy of the current graph
 	 * @return a deep copy of the graph
 	 */
 	public HEXGraph<V> getDeepCopy() {
+		return getMaskedCopy(mNodes);
+	}
+
+	/**
+	 * Returns a copy of this graph that only contains the nodes in mask, and only the edges
+	 * between those nodes.
+	 */
+	private HEXGraph<V> getMaskedCopy(BitSet mask) {
 		HEXGraph<V> copy = new HEXGraph<V>(mNameSpace);
-		Map<GraphNode<V>, GraphNode<V>> nodeMap = new HashMap<GraphNode<V>, GraphNode<V>>();
-		// Initialize the new nodes, and keep a mapping from the old nodes to the new nodes
-		for (V label : nodes.keySet()) {
-			nodeMap.put(nodes.get(label), new GraphNode<V>(label));
-		}
-		
-		// for each node, use the mapping between old and new to build up identical relations
-		for (GraphNode<V> oldNode : nodeMap.keySet()) {
-			GraphNode<V> newNode = nodeMap.get(oldNode);
-			// update descendants
-			for (GraphNode<V> descendant : oldNode.hierarchy) {
-				newNode.hierarchy.add(nodeMap.get(descendant));
-			}
-			// update excluded
-			for (GraphNode<V> exclude : oldNode.excluded) {
-				newNode.excluded.add(nodeMap.get(exclude));
-			}
-			// update triangulated
-			for (GraphNode<V> tri : oldNode.triangulated) {
-				newNode.triangulated.add(nodeMap.get(tri));
+		copy.mNodes.or(mNodes);
+		copy.mNodes.and(mask);
+		for (int i = copy.mNodes.nextSetBit(0); i >= 0; i = copy.mNodes.nextSetBit(i + 1)) {
+			copy.mHierarchy[i].or(mHierarchy[i]);
+			copy.mHierarchy[i].and(copy.mNodes);
+			copy.mExcluded[i].or(mExcluded[i]);
+			copy.mExcluded[i].and(copy.mNodes);
+			copy.mTriangulated[i].or(mTriangulated[i]);
+			copy.mTriangulated[i].and(copy.mNodes);
+			copy.mScores[i] = mScores[i];
+		}
+		if (!mView && copy.mNodes.equals(mNodes)) {
+			for (int i = mNodes.nextSetBit(0); i >= 0; i = mNodes.nextSetBit(i + 1)) {
+				copy.mAncestors[i].or(mAncestors[i]);
+				copy.mDescendants[i].or(mDescendants[i]);
 			}
-			
-			newNode.score = oldNode.score;
-			
-			// Add the new node into the graph
-			copy.nodes.put(newNode.getLabel(), newNode);
+		} else {
+			// removed nodes may have carried hierarchy paths, so the closure is rebuilt
+			copy.rebuildClosure(copy.mNodes);
 		}
-		
 		return copy;
 	}
-	
+
 	/**
 	 * Returns a subgraph containing only the specified nodes. If a node has an edge that is not
-	 * part of the node subset, that edge is deleted
+	 * part of the node subset, that edge is hidden.
+	 *
+	 * The subgraph is a read-only view backed by this graph (see {@link #isView()}); use
+	 * {@link #getDeepCopy()} on it to get a graph that can be modified.
+	 *
 	 * @param nodeSubset the nodes in the new subgraph
 	 * @return subgraph with only the specified nodes
 	 */
 	public HEXGraph<V> getSubgraph(Set<V> nodeSubset) {
-		if (nodeSubset.isEmpty()) {
-			return new HEXGraph<V>(mNameSpace);
-		} else {			
-			HEXGraph<V> subgraph = getDeepCopy();
-			for (V node : subgraph.getNodeList()) {
-				if (!nodeSubset.contains(node)) {
-					subgraph.deleteNode(node);
-				}
-			}
-			return subgraph;
-		}
+		return new HEXGraph<V>(this, toIndices(nodeSubset));
 	}
-	
+
 	public HEXGraph<V> getSubgraph(BitSet nodeSubset) {
-		if (nodeSubset.isEmpty()) {
-			return new HEXGraph<V>(mNameSpace);
-		} else {
-			HEXGraph<V> subgraph = getDeepCopy();
-			for (V node : subgraph.getNodeList()) {
-				if (!nodeSubset.get(mNameSpace.getIndex(node))) {
-					subgraph.deleteNode(node);
-				}
-			}
-			return subgraph;
-		}
+		return new HEXGraph<V>(this, nodeSubset);
 	}
-	
+
 	/**
-	 * Returns a subgraph containing EVERYTHING BUT the specified nodes. If a node has an edge
-	 * that is past of the node subset.
+	 * Returns a subgraph containing EVERYTHING BUT the specified nodes. Like
+	 * {@link #getSubgraph(Set)} this is a read-only view backed by this graph.
+	 *
 	 * @param nodeSubset the nodes to not include in the new subgraph
 	 * @return subgraph without the specified nodes
 	 */
 	public HEXGraph<V> getSubgraphMinus(Set<V> nodeSubset) {
-		HEXGraph<V> subgraph = getDeepCopy();
-		if (nodeSubset.isEmpty()) {
-			return subgraph;
-		} else {			
-			for (V node : subgraph.getNodeList()) {
-				if (nodeSubset.contains(node)) {
-					subgraph.deleteNode(node);
-				}
-			}
-			return subgraph;
+		BitSet mask = (BitSet) mNodes.clone();
+		mask.andNot(toIndices(nodeSubset));
+		return new HEXGraph<V>(this, mask);
+	}
+
+	HEXGraph<V> getSubgraphMinus(BitSet nodeSubset) {
+		BitSet mask = (BitSet) mNodes.clone();
+		mask.andNot(nodeSubset);
+		return new HEXGraph<V>(this, mask);
+	}
+
+	/**
+	 * Returns whether this graph is a read-only subgraph view of another graph.
+	 * @return true if this graph is a view, false if it owns its edges.
+	 */
+	public boolean isView() {
+		return mView;
+	}
+
+	/**
+	 * @throws UnsupportedOperationException if this graph is a view
+	 */
+	private void checkWritable() {
+		if (mView) {
+			throw new UnsupportedOperationException("Subgraph views are read-only");
 		}
 	}
-	
+
 	/**
 	 * Adds a new node to the graph.
-	 * 
+	 *
 	 * @param label The label of the node being added.
-	 * @throws IllegalArgumentException if label is null.
+	 * @throws IllegalArgumentException if label is null or not part of the name space.
 	 * @return True if the node was added successfully, false otherwise.
 	 */
 	public boolean addNode(V label) {
-		if(!hasNode(label)){
-			nodes.put(label, new GraphNode<V>(label));
-			return true;
+		checkWritable();
+		int idx = indexOf(label);
+		if (idx < 0) {
+			throw new IllegalArgumentException(
+					String.format("Node %s is not part of the name space", label));
 		}
-		return false;
+		return addNode(idx);
+	}
+
+	boolean addNode(int idx) {
+		checkWritable();
+		if (mNodes.get(idx)) return false;
+		mNodes.set(idx);
+		return true;
 	}
 
 	/**
 	 * Adds a new hierarchy edge from parent to child.
-	 * 
+	 *
 	 * We also add an undirected edge between the two for triangulation (no semantic meanint to
 	 * this edge)
-	 * 
+	 *
 	 * @param parent The label of the class that is the superset of child.
 	 * @param child The label of the class that is the subset of parent.
 	 * @return true if the edge is added successfully, false otherwise.
 	 */
 	public boolean addHierarchy(V parent, V child) {
+		checkWritable();
 		// Check to make sure that both things are actually members of the graph
-		if (!(nodes.keySet().contains(parent) && nodes.keySet().contains(child))) return false;
-		
-		return nodes.get(parent).addHierarchyEdge(nodes.get(child)) &&
-				addTriangulationRelationship(parent, child);
+		if (!(hasNode(parent) && hasNode(child))) return false;
+
+		return addHierarchy(mNameSpace.getIndex(parent), mNameSpace.getIndex(child));
 	}
-	
+
+	boolean addHierarchy(int parent, int child) {
+		checkWritable();
+		boolean added = !mHierarchy[parent].get(child);
+		mHierarchy[parent].set(child);
+		if (added) {
+			// everything at or above parent gains everything at or below child
+			BitSet above = (BitSet) mAncestors[parent].clone();
+			above.set(parent);
+			BitSet below = (BitSet) mDescendants[child].clone();
+			below.set(child);
+			for (int i = above.nextSetBit(0); i >= 0; i = above.nextSetBit(i + 1)) {
+				mDescendants[i].or(below);
+			}
+			for (int i = below.nextSetBit(0); i >= 0; i = below.nextSetBit(i + 1)) {
+				mAncestors[i].or(above);
+			}
+		}
+		return added && addTriangulationRelationship(parent, child);
+	}
+
 	/**
 	 * Adds an exclusion edge between two nodes. Order does not matter as the edge is undirected
-	 * 
+	 *
 	 * We also add an undirected edge for triangulation. (No semantic meaning to this edge)
-	 * 
+	 *
 	 * @param first The first node.
 	 * @param second The second node.
 	 * @return true if the edge is added successfully, false otherwise
 	 */
 	public boolean addExclusion(V first, V second) {
+		checkWritable();
 		// Check to make sure that both things are actually members of the graph
-		if (!(nodes.keySet().contains(first) && nodes.keySet().contains(second))) return false;
-		
-		return nodes.get(first).addExclusionEdge(nodes.get(second)) && 
-				nodes.get(second).addExclusionEdge(nodes.get(first)) &&
-				addTriangulationRelationship(first, second);
+		if (!(hasNode(first) && hasNode(second))) return false;
+
+		return addExclusion(mNameSpace.getIndex(first), mNameSpace.getIndex(second));
+	}
+
+	boolean addExclusion(int first, int second) {
+		checkWritable();
+		boolean added = !mExcluded[first].get(second);
+		mExcluded[first].set(second);
+		mExcluded[second].set(first);
+		return added && addTriangulationRelationship(first, second);
 	}
-	
+
 	/**
 	 * Adds a triangulation edge between nodes first and second.
-	 * 
+	 *
 	 * @param first The first node.
 	 * @param second The second node.
 	 * @return true if the edge is added successfully, false otherwise.
 	 */
 	public boolean addTriangulationRelationship(V first, V second) {
-		if (!(nodes.keySet().contains(first) && nodes.keySet().contains(second))) return false;
-		
-		return nodes.get(first).addTriangulationEdge(nodes.get(second)) &&
-				nodes.get(second).addTriangulationEdge(nodes.get(first));
+		checkWritable();
+		if (!(hasNode(first) && hasNode(second))) return false;
+
+		return addTriangulationRelationship(mNameSpace.getIndex(first), mNameSpace.getIndex(second));
+	}
+
+	boolean addTriangulationRelationship(int first, int second) {
+		checkWritable();
+		boolean added = !mTriangulated[first].get(second);
+		mTriangulated[first].set(second);
+		mTriangulated[second].set(first);
+		return added;
 	}
 
 	/**
 	 * Removes the node with the given label, as well as all edges coming from and going to it.
-	 * 
+	 *
 	 * @param label The label of the node being removed
-	 * @return True if the node and corresponding edges was removed successfully, false otherwise.
 	 */
 	public void deleteNode(V label) {
-		GraphNode<V> toRemove = nodes.get(label);
-		nodes.remove(label);
-		for (V v : nodes.keySet()) {
-			nodes.get(v).removeEdges(toRemove);
+		checkWritable();
+		if (hasNode(label)) {
+			deleteNode(mNameSpace.getIndex(label));
 		}
 	}
 
+	void deleteNode(int idx) {
+		checkWritable();
+		BitSet above = mAncestors[idx];
+		BitSet below = mDescendants[idx];
+		mNodes.clear(idx);
+		mHierarchy[idx].clear();
+		mAncestors[idx] = new BitSet();
+		mDescendants[idx] = new BitSet();
+		mExcluded[idx].clear();
+		mTriangulated[idx].clear();
+		mScores[idx] = 0.0;
+		for (int i = mNodes.nextSetBit(0); i >= 0; i = mNodes.nextSetBit(i + 1)) {
+			mHierarchy[i].clear(idx);
+			mExcluded[i].clear(idx);
+			mTriangulated[i].clear(idx);
+			mAncestors[i].clear(idx);
+			mDescendants[i].clear(idx);
+		}
+		updateClosure(above, below);
+	}
+
 	/**
 	 * Removes a hierarchy edge going from node parent to node child.
-	 * 
+	 *
 	 * @param parent The parent node.
 	 * @param child The child node.
 	 * @return true if the edge was removed successfully, false otherwise.
 	 */
 	public boolean deleteHierarchyEdge(V parent, V child) {
-		return nodes.get(parent).removeEdges(nodes.get(child));
+		checkWritable();
+		if (!(hasNode(parent) && hasNode(child))) return false;
+
+		return deleteHierarchyEdge(mNameSpace.getIndex(parent), mNameSpace.getIndex(child));
+	}
+
+	boolean deleteHierarchyEdge(int parent, int child) {
+		checkWritable();
+		boolean removed = mHierarchy[parent].get(child);
+		mHierarchy[parent].clear(child);
+		clearTriangulationIfUnrelated(parent, child);
+		if (removed) {
+			BitSet above = (BitSet) mAncestors[parent].clone();
+			above.set(parent);
+			BitSet below = (BitSet) mDescendants[child].clone();
+			below.set(child);
+			updateClosure(above, below);
+		}
+		return removed;
 	}
-	
+
 	/**
 	 * Removes an exclusion edge between node first and node second.
-	 * 
+	 *
 	 * @param first The first node.
 	 * @param second The second node.
 	 * @return true if the edge was removed successfully, false otherwise.
 	 */
 	public boolean deleteExclusion(V first, V second) {
-		return nodes.get(first).removeEdges(nodes.get(second));
+		checkWritable();
+		if (!(hasNode(first) && hasNode(second))) return false;
+
+		return deleteExclusion(mNameSpace.getIndex(first), mNameSpace.getIndex(second));
 	}
-	
+
+	boolean deleteExclusion(int first, int second) {
+		checkWritable();
+		boolean removed = mExcluded[first].get(second);
+		mExcluded[first].clear(second);
+		mExcluded[second].clear(first);
+		clearTriangulationIfUnrelated(first, second);
+		return removed;
+	}
+
+	/**
+	 * Recomputes the closure rows that a removed hierarchy path may have touched. Only the
+	 * descendant rows of nodes in above and the ancestor rows of nodes in below can shrink.
+	 *
+	 * @param above nodes whose descendants may have changed
+	 * @param below nodes whose ancestors may have changed
+	 */
+	private void updateClosure(BitSet above, BitSet below) {
+		above.and(mNodes);
+		below.and(mNodes);
+		// A node always has strictly more (old) descendants than any of its descendants, so
+		// visiting by increasing old cardinality rebuilds children before their parents
+		List<Integer> order = new ArrayList<Integer>();
+		for (int i = above.nextSetBit(0); i >= 0; i = above.nextSetBit(i + 1)) {
+			order.add(i);
+		}
+		Collections.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return mDescendants[a].cardinality() - mDescendants[b].cardinality();
+			}
+		});
+		for (int x : order) {
+			BitSet descendants = new BitSet();
+			for (int c = mHierarchy[x].nextSetBit(0); c >= 0; c = mHierarchy[x].nextSetBit(c + 1)) {
+				descendants.set(c);
+				descendants.or(mDescendants[c]);
+			}
+			mDescendants[x] = descendants;
+		}
+		// ancestors can only have been lost, so we keep the old ones that still reach down
+		for (int y = below.nextSetBit(0); y >= 0; y = below.nextSetBit(y + 1)) {
+			BitSet ancestors = mAncestors[y];
+			for (int a = ancestors.nextSetBit(0); a >= 0; a = ancestors.nextSetBit(a + 1)) {
+				if (!mDescendants[a].get(y)) {
+					ancestors.clear(a);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Rebuilds the closure rows of every node in nodes from the hierarchy rows alone.
+	 */
+	private void rebuildClosure(BitSet nodes) {
+		for (int i = nodes.nextSetBit(0); i >= 0; i = nodes.nextSetBit(i + 1)) {
+			mAncestors[i].clear();
+			mDescendants[i].clear();
+		}
+		BitSet done = new BitSet();
+		for (int i = nodes.nextSetBit(0); i >= 0; i = nodes.nextSetBit(i + 1)) {
+			collectDescendants(i, done);
+			for (int d = mDescendants[i].nextSetBit(0); d >= 0; d = mDescendants[i].nextSetBit(d + 1)) {
+				mAncestors[d].set(i);
+			}
+		}
+	}
+
+	/**
+	 * Depth first fill of mDescendants[idx], reusing rows that are already complete.
+	 */
+	private void collectDescendants(int idx, BitSet done) {
+		if (done.get(idx)) return;
+		for (int c = mHierarchy[idx].nextSetBit(0); c >= 0; c = mHierarchy[idx].nextSetBit(c + 1)) {
+			collectDescendants(c, done);
+			mDescendants[idx].set(c);
+			mDescendants[idx].or(mDescendants[c]);
+		}
+		done.set(idx);
+	}
+
+	/**
+	 * The triangulation edge that mirrors a hierarchy or exclusion edge goes away with the last
+	 * semantic edge between the two nodes.
+	 */
+	private void clearTriangulationIfUnrelated(int first, int second) {
+		if (!mHierarchy[first].get(second) && !mHierarchy[second].get(first) &&
+				!mExcluded[first].get(second)) {
+			mTriangulated[first].clear(second);
+			mTriangulated[second].clear(first);
+		}
+	}
+
 	/**
 	 * Determines if node child is a descendant of node parent
-	 * 
+	 *
 	 * @param parent The parent class we are considering.
 	 * @param child The potential child class.
 	 * @throws IllegalArgumentException if either head or tail is null.
 	 * @return true if child is a descendant of parent, false if it isn't.
 	 */
 	public boolean isDescendant(V parent, V child) {
-		return nodes.get(parent).getDescendants().contains(nodes.get(child));
+		if (!(hasNode(parent) && hasNode(child))) return false;
+		return mDescendants[mNameSpace.getIndex(parent)].get(mNameSpace.getIndex(child));
 	}
-	
+
 	/**
 	 * Determines if two classes are excluded from one another.
-	 * 
+	 *
 	 * @param first One of the nodes we are testing
 	 * @param second The other node we are testing
 	 * @return true if first and second have an exclusion relationship, false otherwise.
 	 */
 	public boolean hasExclusion(V first, V second) {
-		return nodes.get(first).getExcluded().contains(nodes.get(second));
+		if (!(hasNode(first) && hasNode(second))) return false;
+		return mExcluded[mNameSpace.getIndex(first)].get(mNameSpace.getIndex(second));
 	}
-	
+
 	/**
 	 * Checks to see if the specified node exists in the graph.
-	 * 
+	 *
 	 * @param label The label of the node being searched for.
 	 * @throws IllegalArgumentException if label is null.
 	 * @return True if that node exists, false otherwise.
 	 */
 	public boolean hasNode(V label){
-		if(label == null){
-			throw new IllegalArgumentException("Null passed in as node label in hasNode");
-		}
-		return nodes.containsKey(label);
+		int idx = indexOf(label);
+		return idx >= 0 && mNodes.get(idx);
+	}
+
+	boolean hasNode(int idx) {
+		return mNodes.get(idx);
 	}
-	
+
 	/**
 	 * Returns the ancestors of a node with the given label
-	 * 
+	 *
 	 * @param label the label of the node we are finding ancestors for
 	 * @return null if label is not in the graph. Otherwise returns a set of all the ancestors of
 	 *  that node (in no particular order)
 	 */
 	public Set<V> getAncestors(V label) {
 		if (hasNode(label)) {
-			Set<V> set = new HashSet<V>();
-			for (V node : nodes.keySet()) {
-				if (nodes.get(node).getDescendants().contains(nodes.get(label))) {					
-					set.add(node);
-				}
-			}
-			return set;
+			return toLabels(getAncestorIndices(mNameSpace.getIndex(label)));
 		} else {
-			return null;			
+			return null;
 		}
 	}
-	
+
+	/**
+	 * Returns the indices of all ancestors of the node with the given index.
+	 */
+	BitSet getAncestorIndices(int idx) {
+		return masked(mAncestors[idx]);
+	}
+
 	/**
 	 * Returns the descendants of the given node
-	 * 
+	 *
 	 * @param label the label of the node we are finding descendants for
 	 * @return null if label is not in the graph. Otherwise returns a set of all descendants of
 	 * that node (in no particular order)
 	 */
 	public Set<V> getDescendants (V label) {
 		if (hasNode(label)) {
-			Set<V> set = new HashSet<V>();
-			for (GraphNode<V> node : nodes.get(label).getDescendants()) {
-				set.add(node.getLabel());
-			}
-			return set;
+			return toLabels(getDescendantIndices(mNameSpace.getIndex(label)));
 		} else {
 			return null;
-		}	
+		}
+	}
+
+	/**
+	 * Returns the indices of all descendants of the node with the given index (the entire
+	 * subtree rooted at that node)
+	 */
+	BitSet getDescendantIndices(int idx) {
+		return masked(mDescendants[idx]);
 	}
-	
-	
+
+	/**
+	 * Returns the indices of the direct children of the node with the given index
+	 */
+	BitSet getChildIndices(int idx) {
+		return masked(mHierarchy[idx]);
+	}
+
+
 	/**
 	 * Returns a set of all nodes excluded from the node specified by label
-	 * 
+	 *
 	 * @param label the node we are finding exclusions for
 	 * @return a set of all classes excluded from the specified class
 	 */
 	public Set<V> getExcluded (V label) {
 		if (hasNode(label)) {
-			Set<V> exc = new HashSet<V>();
-			GraphNode<V> current = nodes.get(label);
-			for (GraphNode<V> node : current.getExcluded()) {
-				exc.add(node.getLabel());
-			}
-			return exc;
+			return toLabels(getExcludedIndices(mNameSpace.getIndex(label)));
 		} else {
 			return null;
 		}
 	}
-	
+
+	BitSet getExcludedIndices(int idx) {
+		return masked(mExcluded[idx]);
+	}
+
 	/**
 	 * Returns a set of all nodes that the specified node has a triangulated relationship with.
-	 * 
+	 *
 	 * @param label the node we are finding triangulated relationships for
 	 * @return a set of all classes that are undirected neighbors for the specified class
 	 */
 	public Set<V> getTriangulatedNeighbors(V label) {
 		if (hasNode(label)) {
-			Set<V> tri = new HashSet<V>();
-			for (GraphNode<V> node : nodes.get(label).getTriangulated()) {
-				tri.add(node.getLabel());
-			}
-			return tri;
+			return toLabels(getTriangulatedIndices(mNameSpace.getIndex(label)));
 		} else {
 			return null;
 		}
 	}
-	
+
+	BitSet getTriangulatedIndices(int idx) {
+		return masked(mTriangulated[idx]);
+	}
+
 	/**
 	 * Returns a set of all nodes that are not a part of a hierarchy or exclusion relation with
-	 * the given node. 
-	 * 
+	 * the given node.
+	 *
 	 * @requires THIS IS ONLY GUARANTEED TO BE ACCURATE FOR A DENSIFIED GRAPH
-	 * 
+	 *
 	 * @param label the node in question
 	 * @return a set of all nodes that are not part unrelated to the given node
 	 */
 	public Set<V> getOverlapping(V label) {
-		if (hasNode(label)) {			
-			Set<V> overlapping = new HashSet<V>();
-			Set<V> ancestors = getAncestors(label);
-			Set<V> descendants = getDescendants(label);
-			Set<V> excluded = getExcluded(label);
-			
-			for (V node : getNodeList()) {
-				if (!ancestors.contains(node) &&
-						!descendants.contains(node) &&
-						!excluded.contains(node)) {
-					overlapping.add(label);
-				}
-			}
-			
-			return overlapping;
+		if (hasNode(label)) {
+			int idx = mNameSpace.getIndex(label);
+			BitSet overlapping = (BitSet) mNodes.clone();
+			overlapping.clear(idx);
+			overlapping.andNot(mAncestors[idx]);
+			overlapping.andNot(mDescendants[idx]);
+			overlapping.andNot(mExcluded[idx]);
+			return toLabels(overlapping);
 		} else {
 			return null;
 		}
-		
+
 	}
-	
+
 	/**
 	 * Sparsifies the graph. This method eliminates any redundant edges by examining hierarchy
 	 * chains. For example if A is a parent of B and C, and B is a parent of C, we can say that
 	 * A's ancestry of C is encoded in A->B->C. Thus the edge between A and C is deleted.
+	 *
+	 * Exclusions are reduced the same way: an exclusion between x and y is dropped when an
+	 * ancestor of x is excluded from y or x is excluded from an ancestor of y.
 	 */
 	public void sparsify() {
-		for (V name : nodes.keySet()) {
-			Set<V> ancestors = getAncestors(name);
-			Set<V> excluded = getExcluded(name);
-			for (V ancestor : ancestors) {
-				// Remove unnecessary hierarchy edges
-				for (V ancestorAncestor : getAncestors(ancestor)) {
-					if (ancestors.contains(ancestorAncestor)) {
-						deleteHierarchyEdge(ancestorAncestor, name);
-					}
-				}
-				
-				// Remove unnecessary exclusions
-				for (V ancestorExcluded : getExcluded(ancestor)) {
-					if (excluded.contains(ancestorExcluded)) {
-						deleteExclusion(name, ancestorExcluded);
-					}
-				}
+		checkWritable();
+		BitSet[] parents = getParentRows();
+		int[] order = getTopologicalOrder();
+		BitSet[] dense = getDenseExclusions(parents, order);
+
+		// Transitive reduction: keep x->y only when no other descendant of x lies above y
+		BitSet[] hierarchy = new BitSet[mHierarchy.length];
+		for (int x = mNodes.nextSetBit(0); x >= 0; x = mNodes.nextSetBit(x + 1)) {
+			BitSet descendants = masked(mDescendants[x]);
+			hierarchy[x] = (BitSet) descendants.clone();
+			for (int d = descendants.nextSetBit(0); d >= 0; d = descendants.nextSetBit(d + 1)) {
+				hierarchy[x].andNot(mDescendants[d]);
 			}
-			
+		}
+
+		// An exclusion is inherited when it holds for a parent on either side. Dropping the ones
+		// inherited on the left leaves L, and transposing L finds the ones inherited on the right
+		BitSet[] left = new BitSet[mExcluded.length];
+		for (int x = mNodes.nextSetBit(0); x >= 0; x = mNodes.nextSetBit(x + 1)) {
+			left[x] = (BitSet) dense[x].clone();
+			for (int p = parents[x].nextSetBit(0); p >= 0; p = parents[x].nextSetBit(p + 1)) {
+				left[x].andNot(dense[p]);
+			}
+		}
+		BitSet[] right = transpose(left);
+
+		BitSet[] oldParents = parents;
+		BitSet[] newParents = transpose(hierarchy);
+		for (int x = mNodes.nextSetBit(0); x >= 0; x = mNodes.nextSetBit(x + 1)) {
+			BitSet excluded = left[x];
+			excluded.and(right[x]);
+
+			// triangulation edges that only mirrored a removed edge go away with it
+			BitSet removed = masked(mHierarchy[x]);
+			removed.or(oldParents[x]);
+			removed.or(masked(mExcluded[x]));
+			removed.andNot(hierarchy[x]);
+			removed.andNot(newParents[x]);
+			removed.andNot(excluded);
+			mTriangulated[x].andNot(removed);
+
+			mHierarchy[x] = hierarchy[x];
+			mExcluded[x] = excluded;
 		}
 		checkInvariant();
 	}
-	
+
 	/**
 	 * This method densifies the graph. The opposite of sparsify, we look to see if there is any
 	 * implied relationships in the graph, and if there are, we add edges to represent those
 	 * relationships explicitly.
+	 *
+	 * Every node gets a hierarchy edge to each of its descendants (read straight off the closure
+	 * rows), and two nodes are excluded whenever any of their ancestors (or they themselves)
+	 * are excluded.
 	 */
 	public void densify() {
-		for (V name : nodes.keySet()) {
-			for (V ancestor : getAncestors(name)) {
-				for (V ex : getExcluded(ancestor)) {
-					addExclusion(name, ex);
-				}
+		checkWritable();
+		BitSet[] dense = getDenseExclusions(getParentRows(), getTopologicalOrder());
+		for (int x = mNodes.nextSetBit(0); x >= 0; x = mNodes.nextSetBit(x + 1)) {
+			mHierarchy[x] = masked(mDescendants[x]);
+			mExcluded[x] = dense[x];
+			mTriangulated[x].or(mHierarchy[x]);
+			mTriangulated[x].or(masked(mAncestors[x]));
+			mTriangulated[x].or(dense[x]);
+		}
+		checkInvariant();
+	}
+
+	/**
+	 * Computes the exclusion rows of the densified graph without modifying this graph.
+	 *
+	 * Exclusions are pushed down the hierarchy on one side, the rows are transposed, and they are
+	 * pushed down again, so x and y end up excluded exactly when some ancestor-or-self of x is
+	 * excluded from some ancestor-or-self of y. Each pass costs one row OR per hierarchy edge.
+	 *
+	 * @param parents the parent rows of the graph, see {@link #getParentRows()}
+	 * @param order the nodes of the graph with every parent before its children
+	 */
+	private BitSet[] getDenseExclusions(BitSet[] parents, int[] order) {
+		BitSet[] excluded = new BitSet[mExcluded.length];
+		for (int x = mNodes.nextSetBit(0); x >= 0; x = mNodes.nextSetBit(x + 1)) {
+			excluded[x] = masked(mExcluded[x]);
+		}
+		inheritFromParents(excluded, parents, order);
+		excluded = transpose(excluded);
+		inheritFromParents(excluded, parents, order);
+		return excluded;
+	}
+
+	/**
+	 * ORs the row of every parent into the row of its children, visiting nodes in order so each
+	 * row is complete before it is passed down.
+	 */
+	private void inheritFromParents(BitSet[] rows, BitSet[] parents, int[] order) {
+		for (int x : order) {
+			for (int p = parents[x].nextSetBit(0); p >= 0; p = parents[x].nextSetBit(p + 1)) {
+				rows[x].or(rows[p]);
 			}
-			
-			for (V descendant : getDescendants(name)) {
-				addHierarchy(name, descendant);
+		}
+	}
+
+	/**
+	 * Returns the rows of the transposed matrix, restricted to the nodes of this graph. Missing
+	 * rows are treated as empty.
+	 */
+	private BitSet[] transpose(BitSet[] rows) {
+		BitSet[] transposed = new BitSet[rows.length];
+		for (int x = mNodes.nextSetBit(0); x >= 0; x = mNodes.nextSetBit(x + 1)) {
+			transposed[x] = new BitSet();
+		}
+		for (int x = mNodes.nextSetBit(0); x >= 0; x = mNodes.nextSetBit(x + 1)) {
+			if (rows[x] == null) continue;
+			for (int y = rows[x].nextSetBit(0); y >= 0; y = rows[x].nextSetBit(y + 1)) {
+				if (mNodes.get(y)) transposed[y].set(x);
 			}
 		}
-		checkInvariant();
+		return transposed;
 	}
-	
+
+	/**
+	 * Returns for each node the nodes with a hierarchy edge to it.
+	 */
+	private BitSet[] getParentRows() {
+		BitSet[] children = new BitSet[mHierarchy.length];
+		for (int x = mNodes.nextSetBit(0); x >= 0; x = mNodes.nextSetBit(x + 1)) {
+			children[x] = mHierarchy[x];
+		}
+		return transpose(children);
+	}
+
+	/**
+	 * Returns the nodes of the graph with every ancestor before its descendants. A node has
+	 * strictly fewer ancestors than any of its descendants, so sorting by that count is enough.
+	 */
+	private int[] getTopologicalOrder() {
+		List<Integer> nodes = new ArrayList<Integer>();
+		for (int x = mNodes.nextSetBit(0); x >= 0; x = mNodes.nextSetBit(x + 1)) {
+			nodes.add(x);
+		}
+		final int[] depth = new int[mAncestors.length];
+		for (int x : nodes) {
+			depth[x] = masked(mAncestors[x]).cardinality();
+		}
+		Collections.sort(nodes, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return depth[a] - depth[b];
+			}
+		});
+		int[] order = new int[nodes.size()];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = nodes.get(i);
+		}
+		return order;
+	}
+
 	/**
 	 * Triangulates the graph. This means that all cycles of size > 3 will be broken into cliques
-	 * of size 3
+	 * of size 3. Nodes are eliminated in min-fill order.
 	 */
 	public void triangulate() {
-		HEXGraph<V> copy = this.getDeepCopy();
-		// iterate over the nodes in the copy, add triangulation edges in both graphs between all neighbors
-		// that need to be triangulated and then remove the current node from the copy of the graph
-		
-		for (V label : copy.getNodeSet()) {
-			for (V first : copy.getTriangulatedNeighbors(label)) {
-				for (V second : copy.getTriangulatedNeighbors(label)) {
-					if (!first.equals(second)) {
-						copy.addTriangulationRelationship(first, second);
-						this.addTriangulationRelationship(first, second);
-					}
-				}
-			}
-			copy.deleteNode(label);
+		triangulate(EliminationHeuristic.MIN_FILL, null);
+	}
+
+	/**
+	 * Triangulates the graph, eliminating nodes in the order picked by heuristic, and adds the
+	 * fill edges to the triangulation relationships.
+	 *
+	 * @param heuristic - the rule that picks the next node to eliminate
+	 * @param denseGraph - the densified graph used to count clique states, or null. Required for
+	 * 	MIN_STATES.
+	 * @return the triangulation, with its elimination ordering, cliques and cost figures
+	 */
+	public Triangulation<V> triangulate(EliminationHeuristic heuristic, HEXGraph<V> denseGraph) {
+		checkWritable();
+		Triangulation<V> triangulation = getTriangulation(heuristic, denseGraph);
+		triangulate(triangulation);
+		return triangulation;
+	}
+
+	/**
+	 * Adds the fill edges of a triangulation worked out earlier on this graph, or on a graph
+	 * with the same triangulation relationships, to the triangulation relationships.
+	 */
+	void triangulate(Triangulation<V> triangulation) {
+		checkWritable();
+		for (int i = mNodes.nextSetBit(0); i >= 0; i = mNodes.nextSetBit(i + 1)) {
+			mTriangulated[i].or(triangulation.getFilledNeighbors(i));
 		}
 	}
-	
+
+	/**
+	 * Works out the triangulation heuristic would produce without changing this graph, so that
+	 * the cost of several heuristics can be compared. Clique states are counted in full, which
+	 * takes time exponential in the width of the cliques; see
+	 * {@link #getTriangulation(EliminationHeuristic, HEXGraph, long)} to bound it.
+	 */
+	public Triangulation<V> getTriangulation(EliminationHeuristic heuristic, HEXGraph<V> denseGraph) {
+		return getTriangulation(heuristic, denseGraph, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Works out the triangulation like {@link #getTriangulation(EliminationHeuristic, HEXGraph)},
+	 * but stops counting the states of any clique, whether a candidate MIN_STATES weighs or a
+	 * clique of the result, once it has more than stateLimit of them.
+	 *
+	 * @param stateLimit - the most states counted per clique, or Long.MAX_VALUE for no limit
+	 */
+	public Triangulation<V> getTriangulation(EliminationHeuristic heuristic, HEXGraph<V> denseGraph,
+			long stateLimit) {
+		return new Triangulation<V>(this, denseGraph, heuristic, stateLimit, mNameSpace);
+	}
+
+	/**
+	 * Counts the legal configurations of the given nodes without listing them, splitting on the
+	 * lowest node the same way the state space listing does.
+	 * @requires the graph is densified
+	 */
+	long countStates(BitSet nodes) {
+		BitSet remaining = masked(nodes);
+		if (remaining.isEmpty()) return 1;
+		int pivot = remaining.nextSetBit(0);
+		BitSet whenTrue = (BitSet) remaining.clone();
+		whenTrue.clear(pivot);
+		whenTrue.andNot(mAncestors[pivot]);
+		whenTrue.andNot(mExcluded[pivot]);
+		BitSet whenFalse = remaining;
+		whenFalse.clear(pivot);
+		whenFalse.andNot(mDescendants[pivot]);
+		long count = countStates(whenTrue) + countStates(whenFalse);
+		return count < 0 ? Long.MAX_VALUE : count;
+	}
+
+	/**
+	 * Counts the legal configurations of the given nodes like {@link #countStates(BitSet)}, but
+	 * stops and returns something over limit as soon as there are more than limit of them, so it
+	 * takes time in proportion to the limit rather than the count.
+	 * @requires the graph is densified and limit is less than Long.MAX_VALUE
+	 */
+	long countStates(BitSet nodes, long limit) {
+		BitSet remaining = masked(nodes);
+		if (remaining.isEmpty()) return 1;
+		if (limit < 2) return limit + 1;
+		int pivot = remaining.nextSetBit(0);
+		BitSet whenTrue = (BitSet) remaining.clone();
+		whenTrue.clear(pivot);
+		whenTrue.andNot(mAncestors[pivot]);
+		whenTrue.andNot(mExcluded[pivot]);
+		BitSet whenFalse = remaining;
+		whenFalse.clear(pivot);
+		whenFalse.andNot(mDescendants[pivot]);
+		long count = countStates(whenTrue, limit - 1);
+		if (count > limit - 1) return limit + 1;
+		long rest = countStates(whenFalse, limit - count);
+		return rest > limit - count ? limit + 1 : count + rest;
+	}
+
 	/**
 	 * @requires that the graph has been triangulated for this to be somewhat useful
-	 * @return an elimination ordering for the graph.
+	 * @return an elimination ordering for the graph. It is perfect exactly when the graph is
+	 * 	chordal.
 	 */
 	public List<V> getEliminationOrdering() {
-		Set<V> unmarked = getNodeSet();
-		List<V> ordering = new ArrayList<V>();
-		for (int i = this.size() - 1; i >= 0; i--) {
-			V current = null;
-			int maxMarked = -1;
-			if (i == this.size()) {
-				current = getNodeList().get(new Random().nextInt(this.size()));
-			} else {
-				for (V node : unmarked) {
-					int markedNeighbors = 0;
-					for (V neighbor : getTriangulatedNeighbors(node)) {
-						if (!unmarked.contains(neighbor)) {
-							markedNeighbors++;
-						}
-					}
-					if (markedNeighbors > maxMarked) {
-						current = node;
-					}
+		int[] order = getEliminationOrder();
+		List<V> ordering = new ArrayList<V>(order.length);
+		for (int idx : order) {
+			ordering.add(mNameSpace.get(idx));
+		}
+		return ordering;
+	}
+
+	/**
+	 * Maximum cardinality search over the triangulation relationships, in O(n + m). Nodes are
+	 * numbered one at a time, always picking an unnumbered node with the most numbered neighbors,
+	 * and the elimination ordering is the reverse of the numbering. Unnumbered nodes sit in
+	 * doubly linked buckets keyed by their count of numbered neighbors.
+	 * @return the elimination ordering as name space indices
+	 */
+	int[] getEliminationOrder() {
+		int[][] adjacency = getTriangulatedAdjacency();
+		int capacity = mNameSpace.size();
+		int[] order = new int[size()];
+		int[] weight = new int[capacity];
+		int[] next = new int[capacity];
+		int[] prev = new int[capacity];
+		int[] head = new int[order.length + 1];
+		Arrays.fill(head, -1);
+		boolean[] numbered = new boolean[capacity];
+
+		for (int i = mNodes.nextSetBit(0); i >= 0; i = mNodes.nextSetBit(i + 1)) {
+			pushBucket(i, 0, head, next, prev);
+		}
+
+		int max = 0;
+		for (int step = order.length - 1; step >= 0; step--) {
+			while (head[max] < 0) max--;
+			int node = head[max];
+			popBucket(node, weight[node], head, next, prev);
+			numbered[node] = true;
+			order[step] = node;
+			for (int neighbor : adjacency[node]) {
+				if (numbered[neighbor]) continue;
+				popBucket(neighbor, weight[neighbor], head, next, prev);
+				weight[neighbor]++;
+				pushBucket(neighbor, weight[neighbor], head, next, prev);
+				max = Math.max(max, weight[neighbor]);
+			}
+		}
+		return order;
+	}
+
+	private static void pushBucket(int node, int bucket, int[] head, int[] next, int[] prev) {
+		next[node] = head[bucket];
+		prev[node] = -1;
+		if (head[bucket] >= 0) prev[head[bucket]] = node;
+		head[bucket] = node;
+	}
+
+	private static void popBucket(int node, int bucket, int[] head, int[] next, int[] prev) {
+		if (prev[node] >= 0) next[prev[node]] = next[node];
+		else head[bucket] = next[node];
+		if (next[node] >= 0) prev[next[node]] = prev[node];
+	}
+
+	/**
+	 * Returns whether ordering is a perfect elimination ordering of the triangulation
+	 * relationships, i.e. whether the neighbors of every node that come after it in the ordering
+	 * form a clique.
+	 */
+	public boolean isPerfectEliminationOrdering(List<V> ordering) {
+		int[] order = new int[ordering.size()];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = indexOf(ordering.get(i));
+			if (!hasNode(order[i])) return false;
+		}
+		return isPerfectEliminationOrder(order);
+	}
+
+	/**
+	 * Checks order in O(n + m): for every node, the earliest of its later neighbors must be
+	 * adjacent to all of the others. The cliques then follow by induction.
+	 * @param order - every node of the graph exactly once, as name space indices
+	 */
+	boolean isPerfectEliminationOrder(int[] order) {
+		if (order.length != size()) return false;
+		int[] position = new int[mNameSpace.size()];
+		Arrays.fill(position, -1);
+		for (int i = 0; i < order.length; i++) {
+			if (position[order[i]] >= 0) return false;
+			position[order[i]] = i;
+		}
+		int[][] adjacency = getTriangulatedAdjacency();
+		for (int node : order) {
+			int follower = -1;
+			for (int neighbor : adjacency[node]) {
+				if (position[neighbor] > position[node]
+						&& (follower < 0 || position[neighbor] < position[follower])) {
+					follower = neighbor;
+				}
+			}
+			if (follower < 0) continue;
+			BitSet followerRow = mTriangulated[follower];
+			for (int neighbor : adjacency[node]) {
+				if (neighbor != follower && position[neighbor] > position[node]
+						&& !followerRow.get(neighbor)) {
+					return false;
 				}
 			}
-			ordering.add(current);
-			unmarked.remove(current);
 		}
-		Collections.reverse(ordering);
-		return ordering;
+		return true;
+	}
+
+	/**
+	 * Returns whether the triangulation relationships form a chordal graph.
+	 */
+	public boolean isChordal() {
+		return isPerfectEliminationOrder(getEliminationOrder());
+	}
+
+	/**
+	 * Returns the triangulation relationships of every node as index arrays, so the linear time
+	 * searches above can walk them without going through the BitSet words again.
+	 */
+	private int[][] getTriangulatedAdjacency() {
+		int[][] adjacency = new int[mNameSpace.size()][];
+		for (int i = mNodes.nextSetBit(0); i >= 0; i = mNodes.nextSetBit(i + 1)) {
+			BitSet row = mTriangulated[i];
+			int[] neighbors = new int[row.cardinality()];
+			int k = 0;
+			for (int j = row.nextSetBit(0); j >= 0; j = row.nextSetBit(j + 1)) {
+				// views share rows with their parent, so skip nodes outside the view
+				if (mNodes.get(j)) neighbors[k++] = j;
+			}
+			adjacency[i] = k == neighbors.length ? neighbors : Arrays.copyOf(neighbors, k);
+		}
+		return adjacency;
+	}
+
+
+	/**
+	 * Returns a 64 bit hash of the structure of the graph: its nodes, their ancestors and their
+	 * exclusions. Two graphs with the same structure have the same fingerprint whatever their
+	 * scores, so it can key anything derived from the structure alone, like state spaces. It is
+	 * only a hash, so a key that must never mix up two graphs should also hold what it was
+	 * derived from, as {@link StateSpaceCache} does.
+	 */
+	public long getFingerprint() {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = mNodes.nextSetBit(0); i >= 0; i = mNodes.nextSetBit(i + 1)) {
+			hash = mix(hash, i);
+			for (long word : masked(mAncestors[i]).toLongArray()) {
+				hash = mix(hash, word);
+			}
+			hash = mix(hash, -1L);
+			for (long word : masked(mExcluded[i]).toLongArray()) {
+				hash = mix(hash, word);
+			}
+			hash = mix(hash, -2L);
+		}
+		return hash;
+	}
+
+	private static long mix(long hash, long value) {
+		hash ^= value;
+		hash *= 0x100000001b3L;
+		return hash ^ (hash >>> 29);
+	}
+
+	NameSpace<V> getNameSpace() {
+		return mNameSpace;
 	}
 
-	
 	/**
 	 * Returns the number of nodes in the graph.
 	 * @return the number of nodes in the graph.
 	 */
 	public int size() {
-		return nodes.size();
+		return mNodes.cardinality();
 	}
-	
+
 	/**
 	 * Returns whether the graph is empty or not.
-	 * @return True if the graph is empty, false if it isn't.	
+	 * @return True if the graph is empty, false if it isn't.
 	 */
 	public boolean isEmpty() {
-		return size() == 0;
+		return mNodes.isEmpty();
 	}
-	
+
 	/**
 	 * Returns how many edges start at the given node.
-	 * 
+	 *
 	 * @param node The label of the node that we are finding the degree of.
 	 * @throws IllegalArgumentException if node is null.
 	 * @return The degree of the node
@@ -517,333 +1111,147 @@ public class HEXGraph<V> {
 		if (node == null) {
 			throw new IllegalArgumentException();
 		}
-		return nodes.get(node).getDegree();
+		int idx = mNameSpace.getIndex(node);
+		return masked(mHierarchy[idx]).cardinality() + masked(mExcluded[idx]).cardinality();
 	}
-	
+
 	/**
 	 * Returns a list of all the nodes in the graph.
 	 * @return a list of all the nodes in the graph.
 	 */
 	public List<V> getNodeList() {
 		List<V> list = new ArrayList<V>();
-		for (V n : nodes.keySet()){
-			list.add(n);
+		for (int i = mNodes.nextSetBit(0); i >= 0; i = mNodes.nextSetBit(i + 1)) {
+			list.add(mNameSpace.get(i));
 		}
 		return list;
 	}
-	
+
 	/**
 	 * Returns a set of all the nodes in the graph.
 	 * @return a set of all the nodes in the graph.
 	 */
 	public Set<V> getNodeSet() {
-		Set<V> set = new HashSet<V>();
-		for (V n : nodes.keySet()) {
-			set.add(n);
-		}
-		return set;
+		return toLabels(mNodes);
 	}
-	
+
+	/**
+	 * Returns the indices of all the nodes in the graph.
+	 */
+	BitSet getNodeIndices() {
+		return (BitSet) mNodes.clone();
+	}
+
 	/**
 	 * Returns the classification score for the given node
 	 * @param node
 	 * @return
 	 */
 	public double getScore(V node) {
-		if (nodes.containsKey(node)) {			
-			return nodes.get(node).getScore();
+		if (hasNode(node)) {
+			return mScores[mNameSpace.getIndex(node)];
 		}
 		return 0.0;
 	}
-	
+
 	/**
 	 * Returns a double[] containing scores for this graph
-	 * 
-	 * TODO make the score integration more efficient
-	 * 
+	 *
 	 * @return a double[] containing scores for this graph
 	 */
 	public double[] getScores() {
 		double[] scores = new double[size()];
-		for (int i = 0; i < size(); i++) {
-			scores[i] = getScore(mNameSpace.get(i));
+		for (int i = 0; i < scores.length; i++) {
+			scores[i] = mNodes.get(i) ? mScores[i] : 0.0;
 		}
 		return scores;
 	}
-	
+
 	/**
 	 * Sets scores for all the nodes in the graph at once. If a node is provided in scores that is
 	 * not in the graph we simply ignore it.
 	 */
 	public void setScores(Map<V, Double> scores) {
+		checkWritable();
 		for (V node : scores.keySet()) {
-			if (nodes.containsKey(node)) {
-				nodes.get(node).setScore(scores.get(node));
+			if (hasNode(node)) {
+				mScores[mNameSpace.getIndex(node)] = scores.get(node);
 			}
 		}
 	}
-	
+
 	/**
 	 * Sets scores for all the nodes in the graph at once. If scores contains more entries than
 	 * there are nodes in the graph we ignore the extra entries.
-	 * 
+	 *
 	 * @param scores - the double[] of scores we are assigning to the graph
 	 */
 	public void setScores(double[] scores) {
-		for (int i = 0; i < scores.length; i++) {
-			nodes.get(mNameSpace.get(i)).setScore(scores[i]);
+		checkWritable();
+		for (int i = 0; i < scores.length && i < mScores.length; i++) {
+			if (mNodes.get(i)) {
+				mScores[i] = scores[i];
+			}
 		}
 	}
-	
+
 	/**
-	 * Checks to make sure that exclusions are properly recognized by both partners that share the
-	 * exclusion edge.
-	 * 
+	 * Checks the invariant that no node can be in both a hierarchy and an exclusion relation
+	 * with the same node.
+	 *
 	 * @throws IllegalStateException if the invariant is violated
 	 */
 	public void checkInvariant() {
-		for (V label : nodes.keySet()) {
-			nodes.get(label).checkInvariant();
-		}
-	}
-
-	/**
-	 * @author Daniel Gorrie
-	 * 
-	 * Implementation of a node to be used in a directed graph. Each GraphNode has a label that cannot
-	 * be modified once the GraphNode is created, as well as a set of edges originating at the given
-	 * GraphNode. There are no duplicate edges allowed.
-	 * 
-	 * More specifically, each GraphNode represents an entity recognition class in our uses of
-	 * the HEXGraph.
-	 *
-	 * GraphNodes store two sets of edges, one representing their direct children in a hierarchy
-	 * relationship, the other representing classes they are excluded from.
-	 */
-	@SuppressWarnings("hiding")
-	class GraphNode<V> implements Serializable{
-		
-		private static final long serialVersionUID = -3158134210978319197L;
-		
-		/**
-		 * Descriptor of the class
-		 */
-		private final V label;
-		
-		/**
-		 * Score assigned to a node representing whether an entity we are considering can have
-		 * this class or not
-		 */
-		private double score;
-		
-		/**
-		 * Set of nodes that this node is hierarchically above (by one level)
-		 */
-		private Set<GraphNode<V>> hierarchy;
-		
-		/**
-		 * Set of nodes this node is excluded from
-		 */
-		private Set<GraphNode<V>> excluded;
-		
-		/**
-		 * Set of nodes this node has a triangulation relationship with (no semantic meaning)
-		 */
-		private Set<GraphNode<V>> triangulated;
-		
-		/**
-		 * Constructs a new GraphNode with the label passed in.
-		 * 
-		 * @param l The label of the new GraphNode
-		 * @throws IllegalArgumentException if l is null.
-		 */
-		public GraphNode(V l) {
-			if(l == null){
-				throw new IllegalArgumentException();
-			}
-			this.label = l;
-			hierarchy = new HashSet<GraphNode<V>>();
-			excluded = new HashSet<GraphNode<V>>();
-			triangulated = new HashSet<GraphNode<V>>();
-			score = 0.0;
-		}
-		
-		/**
-		 * Returns the label of this.
-		 * 
-		 * @return The label of this.
-		 */
-		public V getLabel() {
-			return label;
-		}
-		
-		/**
-		 * @return The confidence score of this node from the entity recognition processing
-		 */
-		public double getScore() {
-			return score;
-		}
-		
-		/**
-		 * Sets the score value;
-		 */
-		public void setScore(double s) {
-			score = s;
-		}
-		
-		/**
-		 * Returns whether this is one layer hierarchically above the given GraphNode
-		 */
-		public boolean hierarchyAdjacent(GraphNode<V> n) {
-			return adjacencyHelper(n.getLabel(), hierarchy);
-		}
-		
-		/**
-		 * Returns whether this is excluded from the given GraphNode.
-		 */
-		public boolean exclusionAdjacent(GraphNode<V> n) {
-			return adjacencyHelper(n.getLabel(), excluded);
-		}
-		
-		/**
-		 * Returns whether this is adjacent for the purposes of triangulation
-		 */
-		public boolean triangulationAdjacent(GraphNode<V> n) {
-			return adjacencyHelper(n.getLabel(), triangulated);
-		}
-		
-		/**
-		 * Helper method for the exclusionAdjacent and hierarchyAdjacent methods.
-		 */
-		private boolean adjacencyHelper(V nLabel, Set<GraphNode<V>> selected) {
-			for (GraphNode<V> v : selected) {
-				if (v.getLabel().equals(nLabel)) return true;
-			}
-			return false;
-		}
-		
-		/**
-		 * Returns the set of all descendants for this class (the entire subtree rooted at this
-		 * class)
-		 * 
-		 * @return a set of all descendants of this node.
-		 */
-		public Set<GraphNode<V>> getDescendants() {
-			Set<GraphNode<V>> subset = new HashSet<GraphNode<V>>(hierarchy);
-			for (GraphNode<V> node : hierarchy) {
-				subset.addAll(node.getDescendants());
-			}
-			return subset;
-		}
-		
-		/**
-		 * Returns a soft copy of the set of excluded nodes
-		 * 
-		 * @return a copy of the excluded set
-		 */
-		public Set<GraphNode<V>> getExcluded() {
-			return new HashSet<GraphNode<V>>(excluded);
-		}
-		
-		public Set<GraphNode<V>> getTriangulated() {
-			return new HashSet<GraphNode<V>>(triangulated);
-		}
-		
-		/** 
-		 * Adds an edge between this and node head with label label
-		 * 
-		 * @param head The node representing the head of the new edge.
-		 * @return True if the edge was added successfully, false if the edge already existed.
-		 */
-		public boolean addHierarchyEdge(GraphNode<V> head) {
-			return hierarchy.add(head);
-		}
-		
-		public boolean addExclusionEdge(GraphNode<V> head) {
-			return excluded.add(head);
-		}
-		
-		public boolean addTriangulationEdge(GraphNode<V> head) {
-			return triangulated.add(head);
-		}
-		
-		/**
-		 * Removes all edges going from this to node head.
-		 * 
-		 * @param head The node that is the head of all edges being removed.
-		 * @return 
-		 * @modifies this
-		 * @effects Removes a set of edges.
-		 */
-		public boolean removeEdges(GraphNode<V> head) {
-			edgeRemovalHelper(head, hierarchy);
-			edgeRemovalHelper(head, excluded);
-			edgeRemovalHelper(head, triangulated);
-			if (triangulated.contains(head) || hierarchy.contains(head) || excluded.contains(head)) {
-				throw new IllegalStateException("Node not actually removed");
-			}
-			return !excluded.contains(head) && !triangulated.contains(head);
-		}
-		
-		/**
-		 * Helper method to remove edges from the two sets
-		 * @param head
-		 * @param selected
-		 */
-		private void edgeRemovalHelper(GraphNode<V> head, Set<GraphNode<V>> selected) {
-			Iterator<GraphNode<V>> i = selected.iterator();
-			while (i.hasNext()) {
-				GraphNode<V> curr = i.next();
-				if (curr.equals(head)) {
-					i.remove();
-				}
+		for (int i = mNodes.nextSetBit(0); i >= 0; i = mNodes.nextSetBit(i + 1)) {
+			if (mHierarchy[i].intersects(mExcluded[i])) {
+				throw new IllegalStateException(
+						String.format("Invariant violated in node %s", mNameSpace.get(i)));
 			}
 		}
-			
-		/**
-		 * Returns the number of edges that have this as their tail.
-		 * 
-		 * @return the number of edges that have this as their tail.
-		 */
-		public int getDegree(){
-			return hierarchy.size() + excluded.size();
-		}
-		
-		/**
-		 * Check the invariant that no node can be in both excluded and hierarchy
-		 * 
-		 * @throws IllegalStateException if the invariant is violated
-		 */
-		public void checkInvariant() {
-			for (GraphNode<V> node : hierarchy) {
-				if (excluded.contains(node)) {
-					throw new IllegalStateException(
-							String.format("Invariant violated in node %s", getLabel()));
-				}
-			}
+	}
+
+	/**
+	 * Returns a copy of row restricted to the nodes of this graph.
+	 */
+	private BitSet masked(BitSet row) {
+		BitSet result = (BitSet) row.clone();
+		result.and(mNodes);
+		return result;
+	}
+
+	/**
+	 * Returns the index of label in the name space, or -1 if the name space does not know it.
+	 *
+	 * @throws IllegalArgumentException if label is null.
+	 */
+	private int indexOf(V label) {
+		if (label == null) {
+			throw new IllegalArgumentException("Null passed in as node label");
 		}
-		
-		/**
-		 * Returns whether this is equal to another GraphNode
-		 * 
-		 * @param o The node being compared against
-		 * @return True if the node are equivalent, false otherwise
-		 */
-		public boolean equals(Object o) {
-			if(o instanceof HEXGraph<?>.GraphNode<?>){
-				HEXGraph<?>.GraphNode<?> node = (HEXGraph<?>.GraphNode<?>) o;
-				return label.equals(node.label);
-			}
-			return false;
+		return mNameSpace.contains(label) ? mNameSpace.getIndex(label) : -1;
+	}
+
+	/**
+	 * Converts a set of labels to the set of their indices, ignoring labels we do not know.
+	 */
+	private BitSet toIndices(Set<V> labels) {
+		BitSet indices = new BitSet(mScores.length);
+		for (V label : labels) {
+			int idx = indexOf(label);
+			if (idx >= 0) indices.set(idx);
 		}
-		
-		/**
-		 * Returns the hash code for this object.
-		 * @return The hash code for this object.
-		 */
-		public int hashCode() {
-			return label.hashCode();
+		return indices;
+	}
+
+	/**
+	 * Converts a set of indices to the set of their labels.
+	 */
+	private Set<V> toLabels(BitSet indices) {
+		Set<V> labels = new HashSet<V>();
+		for (int i = indices.nextSetBit(0); i >= 0; i = indices.nextSetBit(i + 1)) {
+			labels.add(mNameSpace.get(i));
 		}
+		return labels;
 	}
-	
+
 }
@@ -82,8 +82,6 @@ public class HEXGraphFactory {
 	
 	public void buildHEXGraph(String filepath) throws IOException {
 		HEXGraph<String> literalGraph = new HEXGraph<String>(mNameSpace);
-		HEXGraph<String> sparseGraph = new HEXGraph<String>(mNameSpace);
-		HEXGraph<String> denseGraph = new HEXGraph<String>(mNameSpace);
 		mBufferedReader = new BufferedReader(new FileReader(filepath));
 		String line = "";
 		try {
@@ -97,8 +95,6 @@ public class HEXGraphFactory {
 			while (!line.equals(EXCLUSION_HEADER)) {
 				if (!line.equals("")) {
 					literalGraph.addNode(line);
-					sparseGraph.addNode(line);
-					denseGraph.addNode(line);
 					// System.out.println(String.format("Added node %s", line));
 				}
 				line = mBufferedReader.readLine();
@@ -120,10 +116,6 @@ public class HEXGraphFactory {
 											terms[i],
 											terms[j],
 											EXCLUSION));
-								} else {
-									sparseGraph.addExclusion(terms[i], terms[j]);
-									denseGraph.addExclusion(terms[i], terms[j]);
-									// System.out.println(String.format("Added exlusion between %s and %s", terms[i], terms[j]));
 								}
 							}
 						}
@@ -151,10 +143,6 @@ public class HEXGraphFactory {
 										first,
 										terms[i],
 										HIERARCHY));
-							} else {
-								sparseGraph.addHierarchy(first, terms[i]);
-								denseGraph.addHierarchy(first, terms[i]);
-								// System.out.println(String.format("Added hierarchy between %s and %s", first, terms[i]));
 							}
 						}
 					}
@@ -164,6 +152,10 @@ public class HEXGraphFactory {
 			// check to make sure the graph is valid
 			literalGraph.checkInvariant();
 			
+			// The sparse and dense graphs start out as copies of the literal graph
+			HEXGraph<String> sparseGraph = literalGraph.getDeepCopy();
+			HEXGraph<String> denseGraph = literalGraph.getDeepCopy();
+			
 			// Sparsify the sparse graph
 			sparseGraph.sparsify();
 			
@@ -1,9 +1,13 @@
 package hexgraph;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Random;
 import java.util.Set;
 
 import util.NameSpace;
@@ -13,51 +17,111 @@ import util.TriState;
 /**
  * A class containing methods that utilize {@link HEXGraph} and {@link JunctionTree} properties to
  * infer about the information stored within them.
+ *
+ * Inference never writes to the graphs: the scores of each call are laid over the dense graph's
+ * own scores in an array of the call's own, and the junction tree keeps its message state in a
+ * workspace per thread. One instance and one tree can serve any number of threads at once with
+ * no locks and no copies.
  */
 public class HEXGraphMethods {
+	/**
+	 * The most states, summed over all cliques, {@link #marginalInference(Map)} runs exact
+	 * inference over before it samples instead
+	 */
+	public static final long DEFAULT_MAX_EXACT_STATES = 1L << 20;
+	
 	private HEXGraph<String> mDenseGraph;
 	private HEXGraph<String> mSparseGraph;
 	
-	private Map<HEXGraph<String>, Set<Configuration>> mStateSpaceMapping;
+	// state spaces are cached by dense graph fingerprint and classes, shared with copies
+	private StateSpaceCache mStateSpaceCache;
+	private long mDenseFingerprint;
 	
 	private NameSpace<String> mNameSpace;
 	
+	// the engine marginalInference settled on for the selected graph: a junction tree when its
+	// cliques are small enough, otherwise a sampler. Null until first asked for
+	private volatile JunctionTree<String> mExactTree;
+	private volatile GibbsSampler<String> mSampler;
+	
 	/**
 	 * Constructor that initializes the graph. The graph can be changed at a later time with the
 	 * selectGraph. Null can be passed in as the parameters to this constructor to create an
 	 * empty instance of this class.
 	 */
 	public HEXGraphMethods(HEXGraphFactory factory, String key, NameSpace<String> nameSpace) {
+		mStateSpaceCache = StateSpaceCache.getShared();
 		selectGraph(factory, key);
-		mStateSpaceMapping = new HashMap<HEXGraph<String>, Set<Configuration>>();
 		mNameSpace = nameSpace;
 	}
 	
-	private HEXGraphMethods(HEXGraph<String> denseGraph, HEXGraph<String> sparseGraph, NameSpace<String> nameSpace) {
+	/**
+	 * Wraps graphs that were built elsewhere, e.g. read back from a {@link CompiledHexModel}
+	 */
+	HEXGraphMethods(HEXGraph<String> denseGraph, HEXGraph<String> sparseGraph,
+			NameSpace<String> nameSpace) {
+		this(denseGraph, sparseGraph, nameSpace, StateSpaceCache.getShared(),
+				denseGraph.getFingerprint());
+	}
+	
+	private HEXGraphMethods(HEXGraph<String> denseGraph, HEXGraph<String> sparseGraph,
+			NameSpace<String> nameSpace, StateSpaceCache stateSpaceCache, long denseFingerprint) {
 		mDenseGraph = denseGraph;
 		mSparseGraph = sparseGraph;
+		mStateSpaceCache = stateSpaceCache;
+		mDenseFingerprint = denseFingerprint;
 		mNameSpace = nameSpace;
 	}
 	
+	/**
+	 * Returns a copy with its own graphs that shares this instance's state space cache
+	 */
 	public HEXGraphMethods getDeepCopy() {
 		return new HEXGraphMethods(
 				mDenseGraph.getDeepCopy(),
 				mSparseGraph.getDeepCopy(),
-				mNameSpace);
+				mNameSpace,
+				mStateSpaceCache,
+				mDenseFingerprint);
+	}
+	
+	/**
+	 * Replaces the state space cache, e.g. to give this instance a private cache with its own
+	 * bound instead of the shared one
+	 */
+	public void setStateSpaceCache(StateSpaceCache stateSpaceCache) {
+		mStateSpaceCache = stateSpaceCache;
+	}
+	
+	public StateSpaceCache getStateSpaceCache() {
+		return mStateSpaceCache;
 	}
 	
 	/**
-	 * Simple call to set the scores in the graph 
+	 * Returns the graph's scores with the given ones laid over them. Classes not in the graph are
+	 * ignored, and the graph itself is left alone.
 	 */
-	private void setScores(Map<String, Double> scores){
-		mDenseGraph.setScores(scores);
+	private double[] getScores(Map<String, Double> scores) {
+		double[] result = mDenseGraph.getScores();
+		for (Map.Entry<String, Double> entry : scores.entrySet()) {
+			if (mDenseGraph.hasNode(entry.getKey())) {
+				result[mNameSpace.getIndex(entry.getKey())] = entry.getValue();
+			}
+		}
+		return result;
 	}
 	
 	/**
-	 * Simple call to set the scores in the graph 
+	 * Returns the graph's scores with the given ones laid over them, ignoring entries past the
+	 * classes of the graph and the ones of classes not in it
 	 */
-	private void setScores(double[] scores) {
-		mDenseGraph.setScores(scores);
+	private double[] getScores(double[] scores) {
+		double[] result = mDenseGraph.getScores();
+		BitSet nodes = mDenseGraph.getNodeIndices();
+		for (int i = nodes.nextSetBit(0); i >= 0 && i < scores.length; i = nodes.nextSetBit(i + 1)) {
+			result[i] = scores[i];
+		}
+		return result;
 	}
 	
 	/**
@@ -70,28 +134,53 @@ public class HEXGraphMethods {
 		if (factory == null || key == null) return;
 		mDenseGraph = factory.getDenseGraph(key);
 		mSparseGraph = factory.getSparseGraph(key);
+		mDenseFingerprint = mDenseGraph.getFingerprint();
+		synchronized (this) {
+			mExactTree = null;
+			mSampler = null;
+		}
 	}
 	
 	/**
-	 * Builds a new {@link JunctionTree} using the information encoded in our sparse {@link HEXGraph}
+	 * Builds a new {@link JunctionTree} using the information encoded in our sparse {@link HEXGraph},
+	 * triangulated with whichever heuristic has the lowest estimated message cost
 	 * @return a new JunctionTree with the information from our sparse graph
 	 */
 	public JunctionTree<String> buildJunctionTree() {
+		return buildJunctionTree(getCheapestTriangulation());
+	}
+
+	/**
+	 * Builds a new {@link JunctionTree} using the information encoded in our sparse {@link HEXGraph}
+	 * @param heuristic - the elimination heuristic used to triangulate the sparse graph
+	 * @return a new JunctionTree with the information from our sparse graph
+	 */
+	public JunctionTree<String> buildJunctionTree(EliminationHeuristic heuristic) {
+		return buildJunctionTree(mSparseGraph.getTriangulation(heuristic, mDenseGraph,
+				DEFAULT_MAX_EXACT_STATES));
+	}
+
+	private JunctionTree<String> buildJunctionTree(Triangulation<String> triangulation) {
 		HEXGraph<String> graph = mSparseGraph.getDeepCopy();
-		graph.triangulate();
-		List<String> elimOrdering = graph.getEliminationOrdering();
+		graph.triangulate(triangulation);
+		int[] elimOrdering = graph.getEliminationOrder();
+		if (!graph.isPerfectEliminationOrder(elimOrdering)) {
+			throw new IllegalStateException("Triangulated graph is not chordal");
+		}
 		
 		JunctionTree<String> junctionTree = new JunctionTree<String>(mNameSpace, mDenseGraph.size());
 		
-		for (int i = 0; i < elimOrdering.size(); i++) {
+		// each clique is a node plus its triangulated neighbors later in the ordering
+		BitSet later = graph.getNodeIndices();
+		for (int curr : elimOrdering) {
+			BitSet members = graph.getTriangulatedIndices(curr);
+			members.and(later);
+			members.set(curr);
+			later.clear(curr);
+			
 			Set<String> clique = new HashSet<String>();
-			String curr = elimOrdering.get(i);
-			clique.add(curr);
-			Set<String> triNeighbors = graph.getTriangulatedNeighbors(curr);
-			for (int j = i; j < elimOrdering.size(); j++) {
-				if (triNeighbors.contains(elimOrdering.get(j))) {
-					clique.add(elimOrdering.get(j));
-				}
+			for (int i = members.nextSetBit(0); i >= 0; i = members.nextSetBit(i + 1)) {
+				clique.add(mNameSpace.get(i));
 			}
 			junctionTree.addNode(clique);
 		}
@@ -100,42 +189,68 @@ public class HEXGraphMethods {
 		
 		return junctionTree;
 	}
+
+	/**
+	 * Triangulates the sparse graph with every {@link EliminationHeuristic} without changing it,
+	 * so their max clique size, total clique states and estimated message cost can be compared.
+	 * States are counted up to {@link #DEFAULT_MAX_EXACT_STATES} per clique.
+	 * @return a map from heuristic to the triangulation it produces
+	 */
+	public Map<EliminationHeuristic, Triangulation<String>> getTriangulations() {
+		Map<EliminationHeuristic, Triangulation<String>> triangulations = 
+				new EnumMap<EliminationHeuristic, Triangulation<String>>(EliminationHeuristic.class);
+		for (EliminationHeuristic heuristic : EliminationHeuristic.values()) {
+			triangulations.put(heuristic, mSparseGraph.getTriangulation(heuristic, mDenseGraph,
+					DEFAULT_MAX_EXACT_STATES));
+		}
+		return triangulations;
+	}
+
+	/**
+	 * Returns the triangulation of the sparse graph with the lowest estimated message cost,
+	 * preferring ones whose cliques all stay within {@link #DEFAULT_MAX_EXACT_STATES} states. Ties
+	 * go to the heuristic declared first.
+	 *
+	 * MIN_STATES counts the states of every clique it weighs, which for a hub with k unrelated
+	 * neighbors means 2^k, so it runs last and stops counting past the cheapest cost found so
+	 * far: a clique with more states than that can not be part of a cheaper triangulation.
+	 */
+	public Triangulation<String> getCheapestTriangulation() {
+		Triangulation<String> best = null;
+		for (EliminationHeuristic heuristic : EliminationHeuristic.values()) {
+			if (heuristic == EliminationHeuristic.MIN_STATES) continue;
+			best = getCheaper(best, mSparseGraph.getTriangulation(heuristic, mDenseGraph,
+					DEFAULT_MAX_EXACT_STATES));
+		}
+		long limit = best.exceedsStateLimit() ? DEFAULT_MAX_EXACT_STATES
+				: Math.max(1L, Math.min(best.getEstimatedMessageCost(), DEFAULT_MAX_EXACT_STATES));
+		return getCheaper(best, mSparseGraph.getTriangulation(EliminationHeuristic.MIN_STATES,
+				mDenseGraph, limit));
+	}
+
+	private static Triangulation<String> getCheaper(Triangulation<String> best,
+			Triangulation<String> other) {
+		if (best == null) return other;
+		if (best.exceedsStateLimit() != other.exceedsStateLimit()) {
+			return best.exceedsStateLimit() ? other : best;
+		}
+		return other.getEstimatedMessageCost() < best.getEstimatedMessageCost() ? other : best;
+	}
 	
 	/**
-	 * Treats the sparse graph as a generic CRF and runs message passing over the junction tree
-	 * built from the graph to determine the most likely single configuration of classes to match
-	 * a certain instance
+	 * Treats the sparse graph as a generic CRF and runs max-product message passing over the
+	 * junction tree built from the graph to determine the most likely single configuration of
+	 * classes to match a certain instance
 	 * 
 	 * @param tree - the junction tree built from our {@link HEXGraph}
-	 * @return a map of {@link Configuration} to score containing the top two configurations and 
-	 * 	their scores
+	 * @param scores - the score of each class
+	 * @return a map of the most likely {@link Configuration} to its probability
 	 */
-	public Map<Configuration, Double> exactInference(JunctionTree<String> tree) {
-		Map<JunctionTreeNode<String>, Set<Configuration>> stateSpaces = getJunctionTreeStateSpaces(tree);
-		Map<Configuration, Double> scores = 
-				tree.exactInference(listStateSpace(), stateSpaces, mDenseGraph.getScores());
-		Configuration bestConfig = null;
-		double bestScore = -1;
-		for (Configuration config : scores.keySet()) {
-			if (scores.get(config) > bestScore) {
-				bestScore = scores.get(config);
-				bestConfig = config;
-			}
-		}
+	public Map<Configuration, Double> exactInference(JunctionTree<String> tree,
+			Map<String, Double> scores) {
+		Pair<Configuration, Double> best = exactPairInference(tree, scores);
 		Map<Configuration, Double> finalMap = new HashMap<Configuration, Double>();
-		finalMap.put(bestConfig, bestScore);
-		if (Math.abs(bestScore - 1.0) < 0.005) {
-			scores.put(bestConfig, -1.0);
-			bestConfig = null;
-			bestScore = -1;
-			for (Configuration config : scores.keySet()) {
-				if (scores.get(config) > bestScore) {
-					bestScore = scores.get(config);
-					bestConfig = config;
-				}
-			}
-			finalMap.put(bestConfig, bestScore);
-		}
+		finalMap.put(best.first, best.second);
 		return finalMap;
 	}
 	
@@ -143,26 +258,40 @@ public class HEXGraphMethods {
 	 * An alternative to exactInference, in which the top result gets returned in the form of a
 	 * {@link Pair}, which is nice and lightweight.
 	 * 
-	 * Treats the sparse graph as a generic CRF and runs message passing over the junction tree
-	 * built from the graph to determine the most likely single configuration of classes to match
-	 * a certain instance.
+	 * Treats the sparse graph as a generic CRF and runs max-product message passing over the
+	 * junction tree built from the graph to determine the most likely single configuration of
+	 * classes to match a certain instance. This takes time linear in the size of the clique
+	 * state spaces, rather than in the size of the whole state space.
 	 * 
 	 * @param tree - the junction tree built from our {@link HEXGraph}
+	 * @param scores - the score of each class
 	 * @return a {@link Pair} with a of {@link Configuration} and a double score that represents 
-	 * 	the top configuration its score.
+	 * 	the top configuration its probability.
 	 */
-	public Pair<Configuration, Double> exactPairInference(JunctionTree<String> tree) {
-		Map<Configuration, Double> scores = 
-				tree.exactInference(listStateSpace(), getJunctionTreeStateSpaces(tree), mDenseGraph.getScores());
-		Configuration bestConfig = null;
-		double bestScore = -1;
-		for (Configuration config : scores.keySet()) {
-			if (scores.get(config) > bestScore) {
-				bestScore = scores.get(config);
-				bestConfig = config;
-			}
-		}
-		return new Pair<Configuration, Double>(bestConfig, bestScore);
+	public Pair<Configuration, Double> exactPairInference(JunctionTree<String> tree,
+			Map<String, Double> scores) {
+		return tree.exactMapInference(getJunctionTreeStateSpaces(tree), getScores(scores));
+	}
+	
+	public Pair<Configuration, Double> exactPairInference(JunctionTree<String> tree, double[] scores) {
+		return tree.exactMapInference(getJunctionTreeStateSpaces(tree), getScores(scores));
+	}
+	
+	/**
+	 * Treats the sparse graph as a generic CRF and runs k-best max-product message passing over
+	 * the junction tree built from the graph to find the k most likely configurations of classes
+	 * for a certain instance, without listing the whole state space.
+	 * 
+	 * @param tree - the junction tree built from our {@link HEXGraph}
+	 * @param scores - the score of each class
+	 * @param k - how many configurations to return, fewer if the graph has fewer
+	 * @return the configurations paired with their probabilities, most likely first
+	 */
+	public List<Pair<Configuration, Double>> exactKBestInference(
+			JunctionTree<String> tree,
+			Map<String, Double> scores,
+			int k) {
+		return tree.exactKBestInference(getJunctionTreeStateSpaces(tree), getScores(scores), k);
 	}
 	
 	/**
@@ -175,17 +304,15 @@ public class HEXGraphMethods {
 	public Map<String, Double> exactMarginalInference(
 			JunctionTree<String> tree,
 			double[] scores) {
-		setScores(scores);
 		Map<JunctionTreeNode<String>, Set<Configuration>> stateSpaces = getJunctionTreeStateSpaces(tree);
-		return tree.exactMarginalInference(mDenseGraph.size(), stateSpaces, mDenseGraph.getScores());
+		return tree.exactMarginalInference(mDenseGraph.size(), stateSpaces, getScores(scores));
 	}
 	
 	public Map<String, Double> exactMarginalInference(
 			JunctionTree<String> tree,
 			Map<String, Double> scores) {
-		setScores(scores);
 		Map<JunctionTreeNode<String>, Set<Configuration>> stateSpaces = getJunctionTreeStateSpaces(tree);
-		return tree.exactMarginalInference(mDenseGraph.size(), stateSpaces, mDenseGraph.getScores());
+		return tree.exactMarginalInference(mDenseGraph.size(), stateSpaces, getScores(scores));
 	}
 	
 	/**
@@ -196,141 +323,298 @@ public class HEXGraphMethods {
 	 * @param stateSpaces - the junction tree state space
 	 * @return a Map of String to double containing the class name and its marginal likelihood
 	 */
-	public synchronized Map<String, Double> exactMarginalInference(
+	public Map<String, Double> exactMarginalInference(
 			JunctionTree<String> tree, 
 			Map<JunctionTreeNode<String>, Set<Configuration>> stateSpaces,
 			double[] scores) {
-		setScores(scores);
-		return tree.exactMarginalInference(mDenseGraph.size(), stateSpaces, mDenseGraph.getScores());
+		return tree.exactMarginalInference(mDenseGraph.size(), stateSpaces, getScores(scores));
 	}
 	
-	public synchronized Map<String, Double> exactMarginalInference(
+	public Map<String, Double> exactMarginalInference(
 			JunctionTree<String> tree, 
 			Map<JunctionTreeNode<String>, Set<Configuration>> stateSpaces,
 			Map<String,Double> scores) {
-		setScores(scores);
-		return tree.exactMarginalInference(mDenseGraph.size(), stateSpaces, mDenseGraph.getScores());
+		return tree.exactMarginalInference(mDenseGraph.size(), stateSpaces, getScores(scores));
 	}
 	
 	/**
-	 * Returns a set of all possible configurations that the graph could be in
-	 * @return a set of all possible configurations that the graph could be in
+	 * Runs marginal inference like exactMarginalInference, but reuses the messages of the last
+	 * incremental call on the same tree, so when only a few scores change, e.g. rescoring an
+	 * instance after a small change to its features, only the cliques holding those classes and
+	 * their paths to the root are recomputed.
+	 * @param tree - the junction tree built from our {@link HEXGraph}
+	 * @param tolerance - score changes no bigger than this are ignored; 0 for exact results
+	 * @return a Map of String to double containing the class name and its marginal likelihood
 	 */
-	public Set<Configuration> listStateSpace() {
-		// Check to make sure graph is not empty
-		if (mDenseGraph.isEmpty()) {
-			return new HashSet<Configuration>();
-		} else if (mStateSpaceMapping.containsKey(mDenseGraph)) {
-			return mStateSpaceMapping.get(mDenseGraph);
-		} else {
-			Set<Configuration> configSet = new HashSet<Configuration>();
-			listStateSpace(new Configuration(mNameSpace.size()), configSet, mDenseGraph);	
-			
-			mStateSpaceMapping.put(mDenseGraph, configSet);
-			return configSet;
-		}
+	public Map<String, Double> incrementalMarginalInference(
+			JunctionTree<String> tree,
+			double[] scores,
+			double tolerance) {
+		return tree.updateMarginalInference(mDenseGraph.size(), getJunctionTreeStateSpaces(tree),
+				getScores(scores), tolerance);
+	}
+	
+	public Map<String, Double> incrementalMarginalInference(
+			JunctionTree<String> tree,
+			Map<String, Double> scores,
+			double tolerance) {
+		return tree.updateMarginalInference(mDenseGraph.size(), getJunctionTreeStateSpaces(tree),
+				getScores(scores), tolerance);
 	}
 	
 	/**
-	 * Helper method to get the state spaces for a {@link JunctionTree}
-	 * @return the state spaces of JunctionTree tree
+	 * Runs marginal inference for a whole batch of score vectors in one pass over the junction
+	 * tree, rather than one pass per instance. The graph's own scores are left alone.
+	 * @param tree - the junction tree built from our {@link HEXGraph}
+	 * @param scores - scores[j][c] is the score of class c for instance j
+	 * @return marginals[j][c], the marginal likelihood of class c for instance j
 	 */
-	public Map<JunctionTreeNode<String>, Set<Configuration>> getJunctionTreeStateSpaces(JunctionTree<String> tree) {
-		Map<JunctionTreeNode<String>, Set<Configuration>> stateSpaces = 
-				new HashMap<JunctionTreeNode<String>, Set<Configuration>>();
-		for (JunctionTreeNode<String> node : tree.getNodeSet()) {
-			Set<Configuration> config = listStateSpace(mDenseGraph.getSubgraph(node.getMembers()));
-			stateSpaces.put(node, config);
+	public double[][] exactMarginalInference(JunctionTree<String> tree, double[][] scores) {
+		return tree.exactMarginalInference(getJunctionTreeStateSpaces(tree), scores);
+	}
+	
+	public double[][] exactMarginalInference(
+			JunctionTree<String> tree,
+			Map<JunctionTreeNode<String>, Set<Configuration>> stateSpaces,
+			double[][] scores) {
+		return tree.exactMarginalInference(stateSpaces, scores);
+	}
+	
+	/**
+	 * Turns known labels into evidence to condition inference on. A class clamped to true makes
+	 * its ancestors true and every class they or it exclude false; a class clamped to false
+	 * makes its descendants false. This is carried on until nothing changes, so the result
+	 * holds every class the labels decide.
+	 * @param labels - the classes known to be true or false
+	 * @return a configuration over the decided classes
+	 * @throws IllegalArgumentException if a label is not a class of the graph, or the labels
+	 * 	force some class to be both true and false
+	 */
+	public Configuration clamp(Map<String, Boolean> labels) {
+		TriState[] values = new TriState[mNameSpace.size()];
+		Arrays.fill(values, TriState.UNSET);
+		Deque<Integer> pending = new ArrayDeque<Integer>();
+		for (Map.Entry<String, Boolean> label : labels.entrySet()) {
+			if (!mDenseGraph.hasNode(label.getKey())) {
+				throw new IllegalArgumentException("No class " + label.getKey() + " in the graph");
+			}
+			assign(values, mNameSpace.getIndex(label.getKey()),
+					label.getValue() ? TriState.TRUE : TriState.FALSE, pending);
+		}
+		while (!pending.isEmpty()) {
+			int i = pending.pop();
+			if (values[i] == TriState.TRUE) {
+				assign(values, mDenseGraph.getAncestorIndices(i), TriState.TRUE, pending);
+				assign(values, mDenseGraph.getExcludedIndices(i), TriState.FALSE, pending);
+			} else {
+				assign(values, mDenseGraph.getDescendantIndices(i), TriState.FALSE, pending);
+			}
+		}
+		return new Configuration(values);
+	}
+	
+	private void assign(TriState[] values, BitSet classes, TriState value, Deque<Integer> pending) {
+		for (int i = classes.nextSetBit(0); i >= 0; i = classes.nextSetBit(i + 1)) {
+			assign(values, i, value, pending);
 		}
-		return stateSpaces;
+	}
+	
+	private void assign(TriState[] values, int i, TriState value, Deque<Integer> pending) {
+		if (values[i] == value) return;
+		if (values[i] != TriState.UNSET) {
+			throw new IllegalArgumentException("Evidence forces " + mNameSpace.get(i)
+					+ " to be both true and false");
+		}
+		values[i] = value;
+		pending.push(i);
 	}
 	
 	/**
-	 * Returns a set of all possible configurations for the graph. Used for clique state space
-	 * in junction tree inference
-	 * @return a set of all possible configurations for the graph.
+	 * Runs marginal inference conditioned on evidence: the classes it decides come out as 1 or
+	 * 0 and the others as their marginal likelihood given it
+	 * @param tree - the junction tree built from our {@link HEXGraph}
+	 * @param evidence - from {@link #clamp(Map)}
+	 * @return a Map of String to double containing the class name and its marginal likelihood
 	 */
-	private Set<Configuration> listStateSpace(HEXGraph<String> graph) {
-		// Check to make sure graph is not empty
-		if (graph.isEmpty()) {
-			return new HashSet<Configuration>();
-		} else if (mStateSpaceMapping.containsKey(graph)) {
-			return mStateSpaceMapping.get(graph);
-		} else {
-			Set<Configuration> configSet = new HashSet<Configuration>();
-			listStateSpace(new Configuration(mNameSpace.size()), configSet, graph);
-			
-			mStateSpaceMapping.put(graph, configSet);
-			return configSet;
+	public Map<String, Double> exactMarginalInference(
+			JunctionTree<String> tree,
+			Map<String, Double> scores,
+			Configuration evidence) {
+		return tree.exactMarginalInference(mDenseGraph.size(), getJunctionTreeStateSpaces(tree),
+				getScores(scores), evidence);
+	}
+	
+	public Map<String, Double> exactMarginalInference(
+			JunctionTree<String> tree,
+			double[] scores,
+			Configuration evidence) {
+		return tree.exactMarginalInference(mDenseGraph.size(), getJunctionTreeStateSpaces(tree),
+				getScores(scores), evidence);
+	}
+	
+	/**
+	 * Finds the most likely configuration that agrees with evidence, like
+	 * {@link #exactPairInference(JunctionTree, Map)}
+	 * @param evidence - from {@link #clamp(Map)}
+	 * @return the configuration and its probability given the evidence
+	 */
+	public Pair<Configuration, Double> exactPairInference(JunctionTree<String> tree,
+			Map<String, Double> scores, Configuration evidence) {
+		return tree.exactMapInference(getJunctionTreeStateSpaces(tree), getScores(scores), evidence);
+	}
+	
+	public Pair<Configuration, Double> exactPairInference(JunctionTree<String> tree,
+			double[] scores, Configuration evidence) {
+		return tree.exactMapInference(getJunctionTreeStateSpaces(tree), getScores(scores), evidence);
+	}
+	
+	/**
+	 * Returns a new {@link GibbsSampler} over the dense graph with the default budgets, for
+	 * graphs whose junction tree cliques are too big for exact inference
+	 */
+	public GibbsSampler<String> getSampler() {
+		return new GibbsSampler<String>(mDenseGraph, mNameSpace);
+	}
+	
+	/**
+	 * Estimates the marginal likelihood of each class by sampling legal configurations, within
+	 * the sampler's sweep and time budgets. Takes time linear in the number of classes and
+	 * relations per sweep whatever the treewidth of the graph.
+	 * @param sampler - from {@link #getSampler()}
+	 * @return the marginals with their standard errors
+	 */
+	public GibbsSampler.Estimate<String> approximateMarginalInference(
+			GibbsSampler<String> sampler,
+			Map<String, Double> scores) {
+		return sampler.sample(getScores(scores));
+	}
+	
+	public GibbsSampler.Estimate<String> approximateMarginalInference(
+			GibbsSampler<String> sampler,
+			double[] scores) {
+		return sampler.sample(getScores(scores));
+	}
+	
+	/**
+	 * Returns whether the sparse graph triangulates, with some heuristic that does not count
+	 * states to pick nodes, into cliques with at most maxStates legal states in all. The states
+	 * are counted with that bound, so on a graph too wide for exact inference this gives up
+	 * early.
+	 */
+	public boolean isExactTractable(long maxStates) {
+		maxStates = Math.min(maxStates, Long.MAX_VALUE - 1);
+		for (EliminationHeuristic heuristic : EliminationHeuristic.values()) {
+			if (heuristic == EliminationHeuristic.MIN_STATES) continue;
+			long states = 0;
+			for (BitSet clique : mSparseGraph.getTriangulation(heuristic, null).getCliques()) {
+				states += mDenseGraph.countStates(clique, maxStates - states);
+				if (states > maxStates) break;
+			}
+			if (states <= maxStates) return true;
 		}
-		
+		return false;
 	}
 	
 	/**
-	 * Subroutine to assist with the listing of the state space
-	 * 
-	 * @param currentConfig The current configuration we are considering
-	 * @param configSet A reference to the set of configurations being returned
-	 * @param graph the current subgraph we are considering
+	 * Returns the marginal likelihood of each class by whichever engine fits the graph: exact
+	 * inference over the cheapest junction tree when {@link #isExactTractable(long)} holds for
+	 * {@link #DEFAULT_MAX_EXACT_STATES}, or else a {@link GibbsSampler} with the default
+	 * budgets. The choice, and the tree, are made once, on the first call for the selected graph.
+	 * The exact and approximate entry points never switch engines; this is the one that does.
+	 * @return the marginals with their standard errors and whether sampling converged. Exact
+	 * 	marginals come back converged with no error and no sweeps.
 	 */
-	private void listStateSpace(Configuration currentConfig,
-			Set<Configuration> configSet,
-			HEXGraph<String> graph) {
-		
-		// BASE CASE. If there is nothing left to do we are at a leaf and thus we add it
-		if (graph.isEmpty()) {
-			configSet.add(currentConfig);
-			return;
+	public GibbsSampler.Estimate<String> marginalInference(Map<String, Double> scores) {
+		return marginalInference(getScores(scores));
+	}
+	
+	public GibbsSampler.Estimate<String> marginalInference(double[] scores) {
+		JunctionTree<String> tree = mExactTree;
+		GibbsSampler<String> sampler = mSampler;
+		if (tree == null && sampler == null) {
+			synchronized (this) {
+				chooseEngine();
+				tree = mExactTree;
+				sampler = mSampler;
+			}
 		}
-				
-		// set a random pivot pivot
-		String pivot = graph.getNodeList().get(new Random().nextInt(graph.size()));
-		
-		// Define the two node subsets we will use to get subgraphs to recurse over
-		Set<String> v0 = new HashSet<String>();
-		Set<String> v1 = new HashSet<String>();
-		
-		for (String excluded : graph.getExcluded(pivot)) {
-			v0.add(excluded);
+		if (sampler != null) {
+			return sampler.sample(getScores(scores));
 		}
-		for (String overlapping : graph.getOverlapping(pivot)) {
-			v0.add(overlapping);
-			v1.add(overlapping);
+		int numClasses = mDenseGraph.size();
+		Map<String, Double> result = tree.exactMarginalInference(numClasses,
+				getJunctionTreeStateSpaces(tree), getScores(scores));
+		double[] marginals = new double[numClasses];
+		for (int i = 0; i < numClasses; i++) {
+			marginals[i] = result.get(mNameSpace.get(i));
 		}
-		for (String ancestor : graph.getAncestors(pivot)) {
-			v0.add(ancestor);
+		return GibbsSampler.Estimate.exact(mNameSpace, marginals);
+	}
+	
+	/**
+	 * Settles on the engine {@link #marginalInference(double[])} runs for the selected graph,
+	 * unless it already has. Called with this locked, so the tree is only built once.
+	 */
+	private void chooseEngine() {
+		if (mExactTree != null || mSampler != null) return;
+		if (isExactTractable(DEFAULT_MAX_EXACT_STATES)) {
+			mExactTree = buildJunctionTree();
+		} else {
+			mSampler = getSampler();
 		}
-		for (String descendant : graph.getDescendants(pivot)) {
-			v1.add(descendant);
+	}
+	
+	/**
+	 * Returns a set of all possible configurations that the graph could be in
+	 * @return a set of all possible configurations that the graph could be in
+	 */
+	public Set<Configuration> listStateSpace() {
+		return listStateSpace(mDenseGraph.getNodeIndices());
+	}
+	
+	/**
+	 * Returns a streaming enumerator over the configurations of the given classes, for callers
+	 * that can consume states one at a time instead of holding the whole set
+	 * @param nodes - the name space indices of the classes to enumerate
+	 */
+	public StateSpaceEnumerator getStateSpaceEnumerator(BitSet nodes) {
+		return new StateSpaceEnumerator(mDenseGraph, nodes);
+	}
+	
+	/**
+	 * Helper method to get the state spaces for a {@link JunctionTree}. They are looked up in the
+	 * state space cache the first time and pinned to the tree after that, so every later call
+	 * hands out the same sets, and the tree keeps its tables, whatever the cache evicts.
+	 * @return the state spaces of JunctionTree tree
+	 */
+	public Map<JunctionTreeNode<String>, Set<Configuration>> getJunctionTreeStateSpaces(JunctionTree<String> tree) {
+		Map<JunctionTreeNode<String>, Set<Configuration>> pinned =
+				tree.getPinnedStateSpaces(mDenseFingerprint);
+		if (pinned == null) {
+			Map<JunctionTreeNode<String>, Set<Configuration>> stateSpaces = 
+					new HashMap<JunctionTreeNode<String>, Set<Configuration>>();
+			for (JunctionTreeNode<String> node : tree.getNodeSet()) {
+				stateSpaces.put(node, listStateSpace(node.getMembers()));
+			}
+			pinned = tree.pinStateSpaces(mDenseFingerprint, stateSpaces);
 		}
-		
-		Configuration s0 = currentConfig.getDeepCopy();
-		Configuration s1 = currentConfig;
-		
-		// assign values from the direct relations TO HALF the graph
-		s0.setValue(mNameSpace.getIndex(pivot), TriState.TRUE);
-		s0.setValues(getSetIndices(graph.getAncestors(pivot)), TriState.TRUE);
-		s0.setValues(getSetIndices(graph.getExcluded(pivot)), TriState.FALSE);
-		
-		// Here is the other set of relations we need to recurse over
-		s1.setValue(mNameSpace.getIndex(pivot), TriState.FALSE);
-		s1.setValues(getSetIndices(graph.getDescendants(pivot)), TriState.FALSE);
-		
-		// recursively call this method on v0 and v1. the results should automatically merge
-		listStateSpace(s0, configSet, graph.getSubgraphMinus(v0));
-		listStateSpace(s1, configSet, graph.getSubgraphMinus(v1));
+		return new HashMap<JunctionTreeNode<String>, Set<Configuration>>(pinned);
 	}
 	
 	/**
-	 * Helper method to convert from a set of strings to a set of indices using our {@link NameSpace}
-	 * TODO: replace this with better integration into hexgraph itself
+	 * Returns a set of all possible configurations of the given classes in the dense graph. Used
+	 * for clique state space in junction tree inference
+	 * @return an unmodifiable set of all possible configurations of the classes, empty if there
+	 * 	are none
 	 */
-	private Set<Integer> getSetIndices(Set<String> set) {
-		Set<Integer> indices = new HashSet<Integer>();
-		for (String ancestor : set) {
-			indices.add(mNameSpace.getIndex(ancestor));
+	private Set<Configuration> listStateSpace(BitSet nodes) {
+		BitSet key = mDenseGraph.getNodeIndices();
+		key.and(nodes);
+		// Check to make sure graph is not empty
+		if (key.isEmpty()) {
+			return new HashSet<Configuration>();
 		}
-		return indices;
+		return mStateSpaceCache.get(mDenseGraph, mDenseFingerprint, key);
 	}
 	
 }
@@ -0,0 +1,66 @@
+package hexgraph;
+
+import java.util.Set;
+
+/**
+ * Everything message passing over a {@link MessageSchedule} writes, so the schedule, and the
+ * {@link JunctionTree} it comes from, can be shared by any number of threads while each one runs
+ * inference in a workspace of its own. A workspace is not thread safe itself; a tree keeps one
+ * per thread and reuses it from call to call.
+ *
+ * Entries are indexed like the cliques of the schedule. The messages at index i are the ones
+ * over the separator between clique i and its parent.
+ */
+final class InferenceWorkspace {
+	private final Object mSchedule;
+
+	// the state space each clique's tables were built from
+	final Set<Configuration>[] mBound;
+	final Configuration[][] mStates;
+	final Configuration[][] mSeparatorStates;
+	// maps the states of clique i and of its parent to the states of the separator between them
+	final int[][] mChildProjection;
+	final int[][] mParentProjection;
+	// the number of states in the tables of clique i and every clique below it
+	final long[] mSubtreeStates;
+
+	// the belief of each clique, and the messages it sent up and got back down
+	final Factor[] mFactors;
+	final Factor[] mPhiStar;
+	final Factor[] mPhiStarStar;
+	final Factor[] mDivided;
+
+	// the scores each tree was last calibrated with by an incremental update, indexed by class,
+	// and the marginals that update left, sized by the tree that runs it
+	final double[] mReference;
+	final boolean[] mCalibrated;
+	double[] mMarginals;
+
+	// the evidence the running call is conditioned on, null for none. Clique tables are bound to
+	// the full state spaces either way, and the states that disagree are scored out
+	Configuration mEvidence;
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	InferenceWorkspace(Object schedule, int cliques, int trees, int numClasses) {
+		mSchedule = schedule;
+		mBound = (Set<Configuration>[]) new Set[cliques];
+		mStates = new Configuration[cliques][];
+		mSeparatorStates = new Configuration[cliques][];
+		mChildProjection = new int[cliques][];
+		mParentProjection = new int[cliques][];
+		mSubtreeStates = new long[cliques];
+		mFactors = new Factor[cliques];
+		mPhiStar = new Factor[cliques];
+		mPhiStarStar = new Factor[cliques];
+		mDivided = new Factor[cliques];
+		mReference = new double[numClasses];
+		mCalibrated = new boolean[trees];
+	}
+
+	/**
+	 * Returns whether this workspace was made for schedule
+	 */
+	boolean isFor(Object schedule) {
+		return mSchedule == schedule;
+	}
+}
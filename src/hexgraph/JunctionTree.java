@@ -1,13 +1,20 @@
 package hexgraph;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.RecursiveAction;
 
 import util.NameSpace;
-import util.TriState;
+import util.Pair;
 
 /**
  * @author dgorrie
@@ -17,18 +24,42 @@ import util.TriState;
  * 
  * Parameter V is the label class from the associated HEXGraph.
  * 
- * TODO: check for number of connected components and run message passing over each one
+ * Cliques that share no classes end up in separate trees, so this is really a junction forest.
+ * Message passing runs over each tree on its own.
+ * 
+ * Once built, a tree is never written to by inference. Messages and beliefs live in an
+ * {@link InferenceWorkspace} kept per thread, so any number of threads can run inference on the
+ * same tree at once without locks or copies. Adding nodes or edges while inference runs is not
+ * supported.
  */
 public class JunctionTree<V> {
 	private Set<JunctionTreeNode<V>> nodes;
 	private Set<JunctionTreeEdge<V>> edges;
 	
+	// the cliques containing each class, indexed by name space index
+	private final List<List<JunctionTreeNode<V>>> mCliquesByMember;
+	
+	// the nodes of each connected tree in the forest, root first. Null until asked for, and
+	// reset whenever a node or edge is added
+	private volatile List<List<JunctionTreeNode<V>>> mComponents;
+	private volatile MessageSchedule<V> mSchedule;
+	private volatile int mParallelThreshold = MessageSchedule.DEFAULT_PARALLEL_THRESHOLD;
+	// the message state of each thread running inference on this tree
+	private final ThreadLocal<InferenceWorkspace> mWorkspaces = new ThreadLocal<InferenceWorkspace>();
+	// the state space of every clique, kept from the first time they were listed for a dense
+	// graph. Null until then, and reset whenever a node is added
+	private volatile PinnedStateSpaces<V> mPinned;
+	
 	private final NameSpace<V> mNameSpace;
 	private final int mNumClasses;
 	
 	public JunctionTree(NameSpace<V> nameSpace, int numClasses) {
-		nodes = new HashSet<JunctionTreeNode<V>>();
+		nodes = new LinkedHashSet<JunctionTreeNode<V>>();
 		edges = new HashSet<JunctionTreeEdge<V>>();
+		mCliquesByMember = new ArrayList<List<JunctionTreeNode<V>>>(nameSpace.size());
+		for (int i = 0; i < nameSpace.size(); i++) {
+			mCliquesByMember.add(new ArrayList<JunctionTreeNode<V>>());
+		}
 		mNameSpace = nameSpace;
 		mNumClasses = numClasses;
 	}
@@ -50,38 +81,97 @@ public class JunctionTree<V> {
 		return other;
 	}
 	
-	private boolean nodeConsumes(JunctionTreeNode<V> node, Set<V> members) {
-		BitSet nodeMembers = node.getMembers();
-		for (V member : members) {
-			if (!nodeMembers.get(mNameSpace.getIndex(member))) {
-				return false;
-			}
+	/**
+	 * Returns the state spaces pinned to this tree for the dense graph with the given
+	 * fingerprint, or null if there are none
+	 */
+	Map<JunctionTreeNode<V>, Set<Configuration>> getPinnedStateSpaces(long fingerprint) {
+		PinnedStateSpaces<V> pinned = mPinned;
+		return pinned != null && pinned.mFingerprint == fingerprint ? pinned.mStateSpaces : null;
+	}
+	
+	/**
+	 * Pins the state space of every clique, listed from the dense graph with the given
+	 * fingerprint, to this tree, unless some are pinned for it already. Message passing binds
+	 * its tables to state spaces by identity, so a tree has to be handed the same sets every
+	 * time to reuse them, even after a bounded {@link StateSpaceCache} has dropped them.
+	 * @return the state spaces pinned to this tree, which are stateSpaces unless a racing call
+	 * 	pinned others first
+	 */
+	synchronized Map<JunctionTreeNode<V>, Set<Configuration>> pinStateSpaces(long fingerprint,
+			Map<JunctionTreeNode<V>, Set<Configuration>> stateSpaces) {
+		Map<JunctionTreeNode<V>, Set<Configuration>> pinned = getPinnedStateSpaces(fingerprint);
+		if (pinned == null) {
+			pinned = Collections.unmodifiableMap(
+					new HashMap<JunctionTreeNode<V>, Set<Configuration>>(stateSpaces));
+			mPinned = new PinnedStateSpaces<V>(fingerprint, pinned);
 		}
-		return true;
+		return pinned;
 	}
 	
+	private static final class PinnedStateSpaces<V> {
+		private final long mFingerprint;
+		private final Map<JunctionTreeNode<V>, Set<Configuration>> mStateSpaces;
+		
+		PinnedStateSpaces(long fingerprint, Map<JunctionTreeNode<V>, Set<Configuration>> stateSpaces) {
+			mFingerprint = fingerprint;
+			mStateSpaces = stateSpaces;
+		}
+	}
+	
+	/**
+	 * Adds a clique to the tree, unless an existing clique already holds all of its members.
+	 * Only the cliques sharing the member with the fewest cliques can hold it, so those are the
+	 * only ones checked.
+	 */
 	public void addNode(Set<V> members) {
-		for (JunctionTreeNode<V> node : nodes) {
-			if (nodeConsumes(node, members)) return;
+		BitSet memberIndices = new BitSet(mNumClasses);
+		for (V member : members) {
+			memberIndices.set(mNameSpace.getIndex(member));
+		}
+		List<JunctionTreeNode<V>> candidates = null;
+		for (int i = memberIndices.nextSetBit(0); i >= 0; i = memberIndices.nextSetBit(i + 1)) {
+			List<JunctionTreeNode<V>> cliques = mCliquesByMember.get(i);
+			if (candidates == null || cliques.size() < candidates.size()) {
+				candidates = cliques;
+			}
+		}
+		if (candidates != null) {
+			for (JunctionTreeNode<V> node : candidates) {
+				if (node.containsAll(memberIndices)) return;
+			}
 		}
-		nodes.add(new JunctionTreeNode<V>(members, mNumClasses, mNameSpace));
-		// System.out.println("added node " + members.size() + " " + members.toString());
+		indexNode(new JunctionTreeNode<V>(members, mNumClasses, mNameSpace));
 	}
 	
-	private JunctionTreeNode<V> addNode(BitSet members) {
+	JunctionTreeNode<V> addNode(BitSet members) {
 		Set<V> mems = new HashSet<V>();
-		for (int i = 0; i < members.size(); i++)
-			if (members.get(i)) mems.add(mNameSpace.get(i));
+		for (int i = members.nextSetBit(0); i >= 0; i = members.nextSetBit(i + 1))
+			mems.add(mNameSpace.get(i));
 		JunctionTreeNode<V> newNode = new JunctionTreeNode<V>(mems, mNumClasses, mNameSpace);
-		nodes.add(newNode);
+		indexNode(newNode);
 		return newNode;
 	}
 	
-	private void addEdge(JunctionTreeNode<V> first, JunctionTreeNode<V> second) {
+	private void indexNode(JunctionTreeNode<V> node) {
+		nodes.add(node);
+		mComponents = null;
+		mSchedule = null;
+		mPinned = null;
+		BitSet members = node.getMembers();
+		for (int i = members.nextSetBit(0); i >= 0; i = members.nextSetBit(i + 1)) {
+			mCliquesByMember.get(i).add(node);
+		}
+	}
+	
+	void addEdge(JunctionTreeNode<V> first, JunctionTreeNode<V> second) {
 		JunctionTreeEdge<V> newEdge = new JunctionTreeEdge<V>(first, second);
 		if (newEdge.weight != 0) {
 			first.addEdge(newEdge);
 			second.addEdge(newEdge);
+			edges.add(newEdge);
+			mComponents = null;
+			mSchedule = null;
 		}
 	}
 	
@@ -95,297 +185,523 @@ public class JunctionTree<V> {
 	}
 	
 	/**
-	 * Builds a graph that with all the relations in the junction tree and runs a maximum
-	 * spanning tree algorithm over that graph to find the final set of edges that should be
-	 * retained
+	 * Returns the connected trees of this junction forest. Each list holds the nodes of one tree
+	 * in breadth first order from its root, which is the tree's center: the middle of its longest
+	 * path, so no clique is further from the root than it has to be and the root's subtrees are
+	 * as even as the tree allows for passing messages over them side by side.
 	 */
-	public void buildEdges() {
-		
-		Set<JunctionTreeNode<V>> unseen = new HashSet<JunctionTreeNode<V>>();
-		Set<JunctionTreeNode<V>> seen = new HashSet<JunctionTreeNode<V>>();
-		JunctionTreeNode<V> curr = null;
-		
-		for (JunctionTreeNode<V> first : nodes) {
-			for (JunctionTreeNode<V> second : nodes) {
-				if (!first.equals(second)) {					
-					addEdge(first, second);
+	public List<List<JunctionTreeNode<V>>> getComponents() {
+		List<List<JunctionTreeNode<V>>> result = mComponents;
+		if (result == null) {
+			List<List<JunctionTreeNode<V>>> components = new ArrayList<List<JunctionTreeNode<V>>>();
+			Set<JunctionTreeNode<V>> seen = new HashSet<JunctionTreeNode<V>>();
+			Map<JunctionTreeNode<V>, JunctionTreeNode<V>> parents =
+					new HashMap<JunctionTreeNode<V>, JunctionTreeNode<V>>();
+			for (JunctionTreeNode<V> node : nodes) {
+				if (seen.contains(node)) continue;
+				// the node furthest from any node is one end of a longest path, and the node
+				// furthest from that end is the other one
+				List<JunctionTreeNode<V>> component = breadthFirst(node, parents);
+				seen.addAll(component);
+				JunctionTreeNode<V> end = component.get(component.size() - 1);
+				List<JunctionTreeNode<V>> fromEnd = breadthFirst(end, parents);
+				List<JunctionTreeNode<V>> path = new ArrayList<JunctionTreeNode<V>>();
+				for (JunctionTreeNode<V> n = fromEnd.get(fromEnd.size() - 1); n != null; n = parents.get(n)) {
+					path.add(n);
 				}
+				JunctionTreeNode<V> center = path.get(path.size() / 2);
+				components.add(Collections.unmodifiableList(breadthFirst(center, parents)));
 			}
-			unseen.add(first);
-			curr = first;
+			result = Collections.unmodifiableList(components);
+			mComponents = result;
 		}
+		return result;
+	}
 	
-		// at this point we have all the edges built, now we find the spanning tree (Prims)
-		Set<JunctionTreeEdge<V>> finalEdges = new HashSet<JunctionTreeEdge<V>>();
-		
-		while (!unseen.isEmpty()) {
-			int maxCount = -1;
-			JunctionTreeEdge<V> bestEdge = null;
-			if (finalEdges.isEmpty()) {
-				for (JunctionTreeEdge<V> edge : curr.getEdges()) {
-					if (edge.weight > maxCount) {
-						bestEdge = edge;
-						maxCount = edge.weight;
-					}
-				}
-				if (bestEdge == null) {
-					return;
-				} else {
-					finalEdges.add(bestEdge);
-					unseen.remove(bestEdge.first);
-					seen.add(bestEdge.first);
-					unseen.remove(bestEdge.second);
-					seen.add(bestEdge.second);
-				}
-			} else {
-				for (JunctionTreeNode<V> node : seen) {
-					for (JunctionTreeEdge<V> edge : node.getEdges()) {
-						if (edge.weight > maxCount && unseen.contains(edge.getOther(node))) {
-							bestEdge = edge;
-							maxCount = edge.weight;
-						}
-					}
-				}
-				if (bestEdge == null) {
-					throw new IllegalStateException("Error while building edges");
-				} else {
-					finalEdges.add(bestEdge);
-					unseen.remove(bestEdge.first);
-					seen.add(bestEdge.first);
-					unseen.remove(bestEdge.second);
-					seen.add(bestEdge.second);
+	/**
+	 * Returns the nodes of root's tree in breadth first order from root, and records the parent
+	 * of each of them in parents, null for root
+	 */
+	private List<JunctionTreeNode<V>> breadthFirst(JunctionTreeNode<V> root,
+			Map<JunctionTreeNode<V>, JunctionTreeNode<V>> parents) {
+		List<JunctionTreeNode<V>> order = new ArrayList<JunctionTreeNode<V>>();
+		Set<JunctionTreeNode<V>> seen = new HashSet<JunctionTreeNode<V>>();
+		order.add(root);
+		seen.add(root);
+		parents.put(root, null);
+		for (int i = 0; i < order.size(); i++) {
+			for (JunctionTreeEdge<V> edge : order.get(i).getEdges()) {
+				JunctionTreeNode<V> other = edge.getOther(order.get(i));
+				if (seen.add(other)) {
+					order.add(other);
+					parents.put(other, order.get(i));
 				}
 			}
 		}
+		return order;
+	}
+	
+	/**
+	 * Finds a maximum spanning tree of the clique graph, weighted by separator size, with
+	 * Kruskal's algorithm. Only pairs of cliques that share a class can have a separator, so the
+	 * candidate pairs come from the member index rather than from every pair of cliques. Edges
+	 * are only created for the pairs that make it into the tree. Cliques that share nothing end
+	 * up in separate trees.
+	 */
+	public void buildEdges() {
+		List<JunctionTreeNode<V>> cliques = new ArrayList<JunctionTreeNode<V>>(nodes);
+		Map<JunctionTreeNode<V>, Integer> ids = new HashMap<JunctionTreeNode<V>, Integer>();
+		for (int i = 0; i < cliques.size(); i++) {
+			ids.put(cliques.get(i), i);
+		}
 		
-		for (JunctionTreeNode<V> node : getNodeSet()) {
-			Iterator<JunctionTreeEdge<V>> it = node.getEdges().iterator();
-			while (it.hasNext()) {
-				JunctionTreeEdge<V> currEdge = it.next();
-				if (!finalEdges.contains(currEdge)) {
-					it.remove();
+		// candidate separators, as {weight, first, second}
+		List<int[]> candidates = new ArrayList<int[]>();
+		int[] lastPaired = new int[cliques.size()];
+		Arrays.fill(lastPaired, -1);
+		for (int i = 0; i < cliques.size(); i++) {
+			JunctionTreeNode<V> first = cliques.get(i);
+			BitSet members = first.getMembers();
+			for (int m = members.nextSetBit(0); m >= 0; m = members.nextSetBit(m + 1)) {
+				for (JunctionTreeNode<V> second : mCliquesByMember.get(m)) {
+					int j = ids.get(second);
+					if (j <= i || lastPaired[j] == i) continue;
+					lastPaired[j] = i;
+					candidates.add(new int[] { first.getOverlap(second), i, j });
 				}
 			}
 		}
-		this.edges.addAll(finalEdges);
+		// heaviest separators first, ties broken by insertion order so the tree is reproducible
+		Collections.sort(candidates, new Comparator<int[]>() {
+			@Override
+			public int compare(int[] a, int[] b) {
+				if (a[0] != b[0]) return a[0] > b[0] ? -1 : 1;
+				if (a[1] != b[1]) return a[1] < b[1] ? -1 : 1;
+				return a[2] < b[2] ? -1 : (a[2] == b[2] ? 0 : 1);
+			}
+		});
+		
+		int[] component = new int[cliques.size()];
+		for (int i = 0; i < component.length; i++) {
+			component[i] = i;
+		}
+		int joined = 0;
+		for (int[] candidate : candidates) {
+			int first = findComponent(component, candidate[1]);
+			int second = findComponent(component, candidate[2]);
+			if (first == second) continue;
+			component[second] = first;
+			addEdge(cliques.get(candidate[1]), cliques.get(candidate[2]));
+			if (++joined == cliques.size() - 1) break;
+		}
 	}
 	
-	public Map<Configuration, Double> exactInference(Set<Configuration> graphStateSpace,
+	/**
+	 * Union-find lookup with path halving
+	 */
+	private static int findComponent(int[] component, int i) {
+		while (component[i] != i) {
+			component[i] = component[component[i]];
+			i = component[i];
+		}
+		return i;
+	}
+	
+	/**
+	 * Runs message passing over every tree of the forest. The trees share no classes, so they
+	 * are independent, and the ones whose tables hold at least the parallel threshold run side
+	 * by side as fork/join tasks when there is more than one. The rest run on the calling
+	 * thread, which spares the small trees that are most of a typical forest a hand-off to
+	 * another thread. A tree of a single clique has no messages to pass and only builds its
+	 * factor.
+	 */
+	private void passMessages(MessageSchedule<V> schedule, InferenceWorkspace work,
 			Map<JunctionTreeNode<V>, Set<Configuration>> stateSpaces,
-			double[] scores) {
-		JunctionTreeNode<V> root = getFirst();
-		// base case
-		if (root.getNeighbors().size() == 0) {
-			// dont know what to do here
-			System.out.println("Root has cardinality zero....");
-			printTreeStats();
-		}
-		root.collectMessages(null, stateSpaces, scores);
-		root.propagateMessages(null, null);
-		
-		// All the nodes and edges are stored in a field
-		Map<Configuration, Double> configScores = new HashMap<Configuration, Double>();
-		for (Configuration config : graphStateSpace) {
-			double numerator = 1.0;
-			double denominator = 1.0;
-//			System.out.println(config.toString());
-//			System.out.print("Numerator: ");
-			for (JunctionTreeNode<V> node : nodes) {
-				numerator *= node.getFactor().getScoreIfSubsumed(config);
-//				System.out.print(node.getFactor().getScoreIfSubsumed(config));
-//				System.out.print(" ");
-			}
-//			System.out.println();
-//			System.out.print("Denominator: ");
-			for (JunctionTreeEdge<V> edge : edges) {
-				denominator *= edge.getDivided().getScoreIfSubsumed(config);
-//				System.out.println(edge.getDivided().getScoreIfSubsumed(config));
-//				System.out.print(" ");
-			}
-//			System.out.println("-----");
-			// tune for the repeated factors. We know a factor is a "super" factor if it
-			// appears in an edge.
-			for (int i = 0; i < config.size(); i++) {
-				if (config.get(i) == TriState.TRUE) {
-					for (JunctionTreeEdge<V> edge : edges) {
-						if (edge.phiStar.getVariables().get(i)) {
-							denominator *= Math.pow(Math.E, scores[i]);
-						}
-					}
+			double[] scores, boolean skipSingletons) {
+		List<Integer> trees = new ArrayList<Integer>();
+		List<Integer> apart = new ArrayList<Integer>();
+		for (int t = 0; t < schedule.getTreeCount(); t++) {
+			if (schedule.getTreeSize(t) == 1) {
+				if (!skipSingletons || !isLoneClass(schedule, work, t, stateSpaces)) {
+					schedule.collect(work, t, stateSpaces, scores);
 				}
+			} else if (schedule.isWorthRunningApart(work, t, stateSpaces)) {
+				apart.add(t);
+			} else {
+				trees.add(t);
 			}
-			configScores.put(config, numerator / denominator);
 		}
-		
-		return configScores;
+		if (apart.size() > 1) {
+			StateSpaceEnumerator.getSharedPool().invoke(
+					new ForestTask(schedule, work, stateSpaces, scores, apart));
+		} else {
+			trees.addAll(apart);
+		}
+		for (int tree : trees) {
+			schedule.collect(work, tree, stateSpaces, scores);
+			schedule.distribute(work, tree);
+		}
 	}
 	
-	
-	public Map<V, Double> exactMarginalInference(int numClasses,
-			Map<JunctionTreeNode<V>, Set<Configuration>> stateSpaces,
-			double[] scores) {
-		JunctionTreeNode<V> root = getFirst();
-		// base case
-		if (root.getNeighbors().size() == 0) {
-			// dont know what to do here
-			System.out.println("Root has cardinality zero....");
-		}
-		long startTime = System.currentTimeMillis();
-		root.collectMessages(null, stateSpaces, scores);
-		long endTime = System.currentTimeMillis();
-		// System.out.println(String.format("Collecting messages took %d ms", endTime - startTime));
+	/**
+	 * Passes messages over each of a list of trees as a task of its own. The trees own disjoint
+	 * parts of the workspace, so the tasks never write the same entries. Every task is waited for
+	 * before this one finishes, even when one fails, since the workspace is reused by the calling
+	 * thread's next call.
+	 */
+	private final class ForestTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
 		
-		startTime = System.currentTimeMillis();
-		root.propagateMessages(null, null);
-		endTime = System.currentTimeMillis();
-		// System.out.println(String.format("Propagating messages took %d ms", endTime - startTime));
+		private final MessageSchedule<V> mTaskSchedule;
+		private final InferenceWorkspace mWork;
+		private final Map<JunctionTreeNode<V>, Set<Configuration>> mStateSpaces;
+		private final double[] mScores;
+		private final List<Integer> mTrees;
 		
-		startTime = System.currentTimeMillis();
-		// All the nodes and edges are stored in a field
-		Map<V, Double> configScores = new HashMap<V, Double>();
-		double[] pNode1 = new double[numClasses];
-		double[] pNode0 = new double[numClasses];
-		double[] pSeparator1 = new double[numClasses];
-		double[] pSeparator0 = new double[numClasses];
-		for (JunctionTreeEdge<V> edge : edges) {
-			Map<Configuration, Double> dist = edge.getPhiStar().getDist();
-			for (Configuration c : dist.keySet()) {
-				double val = dist.get(c);
-				for (int i = 0; i < numClasses; i++) {
-					if (c.contains(i)) {
-						if (c.get(i) == TriState.TRUE) {
-							pSeparator1[i] += val;
-						} else {
-							pSeparator0[i] += val;
-						}
-					}
-				}
-			}
+		ForestTask(MessageSchedule<V> schedule, InferenceWorkspace work,
+				Map<JunctionTreeNode<V>, Set<Configuration>> stateSpaces, double[] scores,
+				List<Integer> trees) {
+			mTaskSchedule = schedule;
+			mWork = work;
+			mStateSpaces = stateSpaces;
+			mScores = scores;
+			mTrees = trees;
 		}
-		for (JunctionTreeNode<V> node : nodes) {
-			Map<Configuration, Double> dist = node.getFactor().getDist();
-			for (Configuration c : dist.keySet()) {
-				double val = dist.get(c);
-				for (int i = 0; i < numClasses; i++) {
-					if (c.contains(i)) {
-						if (c.get(i) == TriState.TRUE) {
-							pNode1[i] += val;
-						} else {
-							pNode0[i] += val;
-						}
-					}
-				}
+		
+		@Override
+		protected void compute() {
+			if (mTrees.size() == 1) {
+				mTaskSchedule.collect(mWork, mTrees.get(0), mStateSpaces, mScores);
+				mTaskSchedule.distribute(mWork, mTrees.get(0));
+				return;
 			}
+			List<ForestTask> tasks = new ArrayList<ForestTask>(mTrees.size());
+			for (int tree : mTrees) {
+				tasks.add(new ForestTask(mTaskSchedule, mWork, mStateSpaces, mScores,
+						Collections.singletonList(tree)));
+			}
+			// this task takes the first tree itself rather than wait idle
+			for (int k = 1; k < tasks.size(); k++) {
+				tasks.get(k).fork();
+			}
+			tasks.get(0).quietlyInvoke();
+			Throwable failure = null;
+			for (ForestTask task : tasks) {
+				task.quietlyJoin();
+				if (failure == null) failure = task.getException();
+			}
+			if (failure instanceof RuntimeException) throw (RuntimeException) failure;
+			if (failure instanceof Error) throw (Error) failure;
 		}
-		for (int i = 0; i < numClasses; i++) {			
-			// System.out.println(String.format("%.6f %.6f || %.6f %.6f", pNode1[i], pSeparator1[i], pNode0[i], pSeparator0[i]));
-			double m1 = pNode1[i] / (pSeparator1[i] == 0.0 ? 1.0 : pSeparator1[i]);
-			double m0 = pNode0[i] / (pSeparator0[i] == 0.0 ? 1.0 : pSeparator0[i]);
-			// System.out.println(Math.exp(m1 / (m0 + m1)));
-			configScores.put(mNameSpace.get(i), Math.exp(m1 / (m0 + m1)));
-		}
-		endTime = System.currentTimeMillis();
-		// System.out.println(String.format("Merging results took %d ms", endTime - startTime));
-		return configScores;
 	}
 	
+	/**
+	 * Returns whether tree t is a single class free to be true or false, i.e. not clamped by
+	 * evidence, whose marginal is then just the sigmoid of its score
+	 */
+	private boolean isLoneClass(MessageSchedule<V> schedule, InferenceWorkspace work, int t,
+			Map<JunctionTreeNode<V>, Set<Configuration>> stateSpaces) {
+		JunctionTreeNode<V> root = schedule.getRoot(t);
+		if (schedule.getTreeSize(t) != 1) return false;
+		BitSet members = root.getMembers();
+		return members.cardinality() == 1 && stateSpaces.get(root).size() == 2
+				&& (work.mEvidence == null || !work.mEvidence.contains(members.nextSetBit(0)));
+	}
 	
-	public void printFactors() {
-		for (JunctionTreeNode<V> node : nodes) {
-			node.getFactor().print("node", node.getMembers());
-			
+	/**
+	 * Returns the message passing schedule for the current shape of the forest, compiling it the
+	 * first time it is needed
+	 */
+	private MessageSchedule<V> getSchedule() {
+		MessageSchedule<V> schedule = mSchedule;
+		if (schedule == null) {
+			// threads racing here each build one, and the last one published wins
+			schedule = new MessageSchedule<V>(getComponents());
+			schedule.setParallelThreshold(mParallelThreshold);
+			mSchedule = schedule;
 		}
-		for (JunctionTreeEdge<V> edge : edges) {
-			System.out.println("edge between " + edge.first.getMembers() + " and " + edge.second.getMembers());
-			edge.phiStar.print("phistar");
-			edge.phiStarStar.print("phistarstar");
+		return schedule;
+	}
+	
+	/**
+	 * Sets the fewest states the tables of a tree of the forest, or of a subtree of cliques, must
+	 * hold for message passing to run it as a fork/join task of its own, Integer.MAX_VALUE to
+	 * always pass messages sequentially. Takes effect from the next inference call.
+	 */
+	public void setParallelThreshold(int threshold) {
+		if (threshold < 1)
+			throw new IllegalArgumentException("Parallel threshold must be positive: " + threshold);
+		mParallelThreshold = threshold;
+		MessageSchedule<V> schedule = mSchedule;
+		if (schedule != null) {
+			schedule.setParallelThreshold(threshold);
 		}
 	}
 	
-	public void printTreeStats() {
-		System.out.println(String.format("This tree contains %d nodes and %d edges", nodes.size(), edges.size()));
+	public int getParallelThreshold() {
+		return mParallelThreshold;
 	}
 	
-}
-
-class JunctionTreeEdge<V> {
-	JunctionTreeNode<V> first;
-	JunctionTreeNode<V> second;
-	int weight;
-	Factor phiStar;
-	Factor phiStarStar;
-	Factor divided;
+	/**
+	 * Returns how many times a clique's states were laid out and the projection maps to its
+	 * neighbors built, over all threads, since the forest last changed. Inference keeps reusing
+	 * them for as long as it is passed the same state space sets, so this only goes up the first
+	 * time each thread runs inference or when it is passed new sets.
+	 */
+	public long getBindCount() {
+		MessageSchedule<V> schedule = mSchedule;
+		return schedule == null ? 0 : schedule.getBindCount();
+	}
 	
-	public JunctionTreeEdge(JunctionTreeNode<V> f, JunctionTreeNode<V> s) {
-		first = f;
-		second = s;
-		weight = f.getOverlap(s);
-		phiStar = new Factor();
-		phiStarStar = new Factor();
-		divided = new Factor();
+	/**
+	 * Returns the calling thread's workspace for schedule, making a new one the first time the
+	 * thread runs inference on it
+	 */
+	private InferenceWorkspace getWorkspace(MessageSchedule<V> schedule) {
+		InferenceWorkspace work = mWorkspaces.get();
+		if (work == null || !work.isFor(schedule)) {
+			work = schedule.newWorkspace();
+			mWorkspaces.set(work);
+		}
+		return work;
 	}
 	
-	public Factor getPhiStar() {
-		return phiStar.getDeepCopy();
+	/**
+	 * Runs message passing and returns the probability of every configuration of
+	 * graphStateSpace. Once the tree is calibrated, the log probability of a configuration is
+	 * the sum of the clique beliefs it agrees with, less the separator beliefs and the log
+	 * partition function of every tree.
+	 */
+	public Map<Configuration, Double> exactInference(Set<Configuration> graphStateSpace,
+			Map<JunctionTreeNode<V>, Set<Configuration>> stateSpaces,
+			double[] scores) {
+		MessageSchedule<V> schedule = getSchedule();
+		InferenceWorkspace work = getWorkspace(schedule);
+		passMessages(schedule, work, stateSpaces, scores, false);
+		double logPartition = 0.0;
+		for (int t = 0; t < schedule.getTreeCount(); t++) {
+			logPartition += schedule.getLogPartition(work, t);
+		}
+		
+		Map<Configuration, Double> configScores = new HashMap<Configuration, Double>();
+		for (Configuration config : graphStateSpace) {
+			configScores.put(config, Math.exp(schedule.getLogValue(work, config) - logPartition));
+		}
+		
+		return configScores;
 	}
 	
-	public Factor getPhiStarStar() {
-		return phiStarStar.getDeepCopy();
+	/**
+	 * Runs max-product message passing to find the most likely configuration, in time linear in
+	 * the size of the clique tables
+	 *
+	 * @return the most likely configuration and its probability
+	 */
+	public Pair<Configuration, Double> exactMapInference(
+			Map<JunctionTreeNode<V>, Set<Configuration>> stateSpaces,
+			double[] scores) {
+		return exactMapInference(stateSpaces, scores, null);
 	}
 	
-	public Factor getDivided() {
-		return divided.getDeepCopy();
+	/**
+	 * Finds the most likely configuration that agrees with evidence, like
+	 * {@link #exactMapInference(Map, double[])}
+	 *
+	 * @param evidence - the classes known to be true or false, or null for none
+	 * @return the configuration and its probability given the evidence
+	 */
+	public Pair<Configuration, Double> exactMapInference(
+			Map<JunctionTreeNode<V>, Set<Configuration>> stateSpaces,
+			double[] scores, Configuration evidence) {
+		MessageSchedule<V> schedule = getSchedule();
+		InferenceWorkspace work = getWorkspace(schedule);
+		Configuration map = new Configuration(mNameSpace.size());
+		double logScore = 0.0;
+		double logPartition = 0.0;
+		work.mEvidence = evidence;
+		try {
+			for (int t = 0; t < schedule.getTreeCount(); t++) {
+				logScore += schedule.getMap(work, t, stateSpaces, scores, map);
+				// a sum-product collect gives the normalizer at the root
+				schedule.collect(work, t, stateSpaces, scores);
+				logPartition += schedule.getLogPartition(work, t);
+			}
+		} finally {
+			work.mEvidence = null;
+		}
+		return new Pair<Configuration, Double>(map, Math.exp(logScore - logPartition));
 	}
 	
 	/**
-	 * Collects the messages from the leaves and sends them upwards to the root
-	 * 
-	 * @param caller
-	 * @param message
-	 * @param stateSpaces
-	 * @param scoreMap
-	 * @return
+	 * Runs k-best max-product message passing to find the k most likely configurations, or all
+	 * of them if there are fewer than k
+	 *
+	 * @return the configurations, most likely first, with their probabilities
 	 */
-	public Factor collectMessages(JunctionTreeNode<V> caller, 
+	public List<Pair<Configuration, Double>> exactKBestInference(
+			Map<JunctionTreeNode<V>, Set<Configuration>> stateSpaces,
+			double[] scores, int k) {
+		if (k < 1) {
+			throw new IllegalArgumentException("k must be at least 1");
+		}
+		MessageSchedule<V> schedule = getSchedule();
+		InferenceWorkspace work = getWorkspace(schedule);
+		List<Pair<Configuration, Double>> best =
+				schedule.getKBest(work, stateSpaces, scores, k, mNameSpace.size());
+		double logPartition = 0.0;
+		for (int t = 0; t < schedule.getTreeCount(); t++) {
+			schedule.collect(work, t, stateSpaces, scores);
+			logPartition += schedule.getLogPartition(work, t);
+		}
+		for (Pair<Configuration, Double> entry : best) {
+			entry.second = Math.exp(entry.second - logPartition);
+		}
+		return best;
+	}
+	
+	/**
+	 * Runs message passing and returns the probability that each class is true
+	 */
+	public Map<V, Double> exactMarginalInference(int numClasses,
 			Map<JunctionTreeNode<V>, Set<Configuration>> stateSpaces,
 			double[] scores) {
-		if (!caller.equals(first) && !caller.equals(second)) {
-			throw new IllegalStateException("Illegal caller to edge in collect messages");
+		return exactMarginalInference(numClasses, stateSpaces, scores, null);
+	}
+	
+	/**
+	 * Runs message passing conditioned on evidence and returns the probability that each class
+	 * is true given it. The cliques keep the tables they are bound to and the states that
+	 * disagree with the evidence are scored out, so evidence that changes from call to call
+	 * never rebuilds them.
+	 *
+	 * @param evidence - the classes known to be true or false, or null for none
+	 */
+	public Map<V, Double> exactMarginalInference(int numClasses,
+			Map<JunctionTreeNode<V>, Set<Configuration>> stateSpaces,
+			double[] scores, Configuration evidence) {
+		MessageSchedule<V> schedule = getSchedule();
+		InferenceWorkspace work = getWorkspace(schedule);
+		double[] marginals = new double[numClasses];
+		work.mEvidence = evidence;
+		try {
+			passMessages(schedule, work, stateSpaces, scores, true);
+			for (int t = 0; t < schedule.getTreeCount(); t++) {
+				BitSet members = schedule.getRoot(t).getMembers();
+				if (isLoneClass(schedule, work, t, stateSpaces)) {
+					// a class on its own is true with log potential its score, or false with 0
+					int i = members.nextSetBit(0);
+					marginals[i] = 1.0 / (1.0 + Math.exp(-scores[i]));
+				} else {
+					schedule.getMarginals(work, t, marginals);
+				}
+			}
+		} finally {
+			work.mEvidence = null;
+		}
+		Map<V, Double> configScores = new HashMap<V, Double>();
+		for (int i = 0; i < numClasses; i++) {
+			configScores.put(mNameSpace.get(i), marginals[i]);
 		}
-		Factor result = getOther(caller).collectMessages(caller, stateSpaces, scores);
-		BitSet overlapping = caller.getOverlappingSet(getOther(caller));
-		phiStar = result.getSubDistribution(overlapping);
-		return getPhiStar();
+		return configScores;
 	}
 	
 	/**
-	 * Once the messages have been collected at the root, we propagate them outwards to the leaves
+	 * Returns the probability that each class is true, like
+	 * {@link #exactMarginalInference(int, Map, double[])}, but reuses the messages of the last
+	 * call to this method and only recomputes the ones that the scores changed since then reach.
+	 * Meant for scoring the same instance over and over with small changes. The messages are kept
+	 * per thread, and any other inference on this tree by the same thread in between makes its
+	 * next call run in full.
+	 *
+	 * @param tolerance - score changes no bigger than this are taken as no change, see
+	 * 	{@link MessageSchedule#update}; 0 gives the same results as a full run
 	 */
-	public void propagateMessages(JunctionTreeNode<V> caller) {
-		if (!caller.equals(first) && !caller.equals(second)) {
-			throw new IllegalStateException("Illegal caller to edge in propagate messages");
+	public Map<V, Double> updateMarginalInference(int numClasses,
+			Map<JunctionTreeNode<V>, Set<Configuration>> stateSpaces,
+			double[] scores, double tolerance) {
+		if (tolerance < 0) {
+			throw new IllegalArgumentException("Tolerance must not be negative");
 		}
-		BitSet overlapping = caller.getOverlappingSet(getOther(caller));
-		phiStarStar = caller.getFactor().getSubDistribution(overlapping);
-		divided = phiStarStar.divide(getPhiStar());
-		
-		getOther(caller).propagateMessages(this, phiStarStar);
+		MessageSchedule<V> schedule = getSchedule();
+		InferenceWorkspace work = getWorkspace(schedule);
+		// the marginals of the last incremental run, the ones of cliques it skips carry over
+		if (work.mMarginals == null || work.mMarginals.length != numClasses) {
+			work.mMarginals = new double[numClasses];
+		}
+		for (int t = 0; t < schedule.getTreeCount(); t++) {
+			BitSet members = schedule.getRoot(t).getMembers();
+			if (isLoneClass(schedule, work, t, stateSpaces)) {
+				int i = members.nextSetBit(0);
+				work.mMarginals[i] = 1.0 / (1.0 + Math.exp(-scores[i]));
+			} else {
+				schedule.update(work, t, stateSpaces, scores, tolerance, work.mMarginals);
+			}
+		}
+		Map<V, Double> configScores = new HashMap<V, Double>();
+		for (int i = 0; i < numClasses; i++) {
+			configScores.put(mNameSpace.get(i), work.mMarginals[i]);
+		}
+		return configScores;
 	}
 	
-	public boolean contains(JunctionTreeNode<V> node) {
-		if (node == null) return false;
-		return node.equals(first) || node.equals(second);
+	/**
+	 * Runs message passing for a whole batch of score vectors at once and returns the
+	 * probability that each class is true for each of them. Each tree is walked once per batch,
+	 * with tables holding the batch innermost.
+	 *
+	 * @param scores - scores[j][c] is the score of class c for instance j
+	 * @return marginals[j][c], the probability that class c is true for instance j
+	 */
+	public double[][] exactMarginalInference(
+			Map<JunctionTreeNode<V>, Set<Configuration>> stateSpaces,
+			double[][] scores) {
+		int batch = scores.length;
+		int numClasses = mNameSpace.size();
+		double[][] result = new double[batch][numClasses];
+		if (batch == 0) return result;
+		
+		double[] classScores = new double[numClasses * batch];
+		for (int j = 0; j < batch; j++) {
+			if (scores[j].length < numClasses) {
+				throw new IllegalArgumentException("Instance " + j + " does not score every class");
+			}
+			for (int c = 0; c < numClasses; c++) {
+				classScores[c * batch + j] = scores[j][c];
+			}
+		}
+		
+		double[] marginals = new double[numClasses * batch];
+		MessageSchedule<V> schedule = getSchedule();
+		InferenceWorkspace work = getWorkspace(schedule);
+		for (int t = 0; t < schedule.getTreeCount(); t++) {
+			BitSet members = schedule.getRoot(t).getMembers();
+			if (isLoneClass(schedule, work, t, stateSpaces)) {
+				int i = members.nextSetBit(0);
+				for (int j = 0; j < batch; j++) {
+					marginals[i * batch + j] = 1.0 / (1.0 + Math.exp(-classScores[i * batch + j]));
+				}
+			} else {
+				schedule.getBatchMarginals(work, t, stateSpaces, classScores, batch, marginals);
+			}
+		}
+		for (int j = 0; j < batch; j++) {
+			for (int c = 0; c < numClasses; c++) {
+				result[j][c] = marginals[c * batch + j];
+			}
+		}
+		return result;
 	}
 	
-	public JunctionTreeNode<V> getOther(JunctionTreeNode<V> node) {
-		return node.equals(first) ? second : first;
+	/**
+	 * Prints the clique beliefs and separator messages the calling thread's last inference left
+	 */
+	public void printFactors() {
+		MessageSchedule<V> schedule = getSchedule();
+		schedule.printFactors(getWorkspace(schedule));
 	}
 	
-	@Override
-	public String toString() {
-		return "\n" + first.toString() + " <--" + weight + "--> " + second.toString();
+	public void printTreeStats() {
+		System.out.println(String.format("This tree contains %d nodes and %d edges", nodes.size(), edges.size()));
 	}
-
+	
 }
-
-
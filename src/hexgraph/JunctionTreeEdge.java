@@ -0,0 +1,28 @@
+package hexgraph;
+
+class JunctionTreeEdge<V> {
+	JunctionTreeNode<V> first;
+	JunctionTreeNode<V> second;
+	int weight;
+	
+	public JunctionTreeEdge(JunctionTreeNode<V> f, JunctionTreeNode<V> s) {
+		first = f;
+		second = s;
+		weight = f.getOverlap(s);
+	}
+	
+	public boolean contains(JunctionTreeNode<V> node) {
+		if (node == null) return false;
+		return node.equals(first) || node.equals(second);
+	}
+	
+	public JunctionTreeNode<V> getOther(JunctionTreeNode<V> node) {
+		return node.equals(first) ? second : first;
+	}
+	
+	@Override
+	public String toString() {
+		return "\n" + first.toString() + " <--" + weight + "--> " + second.toString();
+	}
+
+}
@@ -3,7 +3,6 @@ package hexgraph;
 import java.util.BitSet;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.Map;
 import java.util.Set;
 
 import util.NameSpace;
@@ -12,14 +11,12 @@ import util.NameSpace;
 public class JunctionTreeNode<V> {
 	private BitSet mMembers;
 	private Set<JunctionTreeEdge<V>> mEdges;
-	private Factor mFactor;
 	private int mNumClasses;
 	
 	private final NameSpace<V> mNameSpace;
 	
 	public JunctionTreeNode(Set<V> mems, int numClasses, NameSpace<V> nameSpace) {
 		mEdges = new HashSet<JunctionTreeEdge<V>>();
-		mFactor = new Factor();
 		mMembers = new BitSet(numClasses);
 		mNameSpace = nameSpace;
 		for (V v : mems) {
@@ -45,10 +42,6 @@ public class JunctionTreeNode<V> {
 		}
 	}
 	
-	public Factor getFactor() {
-		return mFactor.getDeepCopy();
-	}
-	
 	public BitSet getMembers() {
 		return (BitSet) mMembers.clone();
 	}
@@ -59,6 +52,15 @@ public class JunctionTreeNode<V> {
 		return otherMembers;
 	}
 	
+	/**
+	 * Returns whether this clique holds every class in indices
+	 */
+	boolean containsAll(BitSet indices) {
+		BitSet missing = (BitSet) indices.clone();
+		missing.andNot(mMembers);
+		return missing.isEmpty();
+	}
+	
 	public int getOverlap(JunctionTreeNode<V> other) {
 		return getOverlappingSet(other).cardinality();
 	}
@@ -71,50 +73,6 @@ public class JunctionTreeNode<V> {
 		return neighbors;
 	}
 	
-	/**
-	 * We collect messages from the leaves and bring them to the root
-	 * @param parent
-	 * @param stateSpaces
-	 * @param scoreMap
-	 * @return
-	 */
-	Factor collectMessages(JunctionTreeNode<V> parent,
-			Map<JunctionTreeNode<V>, Set<Configuration>> stateSpaces,
-			double[] scores) {
-		// base case: this node doesnt have any neighbors that arent parent (leaf)
-		mFactor = new Factor(stateSpaces.get(this), getMembers(), scores);
-		if (mEdges.size() == 1 && parent != null) {
-			// we know that the only neighbor is parent
-			return mFactor.getDeepCopy();
-		} else {
-			Set<Factor> separators = new HashSet<Factor>();
-			for (JunctionTreeEdge<V> outEdge : getEdges()) {
-				if (!outEdge.contains(parent)) {
-					separators.add(outEdge.collectMessages(this, stateSpaces, scores));
-				}
-			}
-			// Calculate scores and put them into a new factor
-			for (Factor separator : separators) {
-				mFactor.combineDistributionProduct(separator);
-			}
-			return mFactor.getDeepCopy();
-		}	
-	}
-	
-	/**
-	 * Once the messages have been collected at the root, we propagate them outwards to the leaves
-	 */
-	void propagateMessages(JunctionTreeEdge<V> parent, Factor properFactor) {
-		if (parent != null) {
-			mFactor.combineDistributionProduct(properFactor);
-		}
-		for (JunctionTreeEdge<V> edge : getEdges()) {
-			if (!edge.equals(parent)) {
-				edge.propagateMessages(this);
-			}
-		}	
-	}
-	
 	public String toString() {
 		return mMembers.toString();
 	}
@@ -0,0 +1,206 @@
+package hexgraph;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.Arrays;
+
+/**
+ * The log space arithmetic behind {@link Factor}. Every table is an array of log scores, so a
+ * product is a sum, a quotient is a difference and a sum is a log-sum-exp.
+ *
+ * Sums are taken in blocks: every output bucket first finds the largest of its inputs, then adds
+ * up their exponentials shifted by it, and takes one log at the end. That costs one exp per
+ * input and one log per bucket, where merging pairwise costs two exps and a log per input, and
+ * the shift keeps the sum from overflowing whatever the scale of the scores.
+ *
+ * The batch kernels work on tables holding one column per instance of a batch, laid out state
+ * major with the batch innermost: the score of state k for instance b is at k * batch + b. Every
+ * operation then runs a contiguous loop over the batch for each state, which the JIT can unroll
+ * and vectorize, and the projection maps are read once per state rather than once per instance.
+ *
+ * The loops over whole tables run on a {@link LogSpaceKernel} chosen once, when this class is
+ * loaded. On a JVM started with --add-modules jdk.incubator.vector, and with the kernel built by
+ * the vector profile of the build, that is {@link #VECTOR_KERNEL}, written against the Java
+ * Vector API. Otherwise, or when it fails to load, it is the portable
+ * {@link ScalarLogSpaceKernel}. Setting the {@link #KERNEL_PROPERTY} system property to scalar
+ * or vector forces the choice; a forced vector kernel that cannot load is an error.
+ *
+ * To run the inference checks on the vector kernel, build it and force it:
+ * <pre>
+ * mvn -B -Pvector compile
+ * java --add-modules jdk.incubator.vector -Dhexgraph.kernel=vector -cp target/classes \
+ *     test.JunctionTreeInferenceTest
+ * </pre>
+ */
+final class LogSpace {
+	/**
+	 * The system property that forces the choice of kernel
+	 */
+	static final String KERNEL_PROPERTY = "hexgraph.kernel";
+
+	/**
+	 * The class name of the kernel built on the Java Vector API
+	 */
+	static final String VECTOR_KERNEL = "hexgraph.VectorLogSpaceKernel";
+
+	private static final LogSpaceKernel KERNEL = loadKernel(System.getProperty(KERNEL_PROPERTY));
+
+	private LogSpace() {
+	}
+
+	/**
+	 * Returns the kernel named by choice: scalar, vector, or, when it is null, vector if it
+	 * loads and scalar if not
+	 */
+	static LogSpaceKernel loadKernel(String choice) {
+		if ("scalar".equals(choice)) return new ScalarLogSpaceKernel();
+		if (choice != null && !"vector".equals(choice)) {
+			throw new IllegalArgumentException("Unknown kernel " + choice);
+		}
+		try {
+			return (LogSpaceKernel) Class.forName(VECTOR_KERNEL).getDeclaredConstructor().newInstance();
+		} catch (InvocationTargetException e) {
+			// the hardware has no vector lanes for doubles
+			if (choice != null) {
+				throw new IllegalStateException("Cannot load the vector kernel", e.getCause());
+			}
+		} catch (ReflectiveOperationException e) {
+			// not built into this jar
+			if (choice != null) throw new IllegalStateException("Cannot load the vector kernel", e);
+		} catch (LinkageError e) {
+			// the incubator module is not in this JVM
+			if (choice != null) throw new IllegalStateException("Cannot load the vector kernel", e);
+		}
+		return new ScalarLogSpaceKernel();
+	}
+
+	/**
+	 * Returns the kernel the table loops run on
+	 */
+	static LogSpaceKernel getKernel() {
+		return KERNEL;
+	}
+
+	/**
+	 * Returns log(sum(exp(values)))
+	 */
+	static double logSumExp(double[] values) {
+		return KERNEL.logSumExp(values);
+	}
+
+	/**
+	 * Sums values into buckets: out[b] = log(sum(exp(values[k]))) over every k with
+	 * projection[k] == b. Buckets nothing projects onto come out as negative infinity.
+	 */
+	static void sumOut(double[] values, int[] projection, double[] out) {
+		if (projection.length != values.length) {
+			throw new IllegalArgumentException("Projection is not over the values");
+		}
+		KERNEL.sumOut(values, projection, out);
+	}
+
+	/**
+	 * Maximizes values into buckets: out[b] is the largest values[k] with projection[k] == b
+	 * and argmax[b] is that k, the lowest one on ties. Buckets nothing projects onto come out
+	 * as negative infinity with argmax -1.
+	 */
+	static void maxOut(double[] values, int[] projection, double[] out, int[] argmax) {
+		if (projection.length != values.length) {
+			throw new IllegalArgumentException("Projection is not over the values");
+		}
+		Arrays.fill(out, Double.NEGATIVE_INFINITY);
+		Arrays.fill(argmax, -1);
+		for (int k = 0; k < values.length; k++) {
+			int b = projection[k];
+			if (argmax[b] < 0 || values[k] > out[b]) {
+				out[b] = values[k];
+				argmax[b] = k;
+			}
+		}
+	}
+
+	/**
+	 * Returns the index of the largest of values, the lowest one on ties, or -1 if there are
+	 * none
+	 */
+	static int argMax(double[] values) {
+		int best = -1;
+		for (int k = 0; k < values.length; k++) {
+			if (best < 0 || values[k] > values[best]) best = k;
+		}
+		return best;
+	}
+
+	/**
+	 * Multiplies a message into values: values[k] += message[projection[k]]
+	 */
+	static void addProjected(double[] values, double[] message, int[] projection) {
+		if (projection.length != values.length) {
+			throw new IllegalArgumentException("Projection is not over the values");
+		}
+		KERNEL.addProjected(values, message, projection);
+	}
+
+	/**
+	 * Divides denominator out of numerator into out. As usual for junction trees, zero divided by
+	 * zero is taken to be zero, i.e. the difference of two negative infinities is negative
+	 * infinity.
+	 */
+	static void subtract(double[] numerator, double[] denominator, double[] out) {
+		if (numerator.length != denominator.length || out.length != numerator.length) {
+			throw new IllegalArgumentException("Tables are not the same size");
+		}
+		KERNEL.subtract(numerator, denominator, out);
+	}
+
+	/**
+	 * The batch form of {@link #sumOut(double[], int[], double[])}: out[b * batch + j] sums
+	 * values[k * batch + j] over every k with projection[k] == b
+	 */
+	static void sumOutBatch(double[] values, int[] projection, int batch, double[] out) {
+		if (projection.length * batch != values.length) {
+			throw new IllegalArgumentException("Projection is not over the values");
+		}
+		KERNEL.sumOutBatch(values, projection, batch, out);
+	}
+
+	/**
+	 * The batch form of {@link #addProjected(double[], double[], int[])}
+	 */
+	static void addProjectedBatch(double[] values, double[] message, int[] projection, int batch) {
+		if (projection.length * batch != values.length) {
+			throw new IllegalArgumentException("Projection is not over the values");
+		}
+		KERNEL.addProjectedBatch(values, message, projection, batch);
+	}
+
+	/**
+	 * The batch form of {@link #logSumExp(double[])}: out[j] sums values[k * batch + j] over all
+	 * states k
+	 */
+	static void logSumExpBatch(double[] values, int batch, double[] out) {
+		sumOutBatch(values, new int[values.length / batch], batch, out);
+	}
+
+	/**
+	 * Turns log scores into probabilities, out[k] = exp(values[k] - logZ), and returns logZ
+	 */
+	static double normalize(double[] values, double[] out) {
+		return KERNEL.normalize(values, out);
+	}
+
+	/**
+	 * Adds length entries of source, from sourceOffset on, into target from targetOffset on,
+	 * e.g. one row of a batch table into another
+	 */
+	static void addRow(double[] target, int targetOffset, double[] source, int sourceOffset, int length) {
+		KERNEL.addRow(target, targetOffset, source, sourceOffset, length);
+	}
+
+	/**
+	 * Turns one row of a batch table from log scores into probabilities:
+	 * values[offset + j] = exp(values[offset + j] - logZ[j])
+	 */
+	static void expRow(double[] values, int offset, double[] logZ, int length) {
+		KERNEL.expRow(values, offset, logZ, length);
+	}
+}
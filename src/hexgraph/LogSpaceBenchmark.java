@@ -0,0 +1,115 @@
+package hexgraph;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares the scalar and vector {@link LogSpaceKernel}s on tables shaped like the ones junction
+ * tree inference passes around: a clique table summed onto, and multiplied by, a separator a
+ * quarter of its size, alone and in batches.
+ *
+ * Built by the vector and jmh profiles together. To run it:
+ *
+ * mvn -Pvector,jmh compile dependency:build-classpath -Dmdep.outputFile=target/classpath.txt
+ * java --add-modules jdk.incubator.vector -cp target/classes:$(cat target/classpath.txt) \
+ * 	hexgraph.LogSpaceBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "--add-modules", "jdk.incubator.vector" })
+public class LogSpaceBenchmark {
+	@Param({ "scalar", "vector" })
+	public String kernel;
+
+	@Param({ "64", "1024" })
+	public int states;
+
+	@Param({ "32" })
+	public int batch;
+
+	private LogSpaceKernel mKernel;
+	private int[] mProjection;
+	private double[] mValues;
+	private double[] mMessage;
+	private double[] mOut;
+	private double[] mBatchValues;
+	private double[] mBatchMessage;
+	private double[] mBatchOut;
+
+	@Setup
+	public void setUp() {
+		mKernel = LogSpace.loadKernel(kernel);
+		Random random = new Random(17);
+		int separatorStates = Math.max(1, states / 4);
+		mProjection = new int[states];
+		for (int k = 0; k < states; k++) {
+			mProjection[k] = random.nextInt(separatorStates);
+		}
+		mValues = gaussians(random, states);
+		mMessage = gaussians(random, separatorStates);
+		mOut = new double[states];
+		mBatchValues = gaussians(random, states * batch);
+		mBatchMessage = gaussians(random, separatorStates * batch);
+		mBatchOut = new double[separatorStates * batch];
+	}
+
+	private static double[] gaussians(Random random, int n) {
+		double[] values = new double[n];
+		for (int k = 0; k < n; k++) {
+			values[k] = random.nextGaussian() * 3;
+		}
+		return values;
+	}
+
+	@Benchmark
+	public double logSumExp() {
+		return mKernel.logSumExp(mValues);
+	}
+
+	@Benchmark
+	public double normalize() {
+		return mKernel.normalize(mValues, mOut);
+	}
+
+	@Benchmark
+	public double[] addProjected() {
+		System.arraycopy(mValues, 0, mOut, 0, states);
+		mKernel.addProjected(mOut, mMessage, mProjection);
+		return mOut;
+	}
+
+	@Benchmark
+	public double[] sumOutBatch() {
+		mKernel.sumOutBatch(mBatchValues, mProjection, batch, mBatchOut);
+		return mBatchOut;
+	}
+
+	@Benchmark
+	public double[] addProjectedBatch() {
+		// the table drifts from call to call, which does not change the work done
+		mKernel.addProjectedBatch(mBatchValues, mBatchMessage, mProjection, batch);
+		return mBatchValues;
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder().include(LogSpaceBenchmark.class.getSimpleName()).build()).run();
+	}
+}
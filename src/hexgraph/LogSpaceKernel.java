@@ -0,0 +1,42 @@
+package hexgraph;
+
+/**
+ * The table loops of {@link LogSpace} that are worth running on vector units: the ones that do
+ * the same arithmetic on long runs of doubles. {@link ScalarLogSpaceKernel} runs them one entry
+ * at a time on any JVM; {@link LogSpace} picks a faster implementation when the running JVM has
+ * one.
+ *
+ * Every method has the meaning documented on its {@link LogSpace} counterpart and must give the
+ * same results up to rounding.
+ */
+interface LogSpaceKernel {
+	/**
+	 * Returns a short name for the kernel, for logging and benchmarks
+	 */
+	String getName();
+
+	double logSumExp(double[] values);
+
+	void sumOut(double[] values, int[] projection, double[] out);
+
+	void addProjected(double[] values, double[] message, int[] projection);
+
+	void subtract(double[] numerator, double[] denominator, double[] out);
+
+	double normalize(double[] values, double[] out);
+
+	void sumOutBatch(double[] values, int[] projection, int batch, double[] out);
+
+	void addProjectedBatch(double[] values, double[] message, int[] projection, int batch);
+
+	/**
+	 * Adds length entries of source, from sourceOffset on, into target from targetOffset on
+	 */
+	void addRow(double[] target, int targetOffset, double[] source, int sourceOffset, int length);
+
+	/**
+	 * Replaces each of the length entries of values from offset on, values[offset + j], by
+	 * exp(values[offset + j] - shift[j])
+	 */
+	void expRow(double[] values, int offset, double[] shift, int length);
+}
@@ -0,0 +1,897 @@
+package hexgraph;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+import util.Pair;
+
+/**
+ * A {@link JunctionTree} flattened into arrays for message passing. Cliques are stored tree by
+ * tree, each tree in breadth first order from its root, so every clique comes after its parent.
+ * Collecting messages is then a backwards loop over a tree's range and distributing them is a
+ * forwards loop, with the parent and separator of every clique worked out once up front.
+ *
+ * The schedule itself never changes once built. Everything message passing writes, from the
+ * clique beliefs and messages down to the state arrays, lives in an {@link InferenceWorkspace}
+ * passed to every call, so any number of threads can share a schedule with a workspace each.
+ * The first time a workspace sees a clique's state space, its states are laid out in an array
+ * and the projection maps between it, its parent and their separator are built. They are
+ * reused for as long as the same state space set is passed in.
+ *
+ * Every class is scored by exactly one clique, the first in breadth first order that holds it,
+ * so a class shared by several cliques has its score counted once. Factors hold log scores
+ * throughout, and distributing divides out the message a clique sent up before multiplying in
+ * the one coming down, so after both passes every clique holds its unnormalized marginal.
+ *
+ * A calibrated tree can be brought up to date with new scores by {@link #update}, which only
+ * redoes the messages the changed scores reach. That holds until anything else resets the
+ * cliques' factors in the same workspace.
+ *
+ * Sibling subtrees share nothing while messages are collected, and neither do a clique's
+ * children once it has its own belief on the way back down, so collecting and distributing over
+ * a tree whose tables hold at least twice the schedule's parallel threshold fork every subtree
+ * holding at least the threshold onto the fork/join pool shared with
+ * {@link StateSpaceEnumerator#toArrayParallel}. Smaller subtrees are run by the task that
+ * reaches them, so the forking overhead stays away from the small trees that are most of a
+ * typical forest. Each parent takes its children's messages in the same order as the sequential
+ * loop, so the results do not depend on the schedule. The same threshold decides which whole
+ * trees {@link JunctionTree} runs side by side as tasks on that pool.
+ */
+final class MessageSchedule<V> {
+	/**
+	 * The parallel threshold of a new schedule: the hexgraph.parallelThreshold system property
+	 * if set, otherwise 4096 states when the shared pool has more than one thread and never when
+	 * it has just one
+	 */
+	static final int DEFAULT_PARALLEL_THRESHOLD = Integer.getInteger("hexgraph.parallelThreshold",
+			StateSpaceEnumerator.getSharedPool().getParallelism() > 1 ? 1 << 12 : Integer.MAX_VALUE);
+
+	// the fewest states a subtree's tables must hold for its messages to be passed as a task of
+	// its own, Integer.MAX_VALUE to always pass them sequentially
+	private volatile int mParallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
+
+	private final JunctionTreeNode<V>[] mCliques;
+	// index of each clique's parent in mCliques, -1 for roots
+	private final int[] mParent;
+	private final int[][] mChildren;
+	private final BitSet[] mSeparator;
+	// tree t covers mCliques[mTreeStart[t]] up to but not including mCliques[mTreeStart[t + 1]]
+	private final int[] mTreeStart;
+	private final BitSet[] mMembers;
+	private final int[][] mMemberIndices;
+	// the classes each clique carries the scores of
+	private final int[][] mScoredIndices;
+	// one more than the highest class in any clique
+	private final int mNumClasses;
+	// the cliques bound to a new state space so far, in any workspace
+	private final AtomicLong mBinds = new AtomicLong();
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	MessageSchedule(List<List<JunctionTreeNode<V>>> components) {
+		int size = 0;
+		for (List<JunctionTreeNode<V>> component : components) {
+			size += component.size();
+		}
+		mCliques = (JunctionTreeNode<V>[]) new JunctionTreeNode[size];
+		mParent = new int[size];
+		mSeparator = new BitSet[size];
+		mTreeStart = new int[components.size() + 1];
+		mMembers = new BitSet[size];
+		mMemberIndices = new int[size][];
+		mScoredIndices = new int[size][];
+
+		Map<JunctionTreeNode<V>, Integer> position = new HashMap<JunctionTreeNode<V>, Integer>();
+		int next = 0;
+		for (int t = 0; t < components.size(); t++) {
+			mTreeStart[t] = next;
+			BitSet scored = new BitSet();
+			for (JunctionTreeNode<V> node : components.get(t)) {
+				mCliques[next] = node;
+				mParent[next] = -1;
+				mMembers[next] = node.getMembers();
+				mMemberIndices[next] = toArray(mMembers[next]);
+				BitSet unscored = node.getMembers();
+				unscored.andNot(scored);
+				mScoredIndices[next] = toArray(unscored);
+				scored.or(unscored);
+				// in breadth first order the only neighbor already placed is the parent
+				for (JunctionTreeEdge<V> edge : node.getEdges()) {
+					Integer parent = position.get(edge.getOther(node));
+					if (parent != null) {
+						mParent[next] = parent;
+						mSeparator[next] = node.getOverlappingSet(edge.getOther(node));
+					}
+				}
+				position.put(node, next);
+				next++;
+			}
+		}
+		mTreeStart[components.size()] = next;
+
+		int numClasses = 0;
+		int[] childCount = new int[size];
+		for (int i = 0; i < size; i++) {
+			numClasses = Math.max(numClasses, mMembers[i].length());
+			if (mParent[i] >= 0) childCount[mParent[i]]++;
+		}
+		mNumClasses = numClasses;
+		mChildren = new int[size][];
+		for (int i = 0; i < size; i++) {
+			mChildren[i] = new int[childCount[i]];
+			childCount[i] = 0;
+		}
+		for (int i = 0; i < size; i++) {
+			if (mParent[i] >= 0) mChildren[mParent[i]][childCount[mParent[i]]++] = i;
+		}
+	}
+
+	/**
+	 * Returns a fresh workspace to run message passing over this schedule in
+	 */
+	InferenceWorkspace newWorkspace() {
+		return new InferenceWorkspace(this, mCliques.length, getTreeCount(), mNumClasses);
+	}
+
+	int getTreeCount() {
+		return mTreeStart.length - 1;
+	}
+
+	int getTreeSize(int tree) {
+		return mTreeStart[tree + 1] - mTreeStart[tree];
+	}
+
+	/**
+	 * Returns how many times a clique's states were laid out and its projection maps built, over
+	 * all workspaces
+	 */
+	long getBindCount() {
+		return mBinds.get();
+	}
+
+	JunctionTreeNode<V> getRoot(int tree) {
+		return mCliques[mTreeStart[tree]];
+	}
+
+	private static int[] toArray(BitSet bits) {
+		int[] indices = new int[bits.cardinality()];
+		int k = 0;
+		for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)) {
+			indices[k++] = i;
+		}
+		return indices;
+	}
+
+	/**
+	 * Rebuilds the state arrays of the cliques in tree whose state space changed since the last
+	 * call, along with the projection maps of every separator they touch.
+	 *
+	 * @return whether any clique was rebuilt
+	 */
+	private boolean bind(InferenceWorkspace work, int tree, Map<JunctionTreeNode<V>, Set<Configuration>> stateSpaces) {
+		int start = mTreeStart[tree];
+		int end = mTreeStart[tree + 1];
+		boolean[] changed = new boolean[end - start];
+		boolean any = false;
+		for (int i = start; i < end; i++) {
+			Set<Configuration> stateSpace = stateSpaces.get(mCliques[i]);
+			if (stateSpace == work.mBound[i]) continue;
+			if (stateSpace == null) {
+				throw new IllegalArgumentException("No state space for clique " + mCliques[i]);
+			}
+			BitSet members = mMembers[i];
+			Configuration[] states = stateSpace.toArray(new Configuration[stateSpace.size()]);
+			for (Configuration state : states) {
+				if (!state.hasMembers(members)) {
+					throw new IllegalStateException("Configuration not over the proper variables");
+				}
+			}
+			work.mStates[i] = states;
+			work.mBound[i] = stateSpace;
+			changed[i - start] = true;
+			any = true;
+			mBinds.incrementAndGet();
+		}
+		if (!any) return false;
+		for (int i = start + 1; i < end; i++) {
+			if (!changed[i - start] && !changed[mParent[i] - start]) continue;
+			Map<Configuration, Integer> index = new HashMap<Configuration, Integer>();
+			List<Configuration> separatorStates = new ArrayList<Configuration>();
+			work.mChildProjection[i] = project(work.mStates[i], mSeparator[i], index, separatorStates);
+			work.mParentProjection[i] = project(work.mStates[mParent[i]], mSeparator[i], index, separatorStates);
+			work.mSeparatorStates[i] = separatorStates.toArray(new Configuration[separatorStates.size()]);
+		}
+		for (int i = start; i < end; i++) {
+			work.mSubtreeStates[i] = work.mStates[i].length;
+		}
+		for (int i = end - 1; i > start; i--) {
+			work.mSubtreeStates[mParent[i]] += work.mSubtreeStates[i];
+		}
+		return true;
+	}
+
+	/**
+	 * Maps each of states to the index of its trimmed version among separatorStates, adding
+	 * trimmed states not seen before.
+	 */
+	private static int[] project(Configuration[] states, BitSet separator,
+			Map<Configuration, Integer> index, List<Configuration> separatorStates) {
+		int[] projection = new int[states.length];
+		for (int k = 0; k < states.length; k++) {
+			Configuration trimmed = states[k].trimTo(separator);
+			Integer position = index.get(trimmed);
+			if (position == null) {
+				position = separatorStates.size();
+				index.put(trimmed, position);
+				separatorStates.add(trimmed);
+			}
+			projection[k] = position;
+		}
+		return projection;
+	}
+
+	/**
+	 * Resets the factor of every clique in tree to its potential, then sends each clique's
+	 * summary over its separator up to its parent, leaves first.
+	 */
+	void collect(InferenceWorkspace work, int tree, Map<JunctionTreeNode<V>, Set<Configuration>> stateSpaces,
+			double[] scores) {
+		initFactors(work, tree, stateSpaces, scores);
+		int start = mTreeStart[tree];
+		int end = mTreeStart[tree + 1];
+		if (isParallel(work, tree)) {
+			StateSpaceEnumerator.getSharedPool().invoke(new CollectTask(work, start));
+			return;
+		}
+		for (int i = end - 1; i > start; i--) {
+			sendUp(work, i);
+		}
+	}
+
+	/**
+	 * Binds tree to stateSpaces and returns whether its tables hold enough states for its
+	 * messages to be passed as a fork/join task of its own, side by side with the other trees
+	 */
+	boolean isWorthRunningApart(InferenceWorkspace work, int tree,
+			Map<JunctionTreeNode<V>, Set<Configuration>> stateSpaces) {
+		bind(work, tree, stateSpaces);
+		return mParallelThreshold < Integer.MAX_VALUE
+				&& work.mSubtreeStates[mTreeStart[tree]] >= mParallelThreshold;
+	}
+
+	/**
+	 * Returns whether tree is worth passing messages over as fork/join tasks
+	 */
+	private boolean isParallel(InferenceWorkspace work, int tree) {
+		return mParallelThreshold < Integer.MAX_VALUE && getTreeSize(tree) > 2
+				&& work.mSubtreeStates[mTreeStart[tree]] >= 2L * mParallelThreshold;
+	}
+
+	/**
+	 * Sets the fewest states a subtree's tables must hold for its messages to be passed as a
+	 * task of its own, Integer.MAX_VALUE to always pass them sequentially
+	 */
+	void setParallelThreshold(int threshold) {
+		if (threshold < 1)
+			throw new IllegalArgumentException("Parallel threshold must be positive: " + threshold);
+		mParallelThreshold = threshold;
+	}
+
+	/**
+	 * Sums the belief of clique i down onto its parent separator and multiplies it into the parent
+	 */
+	private void sendUp(InferenceWorkspace work, int i) {
+		work.mPhiStar[i] = work.mFactors[i].getSubDistribution(work.mChildProjection[i],
+				work.mSeparatorStates[i], mSeparator[i]);
+		work.mFactors[mParent[i]].combineDistributionProduct(work.mPhiStar[i], work.mParentProjection[i]);
+	}
+
+	/**
+	 * Sends the belief of clique i's parent down to i, dividing out the message i sent up
+	 */
+	private void sendDown(InferenceWorkspace work, int i) {
+		work.mPhiStarStar[i] = work.mFactors[mParent[i]].getSubDistribution(work.mParentProjection[i],
+				work.mSeparatorStates[i], mSeparator[i]);
+		work.mDivided[i] = work.mPhiStarStar[i].divide(work.mPhiStar[i]);
+		work.mFactors[i].combineDistributionProduct(work.mDivided[i], work.mChildProjection[i]);
+	}
+
+	/**
+	 * Collects the subtree below a clique: the children's subtrees first, the big ones as tasks
+	 * of their own, then the children's messages, last child first as in the sequential loop
+	 */
+	private final class CollectTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final InferenceWorkspace mWork;
+		private final int mClique;
+
+		CollectTask(InferenceWorkspace work, int clique) {
+			mWork = work;
+			mClique = clique;
+		}
+
+		@Override
+		protected void compute() {
+			int[] children = mChildren[mClique];
+			List<CollectTask> forked = new ArrayList<CollectTask>();
+			for (int child : children) {
+				CollectTask task = new CollectTask(mWork, child);
+				if (mWork.mSubtreeStates[child] >= mParallelThreshold) {
+					task.fork();
+					forked.add(task);
+				} else {
+					task.compute();
+				}
+			}
+			for (int k = forked.size() - 1; k >= 0; k--) {
+				forked.get(k).join();
+			}
+			for (int k = children.length - 1; k >= 0; k--) {
+				sendUp(mWork, children[k]);
+			}
+		}
+	}
+
+	/**
+	 * Distributes over the subtree below a clique whose belief is final: sends it down to every
+	 * child, then distributes below the children, the big ones as tasks of their own
+	 */
+	private final class DistributeTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final InferenceWorkspace mWork;
+		private final int mClique;
+
+		DistributeTask(InferenceWorkspace work, int clique) {
+			mWork = work;
+			mClique = clique;
+		}
+
+		@Override
+		protected void compute() {
+			int[] children = mChildren[mClique];
+			for (int child : children) {
+				sendDown(mWork, child);
+			}
+			List<DistributeTask> forked = new ArrayList<DistributeTask>();
+			for (int child : children) {
+				DistributeTask task = new DistributeTask(mWork, child);
+				if (mWork.mSubtreeStates[child] >= mParallelThreshold) {
+					task.fork();
+					forked.add(task);
+				} else {
+					task.compute();
+				}
+			}
+			for (int k = forked.size() - 1; k >= 0; k--) {
+				forked.get(k).join();
+			}
+		}
+	}
+
+	/**
+	 * Binds tree and resets the factor of every clique in it to its potential, scoring out the
+	 * states that disagree with the workspace's evidence
+	 */
+	private void initFactors(InferenceWorkspace work, int tree, Map<JunctionTreeNode<V>, Set<Configuration>> stateSpaces,
+			double[] scores) {
+		bind(work, tree, stateSpaces);
+		work.mCalibrated[tree] = false;
+		BitSet decided = work.mEvidence == null ? null : work.mEvidence.getMembers();
+		for (int i = mTreeStart[tree]; i < mTreeStart[tree + 1]; i++) {
+			work.mFactors[i] = new Factor(work.mStates[i], mMembers[i], mScoredIndices[i], scores);
+			if (decided != null && decided.intersects(mMembers[i])) {
+				work.mFactors[i].clampTo(work.mEvidence);
+			}
+		}
+	}
+
+	/**
+	 * Brings tree up to date with scores and writes the probability that each class of tree is
+	 * true into marginals, redoing only the work the change in scores since the last call calls
+	 * for. The first call, and any call after the cliques' factors were reset by other inference
+	 * or their state spaces changed, runs both passes in full.
+	 *
+	 * Otherwise a class is dirty when its score moved by more than tolerance since the score the
+	 * tree was calibrated with, and the cliques scoring dirty classes, along with their
+	 * ancestors, are rebuilt from their potentials and the messages their children last sent up.
+	 * That leaves the root calibrated. Going back down, a clique whose parent changed is sent a
+	 * new message, but when the clique is not dirty itself and the message only differs from the
+	 * last one by a constant, to within tolerance, its subtree's marginals are unchanged and it is
+	 * skipped. Only the marginals of the cliques rebuilt are written; the others are left as the
+	 * caller had them.
+	 *
+	 * With a tolerance of 0 the results match a full run up to rounding. A larger one bounds the
+	 * error by the changes it ignores, which never add up over calls, since an ignored change is
+	 * measured from the score the tree was calibrated with rather than the last one passed in.
+	 */
+	void update(InferenceWorkspace work, int tree, Map<JunctionTreeNode<V>, Set<Configuration>> stateSpaces,
+			double[] scores, double tolerance, double[] marginals) {
+		int start = mTreeStart[tree];
+		int end = mTreeStart[tree + 1];
+		boolean rebound = bind(work, tree, stateSpaces);
+		if (rebound || !work.mCalibrated[tree]) {
+			collect(work, tree, stateSpaces, scores);
+			distribute(work, tree);
+			for (int i = start; i < end; i++) {
+				for (int c : mScoredIndices[i]) {
+					work.mReference[c] = scores[c];
+				}
+			}
+			work.mCalibrated[tree] = true;
+			getMarginals(work, tree, marginals);
+			return;
+		}
+
+		boolean[] dirty = new boolean[end - start];
+		for (int i = start; i < end; i++) {
+			for (int c : mScoredIndices[i]) {
+				if (Math.abs(scores[c] - work.mReference[c]) > tolerance) {
+					work.mReference[c] = scores[c];
+					dirty[i - start] = true;
+				}
+			}
+		}
+		// children come after their parents, so one backwards pass marks every path to the root
+		for (int i = end - 1; i > start; i--) {
+			if (dirty[i - start]) dirty[mParent[i] - start] = true;
+		}
+		if (!dirty[0]) return;
+
+		for (int i = end - 1; i >= start; i--) {
+			if (!dirty[i - start]) continue;
+			recollect(work, i);
+			if (i > start) {
+				work.mPhiStar[i] = work.mFactors[i].getSubDistribution(work.mChildProjection[i],
+						work.mSeparatorStates[i], mSeparator[i]);
+			}
+		}
+
+		boolean[] updated = dirty.clone();
+		for (int i = start + 1; i < end; i++) {
+			if (!updated[mParent[i] - start]) continue;
+			Factor phiStarStar = work.mFactors[mParent[i]].getSubDistribution(work.mParentProjection[i],
+					work.mSeparatorStates[i], mSeparator[i]);
+			Factor divided = phiStarStar.divide(work.mPhiStar[i]);
+			if (dirty[i - start]) {
+				work.mFactors[i].combineDistributionProduct(divided, work.mChildProjection[i]);
+			} else {
+				if (isRescaling(divided, work.mDivided[i], tolerance)) continue;
+				// swap the old message for the new one; an impossible state has no score to
+				// take the old message back out of, so then the clique is rebuilt instead
+				if (isFinite(work.mDivided[i]) && isFinite(divided)) {
+					work.mFactors[i].combineDistributionProduct(divided.divide(work.mDivided[i]),
+							work.mChildProjection[i]);
+				} else {
+					recollect(work, i);
+					work.mFactors[i].combineDistributionProduct(divided, work.mChildProjection[i]);
+				}
+				updated[i - start] = true;
+			}
+			work.mPhiStarStar[i] = phiStarStar;
+			work.mDivided[i] = divided;
+		}
+
+		for (int i = start; i < end; i++) {
+			if (updated[i - start]) getCliqueMarginals(work, i, marginals);
+		}
+	}
+
+	/**
+	 * Resets the factor of clique i to its potential under the reference scores, times the
+	 * messages its children last sent up
+	 */
+	private void recollect(InferenceWorkspace work, int i) {
+		work.mFactors[i] = new Factor(work.mStates[i], mMembers[i], mScoredIndices[i], work.mReference);
+		for (int child : mChildren[i]) {
+			work.mFactors[i].combineDistributionProduct(work.mPhiStar[child], work.mParentProjection[child]);
+		}
+	}
+
+	private static boolean isFinite(Factor factor) {
+		for (int k = 0; k < factor.size(); k++) {
+			if (factor.getValue(k) == Double.NEGATIVE_INFINITY) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns whether message differs from previous by the same amount, to within tolerance, at
+	 * every separator state, i.e. whether multiplying in one rather than the other only rescales
+	 * the distribution
+	 */
+	private static boolean isRescaling(Factor message, Factor previous, double tolerance) {
+		double low = Double.POSITIVE_INFINITY;
+		double high = Double.NEGATIVE_INFINITY;
+		for (int k = 0; k < message.size(); k++) {
+			double a = message.getValue(k);
+			double b = previous.getValue(k);
+			if (a == Double.NEGATIVE_INFINITY || b == Double.NEGATIVE_INFINITY) {
+				if (a != b) return false;
+				continue;
+			}
+			low = Math.min(low, a - b);
+			high = Math.max(high, a - b);
+		}
+		return high - low <= tolerance;
+	}
+
+	/**
+	 * Runs sum-product over tree for a whole batch of score vectors at once, and writes the
+	 * probability that each class of tree is true, for every instance, into marginals. The tables
+	 * hold the batch innermost, as laid out in {@link LogSpace}, so the tree walk and projection
+	 * lookups are paid once per batch. They only live for this call and the cliques' own factors
+	 * are left alone.
+	 *
+	 * @param classScores - the scores, class major: classScores[c * batch + j] is the score of
+	 * 	class c for instance j
+	 * @param marginals - written class major, like classScores
+	 */
+	void getBatchMarginals(InferenceWorkspace work, int tree, Map<JunctionTreeNode<V>, Set<Configuration>> stateSpaces,
+			double[] classScores, int batch, double[] marginals) {
+		bind(work, tree, stateSpaces);
+		int start = mTreeStart[tree];
+		int end = mTreeStart[tree + 1];
+		double[][] values = new double[end - start][];
+		for (int i = start; i < end; i++) {
+			values[i - start] = getBatchPotential(work, i, classScores, batch);
+		}
+
+		double[][] sent = new double[end - start][];
+		for (int i = end - 1; i > start; i--) {
+			sent[i - start] = new double[work.mSeparatorStates[i].length * batch];
+			LogSpace.sumOutBatch(values[i - start], work.mChildProjection[i], batch, sent[i - start]);
+			LogSpace.addProjectedBatch(values[mParent[i] - start], sent[i - start],
+					work.mParentProjection[i], batch);
+		}
+		for (int i = start + 1; i < end; i++) {
+			double[] message = new double[work.mSeparatorStates[i].length * batch];
+			LogSpace.sumOutBatch(values[mParent[i] - start], work.mParentProjection[i], batch, message);
+			LogSpace.subtract(message, sent[i - start], message);
+			LogSpace.addProjectedBatch(values[i - start], message, work.mChildProjection[i], batch);
+		}
+
+		double[] logPartition = new double[batch];
+		for (int i = start; i < end; i++) {
+			int[] scored = mScoredIndices[i];
+			if (scored.length == 0) continue;
+			double[] table = values[i - start];
+			LogSpace.logSumExpBatch(table, batch, logPartition);
+			for (int c : scored) {
+				Arrays.fill(marginals, c * batch, (c + 1) * batch, 0.0);
+			}
+			for (int k = 0; k < work.mStates[i].length; k++) {
+				int row = k * batch;
+				LogSpace.expRow(table, row, logPartition, batch);
+				for (int c : scored) {
+					if (work.mStates[i][k].isSet(c)) LogSpace.addRow(marginals, c * batch, table, row, batch);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the log potential of clique i for every instance of a batch, state major
+	 */
+	private double[] getBatchPotential(InferenceWorkspace work, int i, double[] classScores, int batch) {
+		double[] values = new double[work.mStates[i].length * batch];
+		for (int k = 0; k < work.mStates[i].length; k++) {
+			for (int c : mScoredIndices[i]) {
+				if (work.mStates[i][k].isSet(c)) LogSpace.addRow(values, k * batch, classScores, c * batch, batch);
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Runs max-product over tree. Max-marginals are collected at the root, leaves first, keeping
+	 * for each separator state the child state that achieved it. The best root state is then
+	 * followed back down through those backpointers.
+	 *
+	 * @param map - the classes of tree are set to their most likely configuration
+	 * @return the log score of that configuration
+	 */
+	double getMap(InferenceWorkspace work, int tree, Map<JunctionTreeNode<V>, Set<Configuration>> stateSpaces,
+			double[] scores, Configuration map) {
+		initFactors(work, tree, stateSpaces, scores);
+		int start = mTreeStart[tree];
+		int end = mTreeStart[tree + 1];
+		int[][] backpointers = new int[end - start][];
+		for (int i = end - 1; i > start; i--) {
+			backpointers[i - start] = new int[work.mSeparatorStates[i].length];
+			Factor message = work.mFactors[i].getMaxDistribution(work.mChildProjection[i], work.mSeparatorStates[i],
+					mSeparator[i], backpointers[i - start]);
+			work.mFactors[mParent[i]].combineDistributionProduct(message, work.mParentProjection[i]);
+		}
+
+		Factor root = work.mFactors[start];
+		int[] chosen = new int[end - start];
+		chosen[0] = root.getArgMax();
+		for (int i = start + 1; i < end; i++) {
+			int separatorState = work.mParentProjection[i][chosen[mParent[i] - start]];
+			chosen[i - start] = backpointers[i - start][separatorState];
+		}
+		for (int i = start; i < end; i++) {
+			Configuration state = work.mStates[i][chosen[i - start]];
+			for (int c : mMemberIndices[i]) {
+				map.setValue(c, state.get(c));
+			}
+		}
+		return root.getValue(chosen[0]);
+	}
+
+	/**
+	 * Finds the k most likely configurations of the whole forest by k-best max-product. Every
+	 * clique state keeps the k best ways to complete it below, made by merging the k best
+	 * messages of its children, and every message keeps the k best child completions of each
+	 * separator state. The roots' lists, merged across trees, give the k best configurations,
+	 * which are read back through the ranks each entry remembers. This never touches the global
+	 * state space, and costs about k log k per clique state and child.
+	 *
+	 * @return the configurations, most likely first, with their log scores
+	 */
+	List<Pair<Configuration, Double>> getKBest(InferenceWorkspace work,
+			Map<JunctionTreeNode<V>, Set<Configuration>> stateSpaces, double[] scores, int k,
+			int numClasses) {
+		int size = mCliques.length;
+		// completions[i][x]: the best completions below state x of clique i
+		// messages[i][s]: the best completions of clique i for state s of its parent separator
+		Candidate[][][] completions = new Candidate[size][][];
+		Candidate[][][] messages = new Candidate[size][][];
+
+		// the best root completions of each tree, and their best sums across trees
+		Candidate[][] roots = new Candidate[getTreeCount()][];
+		List<Candidate> forest = new ArrayList<Candidate>();
+		forest.add(new Candidate(0.0, -1, -1, new int[getTreeCount()]));
+		for (int t = 0; t < getTreeCount(); t++) {
+			initFactors(work, t, stateSpaces, scores);
+			for (int i = mTreeStart[t + 1] - 1; i >= mTreeStart[t]; i--) {
+				Factor potential = work.mFactors[i];
+				int[] below = mChildren[i];
+				completions[i] = new Candidate[work.mStates[i].length][];
+				for (int x = 0; x < work.mStates[i].length; x++) {
+					List<Candidate> list = new ArrayList<Candidate>();
+					list.add(new Candidate(potential.getValue(x), x, -1, new int[below.length]));
+					for (int c = 0; c < below.length && !list.isEmpty(); c++) {
+						int child = below[c];
+						Candidate[] message = messages[child][work.mParentProjection[child][x]];
+						list = merge(list, message, c, k);
+					}
+					completions[i][x] = list.toArray(new Candidate[list.size()]);
+				}
+				if (mParent[i] >= 0) {
+					messages[i] = best(completions[i], work.mChildProjection[i],
+							work.mSeparatorStates[i].length, k);
+				} else {
+					roots[t] = best(completions[i], new int[work.mStates[i].length], 1, k)[0];
+				}
+			}
+			forest = merge(forest, roots[t], t, k);
+		}
+
+		List<Pair<Configuration, Double>> result = new ArrayList<Pair<Configuration, Double>>();
+		for (Candidate candidate : forest) {
+			Configuration config = new Configuration(numClasses);
+			for (int t = 0; t < getTreeCount(); t++) {
+				Candidate root = roots[t][candidate.mChildRanks[t]];
+				decode(work, mTreeStart[t], root.mState, root.mRank, completions, messages, config);
+			}
+			result.add(new Pair<Configuration, Double>(config, candidate.mScore));
+		}
+		return result;
+	}
+
+	/**
+	 * Sets the classes of clique i and everything below it to the completion of state x with the
+	 * given rank
+	 */
+	private void decode(InferenceWorkspace work, int i, int x, int rank, Candidate[][][] completions,
+			Candidate[][][] messages, Configuration config) {
+		Configuration state = work.mStates[i][x];
+		for (int c : mMemberIndices[i]) {
+			config.setValue(c, state.get(c));
+		}
+		Candidate completion = completions[i][x][rank];
+		int[] below = mChildren[i];
+		for (int c = 0; c < below.length; c++) {
+			int child = below[c];
+			Candidate sent = messages[child][work.mParentProjection[child][x]][completion.mChildRanks[c]];
+			decode(work, child, sent.mState, sent.mRank, completions, messages, config);
+		}
+	}
+
+	/**
+	 * Returns the k best sums of an entry of list and an entry of other, recording the rank of
+	 * the entry of other at position slot. Both must be sorted best first. Pairs are taken from a
+	 * frontier that starts at the two best entries, so only about k of them are ever summed.
+	 */
+	private static List<Candidate> merge(List<Candidate> list, Candidate[] other, int slot, int k) {
+		List<Candidate> merged = new ArrayList<Candidate>(k);
+		if (list.isEmpty() || other.length == 0) return merged;
+		PriorityQueue<int[]> frontier = new PriorityQueue<int[]>(11, new PairOrder(list, other));
+		Set<Long> seen = new HashSet<Long>();
+		frontier.add(new int[] { 0, 0 });
+		seen.add(0L);
+		while (merged.size() < k && !frontier.isEmpty()) {
+			int[] pair = frontier.poll();
+			Candidate a = list.get(pair[0]);
+			int[] ranks = a.mChildRanks.clone();
+			ranks[slot] = pair[1];
+			merged.add(new Candidate(a.mScore + other[pair[1]].mScore, a.mState, a.mRank, ranks));
+			if (pair[0] + 1 < list.size() && seen.add(((long) (pair[0] + 1) << 32) | pair[1])) {
+				frontier.add(new int[] { pair[0] + 1, pair[1] });
+			}
+			if (pair[1] + 1 < other.length && seen.add(((long) pair[0] << 32) | (pair[1] + 1))) {
+				frontier.add(new int[] { pair[0], pair[1] + 1 });
+			}
+		}
+		return merged;
+	}
+
+	/**
+	 * Groups the completions of every state by the bucket it projects onto and keeps the k best
+	 * of each bucket, best first, as entries pointing back at their state and rank
+	 */
+	private static Candidate[][] best(Candidate[][] completions, int[] projection, int buckets, int k) {
+		List<List<Candidate>> grouped = new ArrayList<List<Candidate>>(buckets);
+		for (int b = 0; b < buckets; b++) {
+			grouped.add(new ArrayList<Candidate>());
+		}
+		for (int x = 0; x < completions.length; x++) {
+			for (int r = 0; r < completions[x].length; r++) {
+				grouped.get(projection[x]).add(new Candidate(completions[x][r].mScore, x, r, null));
+			}
+		}
+		Candidate[][] best = new Candidate[buckets][];
+		for (int b = 0; b < buckets; b++) {
+			List<Candidate> group = grouped.get(b);
+			// stable, so ties keep the lower state first
+			Collections.sort(group, BY_SCORE);
+			best[b] = group.subList(0, Math.min(k, group.size())).toArray(new Candidate[0]);
+		}
+		return best;
+	}
+
+	private static final Comparator<Candidate> BY_SCORE = new Comparator<Candidate>() {
+		@Override
+		public int compare(Candidate a, Candidate b) {
+			return Double.compare(b.mScore, a.mScore);
+		}
+	};
+
+	/**
+	 * One of the k best completions of a clique state or separator state
+	 */
+	private static final class Candidate {
+		final double mScore;
+		// the clique state this completes, and its rank among that state's completions
+		final int mState;
+		final int mRank;
+		// for each child, the rank of the message entry this completion uses
+		final int[] mChildRanks;
+
+		Candidate(double score, int state, int rank, int[] childRanks) {
+			mScore = score;
+			mState = state;
+			mRank = rank;
+			mChildRanks = childRanks;
+		}
+	}
+
+	/**
+	 * Orders index pairs into two sorted lists by the sum of their scores, best first, then by
+	 * index so the order is deterministic
+	 */
+	private static final class PairOrder implements Comparator<int[]> {
+		private final List<Candidate> mList;
+		private final Candidate[] mOther;
+
+		PairOrder(List<Candidate> list, Candidate[] other) {
+			mList = list;
+			mOther = other;
+		}
+
+		@Override
+		public int compare(int[] a, int[] b) {
+			double scoreA = mList.get(a[0]).mScore + mOther[a[1]].mScore;
+			double scoreB = mList.get(b[0]).mScore + mOther[b[1]].mScore;
+			if (scoreA != scoreB) return scoreA > scoreB ? -1 : 1;
+			if (a[0] != b[0]) return a[0] - b[0];
+			return a[1] - b[1];
+		}
+	}
+
+	/**
+	 * Sends the collected beliefs back down tree from the root to the leaves. Each clique
+	 * already holds the message it sent up, so it takes the parent's separator marginal divided
+	 * by that message.
+	 */
+	void distribute(InferenceWorkspace work, int tree) {
+		int start = mTreeStart[tree];
+		int end = mTreeStart[tree + 1];
+		if (isParallel(work, tree)) {
+			StateSpaceEnumerator.getSharedPool().invoke(new DistributeTask(work, start));
+			return;
+		}
+		for (int i = start + 1; i < end; i++) {
+			sendDown(work, i);
+		}
+	}
+
+	/**
+	 * Returns the log partition function of tree, which is the same at every clique once
+	 * messages have been collected at the root
+	 */
+	double getLogPartition(InferenceWorkspace work, int tree) {
+		return work.mFactors[mTreeStart[tree]].getLogPartition();
+	}
+
+	/**
+	 * Returns the log score of config under the calibrated forest: the sum of the clique beliefs
+	 * it agrees with, less the separator beliefs. Every tree must have been collected, and every
+	 * tree of more than one clique distributed.
+	 */
+	double getLogValue(InferenceWorkspace work, Configuration config) {
+		double logScore = 0.0;
+		for (int i = 0; i < mCliques.length; i++) {
+			logScore += work.mFactors[i].getLogValue(config);
+			if (mParent[i] >= 0) logScore -= work.mPhiStarStar[i].getLogValue(config);
+		}
+		return logScore;
+	}
+
+	/**
+	 * Prints the belief of every clique and the messages over every separator, as left in work
+	 */
+	void printFactors(InferenceWorkspace work) {
+		for (int i = 0; i < mCliques.length; i++) {
+			if (work.mFactors[i] != null) work.mFactors[i].print("node", mMembers[i]);
+		}
+		for (int i = 0; i < mCliques.length; i++) {
+			if (mParent[i] < 0 || work.mPhiStar[i] == null) continue;
+			System.out.println("edge between " + mMembers[mParent[i]] + " and " + mMembers[i]);
+			work.mPhiStar[i].print("phistar");
+			if (work.mPhiStarStar[i] != null) work.mPhiStarStar[i].print("phistarstar");
+		}
+	}
+
+	/**
+	 * Writes the probability that each class of tree is true into marginals, reading every class
+	 * off the clique that scores it. Messages must have been collected and distributed.
+	 */
+	void getMarginals(InferenceWorkspace work, int tree, double[] marginals) {
+		for (int i = mTreeStart[tree]; i < mTreeStart[tree + 1]; i++) {
+			getCliqueMarginals(work, i, marginals);
+		}
+	}
+
+	/**
+	 * Writes the probability that each class scored by clique i is true into marginals
+	 */
+	private void getCliqueMarginals(InferenceWorkspace work, int i, double[] marginals) {
+		int[] scored = mScoredIndices[i];
+		if (scored.length == 0) return;
+		Factor factor = work.mFactors[i];
+		double[] probabilities = factor.getProbabilities();
+		for (int c : scored) {
+			marginals[c] = 0.0;
+		}
+		for (int k = 0; k < probabilities.length; k++) {
+			Configuration state = factor.getState(k);
+			for (int c : scored) {
+				if (state.isSet(c)) marginals[c] += probabilities[k];
+			}
+		}
+	}
+}
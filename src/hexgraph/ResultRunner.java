@@ -8,11 +8,13 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintWriter;
 import java.util.BitSet;
+import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Scanner;
 
 import util.NameSpace;
+import util.Pair;
 
 
 public class ResultRunner {
@@ -20,8 +22,11 @@ public class ResultRunner {
 	private static String mScoreDirectory = "src/score_files/figer-hex/scores";
 	private static String mOutputDirectory = "src/output_files";
 	private static String mGraphDirectory = "src/graph_files/figer";
+	private static String mModelDirectory = "src/model_files/figer";
 	private static String mNameSpaceFile = "src/data_files/namespace/type.list";
 	private static boolean MARGINAL = true;
+	// how many of the most likely configurations joint mode writes out
+	private static int K_BEST = 5;
 	
 	private static NameSpace<String> mNameSpace;
 	
@@ -46,12 +51,12 @@ public class ResultRunner {
 					outputSubDir.mkdirs();
 				}
 				
-				factory.buildHEXGraph(filepath);
-				HEXGraphMethods methods = new HEXGraphMethods(factory, filepath, mNameSpace);
-				System.out.println("Built graph from" + filepath);
-				
-				JunctionTree<String> tree = methods.buildJunctionTree();
-				System.out.println("Done building tree");
+				// reuse the compiled model unless the graph file changed since it was written
+				File modelFile = CompiledHexModel.getArtifactFile(graphFile, new File(mModelDirectory));
+				CompiledHexModel model = CompiledHexModel.loadOrCompile(filepath, modelFile, mNameSpace);
+				HEXGraphMethods methods = model.getMethods();
+				JunctionTree<String> tree = model.getJunctionTree();
+				System.out.println("Loaded model for " + filepath);
 				
 				// iterate through the score directory and 
 				File scoreDir = new File(mScoreDirectory);
@@ -64,7 +69,7 @@ public class ResultRunner {
 						if (MARGINAL) {
 							runMarginalInference(methods, scoreFile, outputSubDir, tree, scores);
 						} else {
-							runJointInference(methods, scoreFile, outputSubDir, tree);
+							runJointInference(methods, scoreFile, outputSubDir, tree, scores);
 						}
 					}
 				} else {
@@ -121,8 +126,8 @@ public class ResultRunner {
 	}
 	
 	private static void runJointInference(HEXGraphMethods methods, File scoreFile, 
-			File outputSubDir, JunctionTree<String> tree) throws IOException, IllegalStateException {
-		Map<Configuration, Double> scoreMap = methods.exactInference(tree);
+			File outputSubDir, JunctionTree<String> tree, Map<String, Double> scores) throws IOException, IllegalStateException {
+		List<Pair<Configuration, Double>> best = methods.exactKBestInference(tree, scores, K_BEST);
 		
 		File outputFile = new File(outputSubDir.getPath() + "/new_joint_" + scoreFile.getName());
 		PrintWriter writer = new PrintWriter(outputFile.getPath(), "UTF-8");
@@ -136,9 +141,9 @@ public class ResultRunner {
 			sc.close();
 		}
 		
-		for (Configuration key : scoreMap.keySet()) {
+		for (Pair<Configuration, Double> entry : best) {
 			boolean zeroFlag = true;
-			BitSet setting = key.getBitwiseConfig();
+			BitSet setting = entry.first.getBitwiseConfig();
 			for (int i = 0; i < setting.length(); i++) {
 				if (setting.get(i)) {
 					zeroFlag = false;
@@ -149,7 +154,7 @@ public class ResultRunner {
 				writer.println("No positive assignments");
 			}
 			writer.println();
-			writer.println(scoreMap.get(key));
+			writer.println(entry.second);
 			writer.println();
 			writer.println("----------");
 			writer.println();
@@ -0,0 +1,123 @@
+package hexgraph;
+
+import java.util.Arrays;
+
+/**
+ * Runs the {@link LogSpace} table loops one entry at a time. It works on every JVM, so it is
+ * the fallback when no vector kernel can be loaded, and the reference the vector kernels are
+ * checked against.
+ */
+class ScalarLogSpaceKernel implements LogSpaceKernel {
+	@Override
+	public String getName() {
+		return "scalar";
+	}
+
+	@Override
+	public double logSumExp(double[] values) {
+		double max = Double.NEGATIVE_INFINITY;
+		for (double value : values) {
+			if (value > max) max = value;
+		}
+		if (max == Double.NEGATIVE_INFINITY || max == Double.POSITIVE_INFINITY) return max;
+		double sum = 0.0;
+		for (double value : values) {
+			sum += Math.exp(value - max);
+		}
+		return max + Math.log(sum);
+	}
+
+	@Override
+	public void sumOut(double[] values, int[] projection, double[] out) {
+		Arrays.fill(out, Double.NEGATIVE_INFINITY);
+		for (int k = 0; k < values.length; k++) {
+			if (values[k] > out[projection[k]]) out[projection[k]] = values[k];
+		}
+		double[] sums = new double[out.length];
+		for (int k = 0; k < values.length; k++) {
+			double max = out[projection[k]];
+			if (max != Double.NEGATIVE_INFINITY) {
+				sums[projection[k]] += Math.exp(values[k] - max);
+			}
+		}
+		for (int b = 0; b < out.length; b++) {
+			if (out[b] != Double.NEGATIVE_INFINITY) {
+				out[b] += Math.log(sums[b]);
+			}
+		}
+	}
+
+	@Override
+	public void addProjected(double[] values, double[] message, int[] projection) {
+		for (int k = 0; k < values.length; k++) {
+			values[k] += message[projection[k]];
+		}
+	}
+
+	@Override
+	public void subtract(double[] numerator, double[] denominator, double[] out) {
+		for (int k = 0; k < out.length; k++) {
+			out[k] = denominator[k] == Double.NEGATIVE_INFINITY
+					? Double.NEGATIVE_INFINITY
+					: numerator[k] - denominator[k];
+		}
+	}
+
+	@Override
+	public double normalize(double[] values, double[] out) {
+		double logZ = logSumExp(values);
+		for (int k = 0; k < values.length; k++) {
+			out[k] = Math.exp(values[k] - logZ);
+		}
+		return logZ;
+	}
+
+	@Override
+	public void sumOutBatch(double[] values, int[] projection, int batch, double[] out) {
+		Arrays.fill(out, Double.NEGATIVE_INFINITY);
+		for (int k = 0; k < projection.length; k++) {
+			int row = k * batch;
+			int bucket = projection[k] * batch;
+			for (int j = 0; j < batch; j++) {
+				if (values[row + j] > out[bucket + j]) out[bucket + j] = values[row + j];
+			}
+		}
+		double[] sums = new double[out.length];
+		for (int k = 0; k < projection.length; k++) {
+			int row = k * batch;
+			int bucket = projection[k] * batch;
+			for (int j = 0; j < batch; j++) {
+				double max = out[bucket + j];
+				if (max != Double.NEGATIVE_INFINITY) {
+					sums[bucket + j] += Math.exp(values[row + j] - max);
+				}
+			}
+		}
+		for (int b = 0; b < out.length; b++) {
+			if (out[b] != Double.NEGATIVE_INFINITY) {
+				out[b] += Math.log(sums[b]);
+			}
+		}
+	}
+
+	@Override
+	public void addProjectedBatch(double[] values, double[] message, int[] projection, int batch) {
+		for (int k = 0; k < projection.length; k++) {
+			addRow(values, k * batch, message, projection[k] * batch, batch);
+		}
+	}
+
+	@Override
+	public void addRow(double[] target, int targetOffset, double[] source, int sourceOffset, int length) {
+		for (int j = 0; j < length; j++) {
+			target[targetOffset + j] += source[sourceOffset + j];
+		}
+	}
+
+	@Override
+	public void expRow(double[] values, int offset, double[] shift, int length) {
+		for (int j = 0; j < length; j++) {
+			values[offset + j] = Math.exp(values[offset + j] - shift[j]);
+		}
+	}
+}
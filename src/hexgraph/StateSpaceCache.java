@@ -0,0 +1,200 @@
+package hexgraph;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A cache of listed state spaces, keyed by the classes they cover, the size of the name space
+ * their configurations are over, and the rows of the dense graph they come from restricted to
+ * those classes, which are all the listing depends on. The graph's fingerprint only speeds up
+ * telling keys apart, so two graphs whose fingerprints collide never share entries unless
+ * their rows agree, in which case the state spaces are the same anyway. Any number of {@link HEXGraphMethods} instances, copies and
+ * threads can share one cache; by default they all use {@link #getShared()}.
+ *
+ * Memory is bounded by the total number of cached states. When a new state space pushes the
+ * total over the bound, the least recently used ones are dropped until it fits again. A state
+ * space bigger than the whole bound is listed but not kept. A junction tree keeps the state
+ * spaces of its cliques once they are listed (see
+ * {@link HEXGraphMethods#getJunctionTreeStateSpaces(JunctionTree)}), so evicting them only costs
+ * the next tree built over the same classes a fresh listing.
+ *
+ * Cached sets are unmodifiable, since they are handed to every caller that asks for the same
+ * classes.
+ */
+public class StateSpaceCache {
+	public static final long DEFAULT_MAX_STATES = 1 << 18;
+
+	private static final StateSpaceCache SHARED = new StateSpaceCache(DEFAULT_MAX_STATES);
+
+	private final long mMaxStates;
+	private final LinkedHashMap<Key, Set<Configuration>> mEntries;
+	private long mCachedStates;
+
+	private final AtomicLong mHits = new AtomicLong();
+	private final AtomicLong mMisses = new AtomicLong();
+	private final AtomicLong mEvictions = new AtomicLong();
+
+	/**
+	 * @param maxStates - the most states to hold across all cached state spaces
+	 */
+	public StateSpaceCache(long maxStates) {
+		if (maxStates < 0) {
+			throw new IllegalArgumentException("Cache bound must not be negative");
+		}
+		mMaxStates = maxStates;
+		// access order, so iteration starts at the least recently used entry
+		mEntries = new LinkedHashMap<Key, Set<Configuration>>(16, 0.75f, true);
+	}
+
+	/**
+	 * Returns the cache shared by default between all users in this JVM
+	 */
+	public static StateSpaceCache getShared() {
+		return SHARED;
+	}
+
+	/**
+	 * Returns the state space of members in denseGraph, listing it if it is not cached.
+	 *
+	 * @param denseGraph - the densified graph to list states from
+	 * @param fingerprint - {@link HEXGraph#getFingerprint()} of denseGraph, passed in so callers
+	 * 	can compute it once
+	 * @param members - the classes to list, all of which must be in denseGraph
+	 * @return an unmodifiable set of the legal configurations of members
+	 */
+	public Set<Configuration> get(HEXGraph<?> denseGraph, long fingerprint, BitSet members) {
+		Key key = new Key(denseGraph, fingerprint, members);
+		synchronized (this) {
+			Set<Configuration> cached = mEntries.get(key);
+			if (cached != null) {
+				mHits.incrementAndGet();
+				return cached;
+			}
+		}
+		mMisses.incrementAndGet();
+
+		// list outside the lock so other threads are not held up. Two threads missing on the
+		// same key both list it and the second one's put wins, which is harmless.
+		StateSpaceEnumerator enumerator = new StateSpaceEnumerator(denseGraph, members);
+		Set<Configuration> states = new HashSet<Configuration>();
+		if (members.cardinality() > StateSpaceEnumerator.DEFAULT_SEQUENTIAL_CUTOFF) {
+			// big enough to be worth splitting over all cores
+			Collections.addAll(states, enumerator.toArrayParallel());
+		} else {
+			for (Configuration state : enumerator) {
+				states.add(state);
+			}
+		}
+		states = Collections.unmodifiableSet(states);
+		put(key, states);
+		return states;
+	}
+
+	/**
+	 * Caches states as the state space of members in denseGraph, e.g. when they were read back
+	 * from a {@link CompiledHexModel} rather than listed. The set is handed out as is, so it must
+	 * be unmodifiable.
+	 */
+	void preload(HEXGraph<?> denseGraph, long fingerprint, BitSet members, Set<Configuration> states) {
+		put(new Key(denseGraph, fingerprint, members), states);
+	}
+
+	private synchronized void put(Key key, Set<Configuration> states) {
+		if (states.size() > mMaxStates) return;
+		Set<Configuration> previous = mEntries.put(key, states);
+		if (previous != null) {
+			mCachedStates -= previous.size();
+		}
+		mCachedStates += states.size();
+		Iterator<Map.Entry<Key, Set<Configuration>>> it = mEntries.entrySet().iterator();
+		while (mCachedStates > mMaxStates && it.hasNext()) {
+			Map.Entry<Key, Set<Configuration>> eldest = it.next();
+			if (eldest.getKey().equals(key)) continue;
+			mCachedStates -= eldest.getValue().size();
+			it.remove();
+			mEvictions.incrementAndGet();
+		}
+	}
+
+	public long getHits() {
+		return mHits.get();
+	}
+
+	public long getMisses() {
+		return mMisses.get();
+	}
+
+	public long getEvictions() {
+		return mEvictions.get();
+	}
+
+	/**
+	 * Returns the number of cached state spaces
+	 */
+	public synchronized int size() {
+		return mEntries.size();
+	}
+
+	/**
+	 * Returns the number of states held across all cached state spaces
+	 */
+	public synchronized long getCachedStates() {
+		return mCachedStates;
+	}
+
+	public synchronized void clear() {
+		mEntries.clear();
+		mCachedStates = 0;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("StateSpaceCache: %d state spaces, %d states, %d hits, %d misses, %d evictions",
+				size(), getCachedStates(), getHits(), getMisses(), getEvictions());
+	}
+
+	private static final class Key {
+		private final long mFingerprint;
+		private final int mNumClasses;
+		private final BitSet mMembers;
+		// the ancestors and then the exclusions of each member among the members, in order
+		private final BitSet[] mRows;
+
+		Key(HEXGraph<?> denseGraph, long fingerprint, BitSet members) {
+			mFingerprint = fingerprint;
+			mNumClasses = denseGraph.getNameSpace().size();
+			mMembers = (BitSet) members.clone();
+			BitSet nodes = denseGraph.getNodeIndices();
+			nodes.and(members);
+			mRows = new BitSet[2 * nodes.cardinality()];
+			int k = 0;
+			for (int i = nodes.nextSetBit(0); i >= 0; i = nodes.nextSetBit(i + 1)) {
+				mRows[k] = denseGraph.getAncestorIndices(i);
+				mRows[k++].and(nodes);
+				mRows[k] = denseGraph.getExcludedIndices(i);
+				mRows[k++].and(nodes);
+			}
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) return false;
+			Key other = (Key) o;
+			return mFingerprint == other.mFingerprint && mNumClasses == other.mNumClasses
+					&& mMembers.equals(other.mMembers) && Arrays.equals(mRows, other.mRows);
+		}
+
+		@Override
+		public int hashCode() {
+			int hash = 31 * (int) (mFingerprint ^ (mFingerprint >>> 32)) + mNumClasses;
+			return 31 * hash + mMembers.hashCode();
+		}
+	}
+}
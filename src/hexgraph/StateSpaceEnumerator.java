@@ -0,0 +1,323 @@
+package hexgraph;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import util.TriState;
+
+/**
+ * Streams the legal configurations of a set of classes in a densified {@link HEXGraph}.
+ *
+ * The state space is split on one pivot class at a time. When the pivot is true its ancestors
+ * are true and the classes it excludes are false. When it is false its descendants are false.
+ * Classes decided this way drop out and the rest is split again. The split is driven by an
+ * explicit stack rather than recursion, and the pivot is always the remaining class with the
+ * most relations among the enumerated classes, ties going to the lowest index, so every run
+ * produces the same states in the same order. States are handed out one at a time, so nothing
+ * needs to hold the whole state space.
+ *
+ * Each split leaves two independent subproblems, so {@link #toArray(ForkJoinPool, int)} hands
+ * them to a fork-join pool until they get small enough to finish sequentially. Every task
+ * fills its own buffer and the buffers are joined true branch first, so the parallel result is
+ * in the same order as the sequential one.
+ *
+ * An empty set of classes has a single, empty, configuration.
+ */
+public class StateSpaceEnumerator implements Iterable<Configuration> {
+	/**
+	 * Receives each state of the enumeration in turn
+	 */
+	public interface Visitor {
+		void visit(Configuration state);
+	}
+
+	/**
+	 * Subproblems with at most this many undecided classes are enumerated sequentially
+	 */
+	public static final int DEFAULT_SEQUENTIAL_CUTOFF = 12;
+
+	private static ForkJoinPool sPool;
+
+	private final HEXGraph<?> mGraph;
+	private final int mNumClasses;
+	private final BitSet mNodes;
+	private final int[] mPivotOrder;
+
+	// rows of the dense graph restricted to mNodes, indexed by name space index
+	private final BitSet[] mAncestors;
+	private final BitSet[] mDescendants;
+	private final BitSet[] mExcluded;
+
+	/**
+	 * Enumerates every node of denseGraph
+	 */
+	public StateSpaceEnumerator(HEXGraph<?> denseGraph) {
+		this(denseGraph, denseGraph.getNodeIndices());
+	}
+
+	/**
+	 * Enumerates the given nodes of denseGraph. Nodes outside the graph are ignored.
+	 */
+	public StateSpaceEnumerator(HEXGraph<?> denseGraph, BitSet nodes) {
+		mGraph = denseGraph;
+		mNumClasses = denseGraph.getNameSpace().size();
+		mNodes = denseGraph.getNodeIndices();
+		mNodes.and(nodes);
+		mAncestors = new BitSet[mNumClasses];
+		mDescendants = new BitSet[mNumClasses];
+		mExcluded = new BitSet[mNumClasses];
+
+		final int[] relations = new int[mNumClasses];
+		List<Integer> order = new ArrayList<Integer>(mNodes.cardinality());
+		for (int i = mNodes.nextSetBit(0); i >= 0; i = mNodes.nextSetBit(i + 1)) {
+			mAncestors[i] = denseGraph.getAncestorIndices(i);
+			mAncestors[i].and(mNodes);
+			mDescendants[i] = denseGraph.getDescendantIndices(i);
+			mDescendants[i].and(mNodes);
+			mExcluded[i] = denseGraph.getExcludedIndices(i);
+			mExcluded[i].and(mNodes);
+			relations[i] = mAncestors[i].cardinality() + mDescendants[i].cardinality()
+					+ mExcluded[i].cardinality();
+			order.add(i);
+		}
+		Collections.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				if (relations[a] != relations[b]) return relations[a] > relations[b] ? -1 : 1;
+				return a.compareTo(b);
+			}
+		});
+		mPivotOrder = new int[order.size()];
+		for (int i = 0; i < mPivotOrder.length; i++) {
+			mPivotOrder[i] = order.get(i);
+		}
+	}
+
+	/**
+	 * Returns the classes being enumerated
+	 */
+	public BitSet getNodes() {
+		return (BitSet) mNodes.clone();
+	}
+
+	/**
+	 * Counts the states without building them
+	 */
+	public long count() {
+		return mGraph.countStates(mNodes);
+	}
+
+	/**
+	 * Passes every state to visitor, in enumeration order
+	 */
+	public void visit(Visitor visitor) {
+		Cursor cursor = new Cursor();
+		Configuration state;
+		while ((state = cursor.advance()) != null) {
+			visitor.visit(state);
+		}
+	}
+
+	/**
+	 * Returns the states in an array, in enumeration order
+	 */
+	public Configuration[] toArray() {
+		final List<Configuration> states = new ArrayList<Configuration>();
+		visit(new Visitor() {
+			@Override
+			public void visit(Configuration state) {
+				states.add(state);
+			}
+		});
+		return states.toArray(new Configuration[states.size()]);
+	}
+
+	/**
+	 * Returns the states in an array, in enumeration order, splitting the work over a shared
+	 * fork-join pool with one thread per core
+	 */
+	public Configuration[] toArrayParallel() {
+		return toArray(getSharedPool(), DEFAULT_SEQUENTIAL_CUTOFF);
+	}
+
+	/**
+	 * Returns the states in an array, in enumeration order, splitting the work over pool.
+	 * @param cutoff - subproblems with at most this many undecided classes are not split further
+	 */
+	public Configuration[] toArray(ForkJoinPool pool, int cutoff) {
+		Frame root = new Frame(new Configuration(mNumClasses), (BitSet) mNodes.clone());
+		List<Configuration> states = pool.invoke(new SplitTask(root, cutoff));
+		return states.toArray(new Configuration[states.size()]);
+	}
+
+	/**
+	 * Returns the fork-join pool with one thread per core that enumeration shares with
+	 * {@link MessageSchedule}, made the first time either needs it
+	 */
+	static synchronized ForkJoinPool getSharedPool() {
+		if (sPool == null) {
+			sPool = new ForkJoinPool();
+		}
+		return sPool;
+	}
+
+	@Override
+	public Iterator<Configuration> iterator() {
+		return new Iterator<Configuration>() {
+			private final Cursor mCursor = new Cursor();
+			private Configuration mNext = mCursor.advance();
+
+			@Override
+			public boolean hasNext() {
+				return mNext != null;
+			}
+
+			@Override
+			public Configuration next() {
+				if (mNext == null) throw new NoSuchElementException();
+				Configuration state = mNext;
+				mNext = mCursor.advance();
+				return state;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * Returns the first class of the pivot order that is still undecided
+	 */
+	private int getPivot(BitSet remaining) {
+		for (int pivot : mPivotOrder) {
+			if (remaining.get(pivot)) return pivot;
+		}
+		throw new IllegalStateException("No pivot among the remaining classes");
+	}
+
+	/**
+	 * A partially decided configuration and the classes it still has to decide
+	 */
+	private static class Frame {
+		final Configuration mConfig;
+		final BitSet mRemaining;
+
+		Frame(Configuration config, BitSet remaining) {
+			mConfig = config;
+			mRemaining = remaining;
+		}
+	}
+
+	/**
+	 * Splits off the subproblem of one pivot, forking the false branch and working on the true
+	 * branch itself, until few enough classes remain to run a {@link Cursor}
+	 */
+	private class SplitTask extends RecursiveTask<List<Configuration>> {
+		private static final long serialVersionUID = 1L;
+
+		private final Frame mFrame;
+		private final int mCutoff;
+
+		SplitTask(Frame frame, int cutoff) {
+			mFrame = frame;
+			mCutoff = cutoff;
+		}
+
+		@Override
+		protected List<Configuration> compute() {
+			if (mFrame.mRemaining.cardinality() <= mCutoff) {
+				List<Configuration> states = new ArrayList<Configuration>();
+				Cursor cursor = new Cursor(mFrame);
+				Configuration state;
+				while ((state = cursor.advance()) != null) {
+					states.add(state);
+				}
+				return states;
+			}
+			Frame whenFalse = split(mFrame);
+			SplitTask falseTask = new SplitTask(whenFalse, mCutoff);
+			falseTask.fork();
+			List<Configuration> states = new SplitTask(mFrame, mCutoff).compute();
+			states.addAll(falseTask.join());
+			return states;
+		}
+	}
+
+	/**
+	 * Splits frame on its next pivot. Frame carries on as the true branch and the false branch
+	 * is returned.
+	 */
+	private Frame split(Frame frame) {
+		Configuration config = frame.mConfig;
+		BitSet remaining = frame.mRemaining;
+		int pivot = getPivot(remaining);
+		remaining.clear(pivot);
+
+		// false branch: the pivot and its undecided descendants are false
+		BitSet whenFalse = (BitSet) remaining.clone();
+		Configuration falseConfig = config.getDeepCopy();
+		falseConfig.setValue(pivot, TriState.FALSE);
+		BitSet descendants = (BitSet) mDescendants[pivot].clone();
+		descendants.and(remaining);
+		setAll(falseConfig, descendants, TriState.FALSE);
+		whenFalse.andNot(descendants);
+
+		// true branch, carried on in place: its undecided ancestors are true and the undecided
+		// classes it excludes are false
+		config.setValue(pivot, TriState.TRUE);
+		BitSet ancestors = (BitSet) mAncestors[pivot].clone();
+		ancestors.and(remaining);
+		setAll(config, ancestors, TriState.TRUE);
+		BitSet excluded = (BitSet) mExcluded[pivot].clone();
+		excluded.and(remaining);
+		setAll(config, excluded, TriState.FALSE);
+		remaining.andNot(ancestors);
+		remaining.andNot(excluded);
+
+		return new Frame(falseConfig, whenFalse);
+	}
+
+	/**
+	 * Walks the split tree depth first, true branch first, one leaf at a time
+	 */
+	private class Cursor {
+		private final Deque<Frame> mStack = new ArrayDeque<Frame>();
+
+		Cursor() {
+			this(new Frame(new Configuration(mNumClasses), (BitSet) mNodes.clone()));
+		}
+
+		Cursor(Frame start) {
+			mStack.push(start);
+		}
+
+		/**
+		 * Returns the next state, or null when there are none left
+		 */
+		Configuration advance() {
+			if (mStack.isEmpty()) return null;
+			Frame frame = mStack.pop();
+			while (!frame.mRemaining.isEmpty()) {
+				mStack.push(split(frame));
+			}
+			return frame.mConfig;
+		}
+	}
+
+	private static void setAll(Configuration config, BitSet indices, TriState value) {
+		for (int i = indices.nextSetBit(0); i >= 0; i = indices.nextSetBit(i + 1)) {
+			config.setValue(i, value);
+		}
+	}
+}
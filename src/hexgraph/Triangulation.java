@@ -0,0 +1,316 @@
+package hexgraph;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import util.NameSpace;
+
+/**
+ * The result of triangulating a {@link HEXGraph} with an {@link EliminationHeuristic}: the
+ * elimination ordering, the fill edges and maximal cliques it produced, and cost figures for
+ * the junction tree those cliques would make.
+ *
+ * Clique state counts are the number of legal HEX configurations of the clique in the dense
+ * graph when one was given, and 2^|clique| otherwise. Counting takes time in proportion to the
+ * count, so it can stop at a state limit: a clique with more states than the limit counts as
+ * limit + 1, and {@link #exceedsStateLimit()} tells whether any clique of the result did.
+ */
+public class Triangulation<V> {
+	private final EliminationHeuristic mHeuristic;
+	private final NameSpace<V> mNameSpace;
+
+	private final int[] mOrder;
+	private final BitSet[] mFilled;
+	private final List<BitSet> mCliques;
+	private final long[] mCliqueStates;
+
+	private int mMaxCliqueSize;
+	private long mTotalCliqueStates;
+	private long mEstimatedMessageCost;
+
+	private final HEXGraph<V> mDenseGraph;
+	private final long mStateLimit;
+	private final Map<BitSet, Long> mStateCounts;
+	private boolean mExceedsStateLimit;
+
+	/**
+	 * Eliminates every node of graph in the order picked by heuristic.
+	 *
+	 * @param graph - the graph to triangulate. It is not modified.
+	 * @param denseGraph - the densified graph used to count clique states, or null
+	 * @param heuristic - the rule that picks the next node to eliminate
+	 * @param stateLimit - the most states counted per clique, or Long.MAX_VALUE for no limit
+	 * @throws IllegalArgumentException if heuristic is MIN_STATES and denseGraph is null, or
+	 * 	stateLimit is not positive
+	 */
+	Triangulation(HEXGraph<V> graph, HEXGraph<V> denseGraph, EliminationHeuristic heuristic,
+			long stateLimit, NameSpace<V> nameSpace) {
+		if (heuristic == EliminationHeuristic.MIN_STATES && denseGraph == null) {
+			throw new IllegalArgumentException("MIN_STATES needs the dense graph to count states");
+		}
+		if (stateLimit < 1) {
+			throw new IllegalArgumentException("The state limit must be positive");
+		}
+		mHeuristic = heuristic;
+		mNameSpace = nameSpace;
+		mDenseGraph = denseGraph;
+		mStateLimit = stateLimit;
+		mStateCounts = new HashMap<BitSet, Long>();
+
+		BitSet remaining = graph.getNodeIndices();
+		mOrder = new int[remaining.cardinality()];
+		mFilled = new BitSet[nameSpace.size()];
+		BitSet[] adjacency = new BitSet[nameSpace.size()];
+		for (int i = remaining.nextSetBit(0); i >= 0; i = remaining.nextSetBit(i + 1)) {
+			adjacency[i] = graph.getTriangulatedIndices(i);
+			mFilled[i] = (BitSet) adjacency[i].clone();
+		}
+
+		long[] cost = new long[nameSpace.size()];
+		for (int i = remaining.nextSetBit(0); i >= 0; i = remaining.nextSetBit(i + 1)) {
+			cost[i] = getCost(i, adjacency);
+		}
+
+		BitSet[] eliminationCliques = new BitSet[nameSpace.size()];
+		for (int step = 0; step < mOrder.length; step++) {
+			// ties go to the lowest index so the ordering is reproducible
+			int best = -1;
+			for (int i = remaining.nextSetBit(0); i >= 0; i = remaining.nextSetBit(i + 1)) {
+				if (best < 0 || cost[i] < cost[best]) best = i;
+			}
+			mOrder[step] = best;
+			remaining.clear(best);
+
+			// connect the neighbors of best to each other and take best out of the graph
+			BitSet neighbors = adjacency[best];
+			for (int u = neighbors.nextSetBit(0); u >= 0; u = neighbors.nextSetBit(u + 1)) {
+				adjacency[u].or(neighbors);
+				adjacency[u].clear(u);
+				adjacency[u].clear(best);
+				mFilled[u].or(neighbors);
+				mFilled[u].clear(u);
+			}
+			eliminationCliques[best] = (BitSet) neighbors.clone();
+			eliminationCliques[best].set(best);
+
+			// only the costs of nodes whose neighborhood changed need to be recomputed
+			BitSet dirty = (BitSet) neighbors.clone();
+			if (heuristic == EliminationHeuristic.MIN_FILL) {
+				for (int u = neighbors.nextSetBit(0); u >= 0; u = neighbors.nextSetBit(u + 1)) {
+					dirty.or(adjacency[u]);
+				}
+			}
+			dirty.and(remaining);
+			for (int u = dirty.nextSetBit(0); u >= 0; u = dirty.nextSetBit(u + 1)) {
+				cost[u] = getCost(u, adjacency);
+			}
+		}
+
+		mCliques = new ArrayList<BitSet>();
+		List<Long> cliqueStates = new ArrayList<Long>();
+		computeCliques(eliminationCliques, cliqueStates);
+		mCliqueStates = new long[cliqueStates.size()];
+		for (int i = 0; i < mCliqueStates.length; i++) {
+			mCliqueStates[i] = cliqueStates.get(i);
+		}
+	}
+
+	/**
+	 * Returns the cost heuristic assigns to eliminating node next.
+	 */
+	private long getCost(int node, BitSet[] adjacency) {
+		BitSet neighbors = adjacency[node];
+		switch (mHeuristic) {
+		case MIN_DEGREE:
+			return neighbors.cardinality();
+		case MIN_STATES:
+			BitSet clique = (BitSet) neighbors.clone();
+			clique.set(node);
+			return getStateCount(clique);
+		case MIN_FILL:
+		default:
+			long missing = 0;
+			for (int u = neighbors.nextSetBit(0); u >= 0; u = neighbors.nextSetBit(u + 1)) {
+				BitSet absent = (BitSet) neighbors.clone();
+				absent.andNot(adjacency[u]);
+				absent.clear(u);
+				missing += absent.cardinality();
+			}
+			return missing / 2;
+		}
+	}
+
+	/**
+	 * Returns the number of configurations of the given clique, counted on the dense graph if we
+	 * have one, or limit + 1 if there are more than the state limit.
+	 */
+	private long getStateCount(BitSet clique) {
+		if (mDenseGraph == null) {
+			int size = clique.cardinality();
+			long count = size >= Long.SIZE - 1 ? Long.MAX_VALUE : 1L << size;
+			return mStateLimit < Long.MAX_VALUE ? Math.min(count, mStateLimit + 1) : count;
+		}
+		Long count = mStateCounts.get(clique);
+		if (count == null) {
+			count = mStateLimit < Long.MAX_VALUE ? mDenseGraph.countStates(clique, mStateLimit)
+					: mDenseGraph.countStates(clique);
+			mStateCounts.put((BitSet) clique.clone(), count);
+		}
+		return count;
+	}
+
+	/**
+	 * Keeps the maximal cliques among the elimination cliques and fills in the cost figures.
+	 *
+	 * The clique of a node v is the node plus its neighbors at elimination time. Only the cliques
+	 * of neighbors eliminated before v contain v, so those are the only ones we check. A maximal
+	 * clique hangs off the clique that holds its first neighbor eliminated after v, which is the
+	 * junction tree edge a message travels on.
+	 */
+	private void computeCliques(BitSet[] eliminationCliques, List<Long> cliqueStates) {
+		int[] position = new int[mNameSpace.size()];
+		for (int i = 0; i < mOrder.length; i++) {
+			position[mOrder[i]] = i;
+		}
+		int[] owner = new int[mNameSpace.size()];
+		for (int v : mOrder) {
+			BitSet clique = eliminationCliques[v];
+			BitSet neighbors = mFilled[v];
+			owner[v] = -1;
+			for (int u = neighbors.nextSetBit(0); u >= 0; u = neighbors.nextSetBit(u + 1)) {
+				if (position[u] < position[v]) {
+					BitSet extra = (BitSet) clique.clone();
+					extra.andNot(eliminationCliques[u]);
+					if (extra.isEmpty()) {
+						owner[v] = owner[u];
+						break;
+					}
+				}
+			}
+			if (owner[v] < 0) {
+				owner[v] = mCliques.size();
+				mCliques.add(clique);
+				long states = getStateCount(clique);
+				mExceedsStateLimit |= states > mStateLimit;
+				cliqueStates.add(states);
+			}
+		}
+
+		mMaxCliqueSize = 0;
+		mTotalCliqueStates = 0;
+		mEstimatedMessageCost = 0;
+		BitSet counted = new BitSet();
+		for (int v : mOrder) {
+			int c = owner[v];
+			if (counted.get(c)) continue;
+			counted.set(c);
+			BitSet clique = mCliques.get(c);
+			long states = cliqueStates.get(c);
+			mMaxCliqueSize = Math.max(mMaxCliqueSize, clique.cardinality());
+			mTotalCliqueStates = saturatedAdd(mTotalCliqueStates, states);
+			// building the clique potential touches every state once
+			mEstimatedMessageCost = saturatedAdd(mEstimatedMessageCost, states);
+
+			int next = -1;
+			for (int u = clique.nextSetBit(0); u >= 0; u = clique.nextSetBit(u + 1)) {
+				if (position[u] > position[v] && (next < 0 || position[u] < position[next])) {
+					next = u;
+				}
+			}
+			if (next >= 0) {
+				// one message up and one down, each reading both tables once
+				long edge = saturatedAdd(states, cliqueStates.get(owner[next]));
+				mEstimatedMessageCost = saturatedAdd(mEstimatedMessageCost, saturatedAdd(edge, edge));
+			}
+		}
+	}
+
+	private static long saturatedAdd(long a, long b) {
+		long sum = a + b;
+		return sum < 0 ? Long.MAX_VALUE : sum;
+	}
+
+	/**
+	 * Returns the heuristic used to make this triangulation.
+	 */
+	public EliminationHeuristic getHeuristic() {
+		return mHeuristic;
+	}
+
+	/**
+	 * Returns the nodes in the order they were eliminated. This is a perfect elimination
+	 * ordering of the triangulated graph.
+	 */
+	public List<V> getEliminationOrdering() {
+		List<V> ordering = new ArrayList<V>(mOrder.length);
+		for (int i : mOrder) {
+			ordering.add(mNameSpace.get(i));
+		}
+		return ordering;
+	}
+
+	/**
+	 * Returns the maximal cliques of the triangulated graph, as name space indices.
+	 */
+	public List<BitSet> getCliques() {
+		return Collections.unmodifiableList(mCliques);
+	}
+
+	/**
+	 * Returns the number of states of the clique at position idx of {@link #getCliques()}, or
+	 * limit + 1 if it has more than the state limit.
+	 */
+	public long getCliqueStates(int idx) {
+		return mCliqueStates[idx];
+	}
+
+	/**
+	 * Returns the neighbors of node idx in the triangulated graph.
+	 */
+	BitSet getFilledNeighbors(int idx) {
+		return mFilled[idx] == null ? new BitSet() : (BitSet) mFilled[idx].clone();
+	}
+
+	/**
+	 * Returns the size of the largest clique. The treewidth of this triangulation is one less.
+	 */
+	public int getMaxCliqueSize() {
+		return mMaxCliqueSize;
+	}
+
+	/**
+	 * Returns the number of states summed over all maximal cliques.
+	 */
+	public long getTotalCliqueStates() {
+		return mTotalCliqueStates;
+	}
+
+	/**
+	 * Returns whether some clique has more states than the state limit, in which case the state
+	 * totals and the message cost only count it as limit + 1 and are too low.
+	 */
+	public boolean exceedsStateLimit() {
+		return mExceedsStateLimit;
+	}
+
+	/**
+	 * Returns the number of clique state reads one round of message passing is expected to do:
+	 * one pass over every clique to build potentials, plus for every tree edge a message up and
+	 * a message down that each read both clique tables.
+	 */
+	public long getEstimatedMessageCost() {
+		return mEstimatedMessageCost;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"%s: %d cliques, max clique size %d, %d clique states, estimated message cost %d",
+				mHeuristic, mCliques.size(), mMaxCliqueSize, mTotalCliqueStates,
+				mEstimatedMessageCost);
+	}
+}
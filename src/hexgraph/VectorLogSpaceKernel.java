@@ -0,0 +1,192 @@
+package hexgraph;
+
+import java.util.Arrays;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Runs the {@link LogSpace} table loops on the Java Vector API, a full vector of doubles at a
+ * time, with the scalar loop finishing the entries past the last whole vector. Messages are
+ * multiplied in by gathering them through the projection map, and exp and log run lane-wise.
+ * Summing out a single table scatters into buckets, which does not vectorize, so it is left to
+ * the scalar kernel; its batch form runs along the batch and does.
+ *
+ * This needs Java 16 or later and the jdk.incubator.vector module, so it is only compiled by the
+ * vector profile of the build and only loaded, by name, from {@link LogSpace}.
+ */
+final class VectorLogSpaceKernel extends ScalarLogSpaceKernel {
+	private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+	private static final int LANES = SPECIES.length();
+
+	VectorLogSpaceKernel() {
+		if (LANES < 2) {
+			throw new UnsupportedOperationException("No vector lanes for doubles");
+		}
+	}
+
+	@Override
+	public String getName() {
+		return "vector" + LANES;
+	}
+
+	@Override
+	public double logSumExp(double[] values) {
+		int bound = SPECIES.loopBound(values.length);
+		DoubleVector maxes = DoubleVector.broadcast(SPECIES, Double.NEGATIVE_INFINITY);
+		int k = 0;
+		for (; k < bound; k += LANES) {
+			maxes = maxes.max(DoubleVector.fromArray(SPECIES, values, k));
+		}
+		double max = maxes.reduceLanes(VectorOperators.MAX);
+		for (; k < values.length; k++) {
+			if (values[k] > max) max = values[k];
+		}
+		if (max == Double.NEGATIVE_INFINITY || max == Double.POSITIVE_INFINITY) return max;
+		DoubleVector sums = DoubleVector.zero(SPECIES);
+		for (k = 0; k < bound; k += LANES) {
+			sums = sums.add(DoubleVector.fromArray(SPECIES, values, k).sub(max).lanewise(VectorOperators.EXP));
+		}
+		double sum = sums.reduceLanes(VectorOperators.ADD);
+		for (; k < values.length; k++) {
+			sum += Math.exp(values[k] - max);
+		}
+		return max + Math.log(sum);
+	}
+
+	@Override
+	public void addProjected(double[] values, double[] message, int[] projection) {
+		int bound = SPECIES.loopBound(values.length);
+		int k = 0;
+		for (; k < bound; k += LANES) {
+			DoubleVector.fromArray(SPECIES, values, k)
+					.add(DoubleVector.fromArray(SPECIES, message, 0, projection, k))
+					.intoArray(values, k);
+		}
+		for (; k < values.length; k++) {
+			values[k] += message[projection[k]];
+		}
+	}
+
+	@Override
+	public void subtract(double[] numerator, double[] denominator, double[] out) {
+		DoubleVector negativeInfinity = DoubleVector.broadcast(SPECIES, Double.NEGATIVE_INFINITY);
+		int bound = SPECIES.loopBound(out.length);
+		int k = 0;
+		for (; k < bound; k += LANES) {
+			DoubleVector d = DoubleVector.fromArray(SPECIES, denominator, k);
+			VectorMask<Double> zero = d.compare(VectorOperators.EQ, Double.NEGATIVE_INFINITY);
+			DoubleVector.fromArray(SPECIES, numerator, k).sub(d)
+					.blend(negativeInfinity, zero)
+					.intoArray(out, k);
+		}
+		for (; k < out.length; k++) {
+			out[k] = denominator[k] == Double.NEGATIVE_INFINITY
+					? Double.NEGATIVE_INFINITY
+					: numerator[k] - denominator[k];
+		}
+	}
+
+	@Override
+	public double normalize(double[] values, double[] out) {
+		double logZ = logSumExp(values);
+		int bound = SPECIES.loopBound(values.length);
+		int k = 0;
+		for (; k < bound; k += LANES) {
+			DoubleVector.fromArray(SPECIES, values, k).sub(logZ).lanewise(VectorOperators.EXP)
+					.intoArray(out, k);
+		}
+		for (; k < values.length; k++) {
+			out[k] = Math.exp(values[k] - logZ);
+		}
+		return logZ;
+	}
+
+	@Override
+	public void sumOutBatch(double[] values, int[] projection, int batch, double[] out) {
+		if (batch < LANES) {
+			super.sumOutBatch(values, projection, batch, out);
+			return;
+		}
+		int bound = SPECIES.loopBound(batch);
+		Arrays.fill(out, Double.NEGATIVE_INFINITY);
+		for (int k = 0; k < projection.length; k++) {
+			int row = k * batch;
+			int bucket = projection[k] * batch;
+			int j = 0;
+			for (; j < bound; j += LANES) {
+				DoubleVector.fromArray(SPECIES, values, row + j)
+						.max(DoubleVector.fromArray(SPECIES, out, bucket + j))
+						.intoArray(out, bucket + j);
+			}
+			for (; j < batch; j++) {
+				if (values[row + j] > out[bucket + j]) out[bucket + j] = values[row + j];
+			}
+		}
+		double[] sums = new double[out.length];
+		for (int k = 0; k < projection.length; k++) {
+			int row = k * batch;
+			int bucket = projection[k] * batch;
+			int j = 0;
+			for (; j < bound; j += LANES) {
+				DoubleVector max = DoubleVector.fromArray(SPECIES, out, bucket + j);
+				// a bucket whose max is negative infinity only holds zeros, and adds nothing
+				VectorMask<Double> live = max.compare(VectorOperators.NE, Double.NEGATIVE_INFINITY);
+				DoubleVector.fromArray(SPECIES, values, row + j).sub(max)
+						.lanewise(VectorOperators.EXP, live)
+						.add(DoubleVector.fromArray(SPECIES, sums, bucket + j), live)
+						.intoArray(sums, bucket + j, live);
+			}
+			for (; j < batch; j++) {
+				double max = out[bucket + j];
+				if (max != Double.NEGATIVE_INFINITY) {
+					sums[bucket + j] += Math.exp(values[row + j] - max);
+				}
+			}
+		}
+		int end = SPECIES.loopBound(out.length);
+		int b = 0;
+		for (; b < end; b += LANES) {
+			DoubleVector max = DoubleVector.fromArray(SPECIES, out, b);
+			VectorMask<Double> live = max.compare(VectorOperators.NE, Double.NEGATIVE_INFINITY);
+			max.add(DoubleVector.fromArray(SPECIES, sums, b).lanewise(VectorOperators.LOG, live), live)
+					.intoArray(out, b);
+		}
+		for (; b < out.length; b++) {
+			if (out[b] != Double.NEGATIVE_INFINITY) {
+				out[b] += Math.log(sums[b]);
+			}
+		}
+	}
+
+	@Override
+	public void addRow(double[] target, int targetOffset, double[] source, int sourceOffset, int length) {
+		int bound = SPECIES.loopBound(length);
+		int j = 0;
+		for (; j < bound; j += LANES) {
+			DoubleVector.fromArray(SPECIES, target, targetOffset + j)
+					.add(DoubleVector.fromArray(SPECIES, source, sourceOffset + j))
+					.intoArray(target, targetOffset + j);
+		}
+		for (; j < length; j++) {
+			target[targetOffset + j] += source[sourceOffset + j];
+		}
+	}
+
+	@Override
+	public void expRow(double[] values, int offset, double[] shift, int length) {
+		int bound = SPECIES.loopBound(length);
+		int j = 0;
+		for (; j < bound; j += LANES) {
+			DoubleVector.fromArray(SPECIES, values, offset + j)
+					.sub(DoubleVector.fromArray(SPECIES, shift, j))
+					.lanewise(VectorOperators.EXP)
+					.intoArray(values, offset + j);
+		}
+		for (; j < length; j++) {
+			values[offset + j] = Math.exp(values[offset + j] - shift[j]);
+		}
+	}
+}
@@ -0,0 +1,372 @@
+package test;
+
+import hexgraph.Configuration;
+import hexgraph.EliminationHeuristic;
+import hexgraph.HEXGraph;
+import hexgraph.StateSpaceCache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import util.NameSpace;
+
+/**
+ * Checks the bookkeeping of {@link HEXGraph} on small hand built graphs: the ancestor and
+ * descendant closure as hierarchy edges and nodes are removed, which must match reachability
+ * over the edges left; subgraph views, which must hide the nodes outside them, refuse every
+ * change, show later changes to their parent's edges and answer like a deep copy with the other
+ * nodes deleted; the chordality checks, which must reject a chordless 4-cycle under every
+ * ordering; and the state space cache, which must never hand out the states of a graph with the
+ * same fingerprint but other rows or another name space size.
+ */
+public class HEXGraphTest {
+	private static final String[] NAMES = { "a", "b", "c", "d", "e", "f", "g" };
+
+	private static int sFailures = 0;
+
+	public static void main(String[] args) {
+		checkClosure();
+		checkViews();
+		checkChordality();
+		checkStateSpaceCache();
+		System.out.println(String.format("HEXGraph checks done, %d failed", sFailures));
+		if (sFailures > 0) {
+			throw new IllegalStateException("HEXGraph bookkeeping is wrong");
+		}
+	}
+
+	private static void expect(boolean condition, String what) {
+		if (!condition) {
+			System.out.println("Failed: " + what);
+			sFailures++;
+		}
+	}
+
+	/**
+	 * Returns a diamond a: b c, b: d, c: d, with e below d, and adds its edges to edges as
+	 * parent, child pairs
+	 */
+	private static HEXGraph<String> diamond(NameSpace<String> nameSpace, List<String[]> edges) {
+		HEXGraph<String> graph = new HEXGraph<String>(nameSpace);
+		for (String name : NAMES) {
+			graph.addNode(name);
+		}
+		String[][] hierarchy = { { "a", "b" }, { "a", "c" }, { "b", "d" }, { "c", "d" }, { "d", "e" } };
+		for (String[] edge : hierarchy) {
+			graph.addHierarchy(edge[0], edge[1]);
+			edges.add(edge);
+		}
+		return graph;
+	}
+
+	/**
+	 * Returns the nodes reachable from node by following edges downward, or upward if up is set
+	 */
+	private static Set<String> reach(String node, List<String[]> edges, boolean up) {
+		Set<String> reached = new HashSet<String>();
+		List<String> frontier = new ArrayList<String>();
+		frontier.add(node);
+		while (!frontier.isEmpty()) {
+			String current = frontier.remove(frontier.size() - 1);
+			for (String[] edge : edges) {
+				String from = up ? edge[1] : edge[0];
+				String to = up ? edge[0] : edge[1];
+				if (from.equals(current) && reached.add(to)) {
+					frontier.add(to);
+				}
+			}
+		}
+		return reached;
+	}
+
+	private static void expectClosure(HEXGraph<String> graph, List<String[]> edges, String step) {
+		for (String name : NAMES) {
+			if (!graph.hasNode(name)) continue;
+			expect(graph.getAncestors(name).equals(reach(name, edges, true)),
+					String.format("ancestors of %s after %s", name, step));
+			expect(graph.getDescendants(name).equals(reach(name, edges, false)),
+					String.format("descendants of %s after %s", name, step));
+		}
+	}
+
+	private static void removeEdge(List<String[]> edges, String parent, String child) {
+		for (int i = 0; i < edges.size(); i++) {
+			if (edges.get(i)[0].equals(parent) && edges.get(i)[1].equals(child)) {
+				edges.remove(i);
+				return;
+			}
+		}
+	}
+
+	private static void removeNode(List<String[]> edges, String node) {
+		for (int i = edges.size() - 1; i >= 0; i--) {
+			if (edges.get(i)[0].equals(node) || edges.get(i)[1].equals(node)) {
+				edges.remove(i);
+			}
+		}
+	}
+
+	/**
+	 * Cuts the diamond one side at a time, where the other side must keep d and e below a, and
+	 * deletes a side node while the other path still holds
+	 */
+	private static void checkClosure() {
+		NameSpace<String> nameSpace = new NameSpace<String>(NAMES);
+		List<String[]> edges = new ArrayList<String[]>();
+		HEXGraph<String> graph = diamond(nameSpace, edges);
+		expectClosure(graph, edges, "building the diamond");
+
+		expect(graph.deleteHierarchyEdge("b", "d"), "b: d is removed");
+		removeEdge(edges, "b", "d");
+		expectClosure(graph, edges, "removing b: d");
+		expect(graph.isDescendant("a", "e"), "e stays below a through c");
+
+		expect(graph.deleteHierarchyEdge("c", "d"), "c: d is removed");
+		removeEdge(edges, "c", "d");
+		expectClosure(graph, edges, "removing c: d");
+		expect(!graph.isDescendant("a", "d"), "d is no longer below a");
+		expect(!graph.deleteHierarchyEdge("c", "d"), "c: d is not removed twice");
+
+		edges.clear();
+		graph = diamond(nameSpace, edges);
+		graph.deleteNode("b");
+		removeNode(edges, "b");
+		expectClosure(graph, edges, "deleting b");
+		expect(graph.isDescendant("a", "e"), "e stays below a after deleting b");
+
+		graph.deleteNode("d");
+		removeNode(edges, "d");
+		expectClosure(graph, edges, "deleting d");
+		expect(graph.getAncestors("e").isEmpty(), "e has no ancestors after deleting d");
+	}
+
+	/**
+	 * Runs mutator on a view, which must refuse it
+	 */
+	private static void expectReadOnly(Runnable mutator, String what) {
+		try {
+			mutator.run();
+			expect(false, what + " on a view throws");
+		} catch (UnsupportedOperationException e) {
+			// views are read-only
+		}
+	}
+
+	/**
+	 * Compares every query of the public interface on two graphs over the same name space
+	 */
+	private static void expectSameAnswers(HEXGraph<String> graph, HEXGraph<String> expected,
+			String what) {
+		expect(graph.size() == expected.size(), what + ": size");
+		expect(graph.getNodeSet().equals(expected.getNodeSet()), what + ": nodes");
+		expect(graph.getFingerprint() == expected.getFingerprint(), what + ": fingerprint");
+		for (String x : NAMES) {
+			expect(graph.hasNode(x) == expected.hasNode(x), what + ": has " + x);
+			if (!expected.hasNode(x)) {
+				expect(graph.getAncestors(x) == null, what + ": no ancestors of hidden " + x);
+				continue;
+			}
+			expect(graph.getAncestors(x).equals(expected.getAncestors(x)), what + ": ancestors of " + x);
+			expect(graph.getDescendants(x).equals(expected.getDescendants(x)),
+					what + ": descendants of " + x);
+			expect(graph.getExcluded(x).equals(expected.getExcluded(x)), what + ": excluded from " + x);
+			expect(graph.getOverlapping(x).equals(expected.getOverlapping(x)),
+					what + ": overlapping " + x);
+			expect(graph.getDegree(x) == expected.getDegree(x), what + ": degree of " + x);
+			for (String y : NAMES) {
+				expect(graph.isDescendant(x, y) == expected.isDescendant(x, y),
+						String.format("%s: %s below %s", what, y, x));
+				expect(graph.hasExclusion(x, y) == expected.hasExclusion(x, y),
+						String.format("%s: %s excludes %s", what, x, y));
+			}
+		}
+	}
+
+	/**
+	 * Views of the densified diamond, with f excluded from a and g from e
+	 */
+	private static void checkViews() {
+		NameSpace<String> nameSpace = new NameSpace<String>(NAMES);
+		final HEXGraph<String> parent = diamond(nameSpace, new ArrayList<String[]>());
+		parent.addNode("f");
+		parent.addNode("g");
+		parent.addExclusion("a", "f");
+		parent.addExclusion("e", "g");
+		parent.densify();
+
+		Set<String> kept = new HashSet<String>(Arrays.asList("a", "c", "d", "f"));
+		Set<String> hidden = new HashSet<String>(Arrays.asList("b", "e", "g"));
+		final HEXGraph<String> view = parent.getSubgraph(kept);
+		expect(view.isView() && !parent.isView(), "getSubgraph returns a view");
+		expect(view.getNodeSet().equals(kept), "the view has the kept nodes");
+		expect(!view.hasNode("b") && view.getDescendants("b") == null, "b is hidden");
+		expect(view.getAncestors("d").equals(new HashSet<String>(Arrays.asList("a", "c"))),
+				"the ancestors of d in the view are a and c");
+		expect(view.getExcluded("a").equals(new HashSet<String>(Arrays.asList("f"))),
+				"a is excluded from f only in the view");
+
+		HEXGraph<String> copy = parent.getDeepCopy();
+		for (String name : hidden) {
+			copy.deleteNode(name);
+		}
+		expect(!copy.isView(), "a deep copy is not a view");
+		expectSameAnswers(view, copy, "getSubgraph");
+		expectSameAnswers(parent.getSubgraphMinus(hidden), copy, "getSubgraphMinus");
+		expectSameAnswers(view.getDeepCopy(), copy, "deep copy of a view");
+		expect(!view.getDeepCopy().isView(), "a deep copy of a view is not a view");
+
+		final Map<String, Double> scores = new HashMap<String, Double>();
+		scores.put("a", 1.0);
+		expectReadOnly(new Runnable() {
+			public void run() { view.addNode("b"); }
+		}, "addNode");
+		expectReadOnly(new Runnable() {
+			public void run() { view.addHierarchy("f", "c"); }
+		}, "addHierarchy");
+		expectReadOnly(new Runnable() {
+			public void run() { view.addExclusion("c", "d"); }
+		}, "addExclusion");
+		expectReadOnly(new Runnable() {
+			public void run() { view.addTriangulationRelationship("c", "f"); }
+		}, "addTriangulationRelationship");
+		expectReadOnly(new Runnable() {
+			public void run() { view.deleteNode("d"); }
+		}, "deleteNode");
+		expectReadOnly(new Runnable() {
+			public void run() { view.deleteNode("b"); }
+		}, "deleteNode of a hidden node");
+		expectReadOnly(new Runnable() {
+			public void run() { view.deleteHierarchyEdge("c", "d"); }
+		}, "deleteHierarchyEdge");
+		expectReadOnly(new Runnable() {
+			public void run() { view.deleteHierarchyEdge("b", "d"); }
+		}, "deleteHierarchyEdge from a hidden node");
+		expectReadOnly(new Runnable() {
+			public void run() { view.deleteExclusion("a", "f"); }
+		}, "deleteExclusion");
+		expectReadOnly(new Runnable() {
+			public void run() { view.sparsify(); }
+		}, "sparsify");
+		expectReadOnly(new Runnable() {
+			public void run() { view.densify(); }
+		}, "densify");
+		expectReadOnly(new Runnable() {
+			public void run() { view.triangulate(); }
+		}, "triangulate");
+		expectReadOnly(new Runnable() {
+			public void run() { view.triangulate(EliminationHeuristic.MIN_DEGREE, null); }
+		}, "triangulate with a heuristic");
+		expectReadOnly(new Runnable() {
+			public void run() { view.setScores(scores); }
+		}, "setScores");
+		expectReadOnly(new Runnable() {
+			public void run() { view.setScores(new double[NAMES.length]); }
+		}, "setScores from an array");
+		expectSameAnswers(view, copy, "the view after refused changes");
+		expect(parent.hasNode("b") && parent.isDescendant("c", "d"), "the parent is untouched");
+
+		// changes to the parent's edges show through; d is cut off from all of its densified
+		// parents, so the parent stays dense and the deep copy still answers the same
+		parent.deleteExclusion("a", "f");
+		for (String above : new String[] { "a", "b", "c" }) {
+			parent.deleteHierarchyEdge(above, "d");
+		}
+		parent.addTriangulationRelationship("c", "f");
+		expect(!view.hasExclusion("a", "f"), "the view drops the removed exclusion");
+		expect(!view.isDescendant("c", "d") && !view.isDescendant("a", "d"),
+				"the view drops the removed hierarchy edges");
+		expect(view.getAncestors("d").isEmpty(), "d has no ancestors left in the view");
+		expect(view.getTriangulatedNeighbors("c").contains("f"),
+				"the view shows the new triangulation relationship");
+		copy = parent.getDeepCopy();
+		for (String name : hidden) {
+			copy.deleteNode(name);
+		}
+		expectSameAnswers(view, copy, "the view after changes to the parent");
+	}
+
+	/**
+	 * The cycle a b c d has no perfect elimination ordering until a chord is added
+	 */
+	private static void checkChordality() {
+		NameSpace<String> nameSpace = new NameSpace<String>(NAMES);
+		HEXGraph<String> graph = new HEXGraph<String>(nameSpace);
+		List<String> cycle = Arrays.asList("a", "b", "c", "d");
+		for (String name : cycle) {
+			graph.addNode(name);
+		}
+		for (int i = 0; i < cycle.size(); i++) {
+			graph.addTriangulationRelationship(cycle.get(i), cycle.get((i + 1) % cycle.size()));
+		}
+		expect(!graph.isChordal(), "a 4-cycle is not chordal");
+		for (List<String> ordering : permutations(cycle)) {
+			expect(!graph.isPerfectEliminationOrdering(ordering),
+					"the 4-cycle has no perfect elimination ordering, not even " + ordering);
+		}
+		expect(!graph.isPerfectEliminationOrdering(Arrays.asList("a", "b", "c")),
+				"an ordering that misses a node is not perfect");
+
+		graph.addTriangulationRelationship("a", "c");
+		expect(graph.isChordal(), "a 4-cycle with a chord is chordal");
+		expect(graph.isPerfectEliminationOrdering(graph.getEliminationOrdering()),
+				"the elimination ordering of a chordal graph is perfect");
+		expect(graph.isPerfectEliminationOrdering(Arrays.asList("b", "a", "c", "d")),
+				"eliminating b first is perfect once a and c are joined");
+		expect(!graph.isPerfectEliminationOrdering(Arrays.asList("a", "b", "c", "d")),
+				"eliminating a first still is not");
+	}
+
+	private static List<List<String>> permutations(List<String> items) {
+		List<List<String>> permutations = new ArrayList<List<String>>();
+		if (items.isEmpty()) {
+			permutations.add(new ArrayList<String>());
+			return permutations;
+		}
+		for (int i = 0; i < items.size(); i++) {
+			List<String> rest = new ArrayList<String>(items);
+			String first = rest.remove(i);
+			for (List<String> tail : permutations(rest)) {
+				tail.add(0, first);
+				permutations.add(tail);
+			}
+		}
+		return permutations;
+	}
+
+	/**
+	 * Lists the diamond's states through one cache along with the same diamond over a wider name
+	 * space and a diamond with an extra exclusion, both passed the first one's fingerprint as if
+	 * it collided with theirs
+	 */
+	private static void checkStateSpaceCache() {
+		StateSpaceCache cache = new StateSpaceCache(StateSpaceCache.DEFAULT_MAX_STATES);
+		HEXGraph<String> graph = diamond(new NameSpace<String>(NAMES), new ArrayList<String[]>());
+		String[] wider = Arrays.copyOf(NAMES, NAMES.length + 1);
+		wider[NAMES.length] = "h";
+		HEXGraph<String> widerGraph = diamond(new NameSpace<String>(wider), new ArrayList<String[]>());
+		HEXGraph<String> excluding = diamond(new NameSpace<String>(NAMES), new ArrayList<String[]>());
+		excluding.addExclusion("e", "f");
+		long fingerprint = graph.getFingerprint();
+		expect(widerGraph.getFingerprint() == fingerprint, "cache: wider name space fingerprint");
+
+		BitSet members = new BitSet();
+		members.set(0, NAMES.length);
+		Set<Configuration> states = cache.get(graph, fingerprint, members);
+		expect(cache.get(graph, fingerprint, members) == states, "cache: hit on the same graph");
+		Set<Configuration> widerStates = cache.get(widerGraph, fingerprint, members);
+		expect(widerStates != states && widerStates.size() == states.size(),
+				"cache: wider name space listed apart");
+		for (Configuration state : widerStates) {
+			expect(state.size() == wider.length, "cache: wider name space state size");
+		}
+		Set<Configuration> excludingStates = cache.get(excluding, fingerprint, members);
+		expect(!excludingStates.equals(states), "cache: colliding fingerprint listed apart");
+		expect(cache.getHits() == 1 && cache.getMisses() == 3, "cache: hits and misses");
+	}
+}
@@ -0,0 +1,621 @@
+package test;
+
+import hexgraph.CompiledHexModel;
+import hexgraph.Configuration;
+import hexgraph.EliminationHeuristic;
+import hexgraph.GibbsSampler;
+import hexgraph.HEXGraph;
+import hexgraph.HEXGraphFactory;
+import hexgraph.HEXGraphMethods;
+import hexgraph.JunctionTree;
+import hexgraph.JunctionTreeNode;
+import hexgraph.StateSpaceCache;
+import hexgraph.StateSpaceEnumerator;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+
+import util.NameSpace;
+import util.Pair;
+
+/**
+ * Checks junction tree inference against brute force enumeration on small HEX graphs: a few
+ * fixed ones and a batch of random forests with random exclusions. For every elimination
+ * heuristic, the marginal of each class, alone, in a batch, updated incrementally as a few
+ * scores change and conditioned on random labels, alternating with other labels without
+ * rebuilding any clique's tables, the probability of each legal configuration and the k most
+ * likely configurations must match the ones found directly over the legal state space, with
+ * messages passed sequentially and with every subtree forked onto the shared pool.
+ * Marginals sampled by the Gibbs sampler must come within {@link #SAMPLING_TOLERANCE}.
+ *
+ * The legal state space itself comes from the {@link StateSpaceEnumerator}, so it is first
+ * checked against a recursive listing that tries every assignment of the classes: streamed,
+ * collected, collected in parallel and counted, the enumerator must give the same states, each
+ * once. Clique state spaces listed through a cache too small to hold them all must still come
+ * back as the same sets on every call, so the tree never rebinds its tables.
+ *
+ * The fixed graphs are also compiled to a {@link CompiledHexModel}, written and loaded back,
+ * which must give the same tree, state tables and marginals, and must be recompiled once its
+ * source file changes or it is asked for over another name space.
+ *
+ * The table loops run on whichever log space kernel loads. To check the Vector API kernel, build
+ * with -Pvector and run this on a JVM with --add-modules jdk.incubator.vector and
+ * -Dhexgraph.kernel=vector, which fails rather than fall back to the scalar kernel.
+ */
+public class JunctionTreeInferenceTest {
+	private static final int NUM_RANDOM_GRAPHS = 40;
+	private static final int MAX_CLASSES = 10;
+	private static final double TOLERANCE = 1e-9;
+	private static final int K_BEST = 6;
+	private static final int NUM_UPDATES = 4;
+	private static final int NUM_SWEEPS = 4000;
+	private static final double SAMPLING_TOLERANCE = 0.03;
+	// split every subproblem with more than one undecided class over a few threads, so small
+	// graphs take the parallel enumeration path too
+	private static final int ENUMERATION_CUTOFF = 1;
+	private static final ForkJoinPool ENUMERATION_POOL = new ForkJoinPool(4);
+	// every tree is checked passing messages sequentially and with every subtree forked
+	private static final int[] PARALLEL_THRESHOLDS = { Integer.MAX_VALUE, 1 };
+
+	// the trees message passing forked subtrees on, which must be some of them
+	private static int sForkedTrees;
+
+	private static final String[][] FIXED_GRAPHS = {
+		// a chain
+		{ "c0: c1", "c1: c2", "c2: c3" },
+		// two trees, with exclusions inside and across them
+		{ "c0: c1 c2", "c3: c4 c5", "#c1 c2", "#c2 c4 c5" },
+		// a class with two parents
+		{ "c0: c2", "c1: c2", "c2: c3", "#c3 c4" },
+		// no relations at all
+		{},
+	};
+
+	public static void main(String[] args) throws IOException {
+		Random random = new Random(13);
+		File dir = new File(System.getProperty("java.io.tmpdir"), "hex-inference-test");
+		dir.mkdirs();
+
+		double worst = 0.0;
+		int graphs = 0;
+		for (String[] relations : FIXED_GRAPHS) {
+			worst = Math.max(worst, check(dir, 6, relations, random, true));
+			graphs++;
+		}
+		for (int g = 0; g < NUM_RANDOM_GRAPHS; g++) {
+			int numClasses = 2 + random.nextInt(MAX_CLASSES - 1);
+			worst = Math.max(worst, check(dir, numClasses, randomRelations(numClasses, random), random,
+					false));
+			graphs++;
+		}
+		System.out.println(String.format("Checked %d graphs, %d trees forked, largest error %.3g",
+				graphs, sForkedTrees, worst));
+		if (worst > TOLERANCE) {
+			throw new IllegalStateException("Junction tree inference does not match brute force");
+		}
+		if (sForkedTrees == 0) {
+			throw new IllegalStateException("No tree was big enough to pass messages in parallel");
+		}
+	}
+
+	/**
+	 * Returns whether a parallel threshold of 1 forks message passing over tree, which it does
+	 * once any of its components has more than two cliques
+	 */
+	private static boolean hasForkedTree(JunctionTree<String> tree) {
+		for (List<JunctionTreeNode<String>> component : tree.getComponents()) {
+			if (component.size() > 2) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Builds a forest by giving every class after the first a random earlier parent, or none,
+	 * then excludes random pairs of classes where neither is an ancestor of the other
+	 */
+	private static String[] randomRelations(int numClasses, Random random) {
+		int[] parent = new int[numClasses];
+		List<String> relations = new ArrayList<String>();
+		for (int i = 0; i < numClasses; i++) {
+			parent[i] = i == 0 || random.nextInt(3) == 0 ? -1 : random.nextInt(i);
+			if (parent[i] >= 0) {
+				relations.add(String.format("c%d: c%d", parent[i], i));
+			}
+		}
+		for (int i = 0; i < numClasses; i++) {
+			for (int j = i + 1; j < numClasses; j++) {
+				if (random.nextInt(4) == 0 && !isAncestor(parent, i, j)) {
+					relations.add(String.format("#c%d c%d", i, j));
+				}
+			}
+		}
+		return relations.toArray(new String[relations.size()]);
+	}
+
+	/**
+	 * Returns the marginal of each class by summing over every legal configuration
+	 */
+	private static double[] getMarginals(Set<Configuration> stateSpace, double[] scores) {
+		double[] marginals = new double[scores.length];
+		double partition = 0.0;
+		for (Configuration config : stateSpace) {
+			double logScore = 0.0;
+			for (int i = 0; i < scores.length; i++) {
+				if (config.isSet(i)) logScore += scores[i];
+			}
+			double weight = Math.exp(logScore);
+			partition += weight;
+			for (int i = 0; i < scores.length; i++) {
+				if (config.isSet(i)) marginals[i] += weight;
+			}
+		}
+		for (int i = 0; i < scores.length; i++) {
+			marginals[i] /= partition;
+		}
+		return marginals;
+	}
+
+	private static double getProbability(Set<Configuration> configs, Map<Configuration, Double> joint) {
+		double probability = 0.0;
+		for (Configuration config : configs) {
+			probability += joint.get(config);
+		}
+		return probability;
+	}
+
+	/**
+	 * Lists every legal configuration of nodes as the set of its true classes, by deciding the
+	 * classes from next on in turn and keeping the assignments where each true class has its
+	 * ancestors among nodes true and the classes it excludes false
+	 */
+	private static void listLegal(HEXGraph<String> denseGraph, NameSpace<String> nameSpace,
+			BitSet nodes, int next, BitSet on, Set<BitSet> legal) {
+		if (next < 0) {
+			for (int i = on.nextSetBit(0); i >= 0; i = on.nextSetBit(i + 1)) {
+				for (String ancestor : denseGraph.getAncestors(nameSpace.get(i))) {
+					int a = nameSpace.getIndex(ancestor);
+					if (nodes.get(a) && !on.get(a)) return;
+				}
+				for (String excluded : denseGraph.getExcluded(nameSpace.get(i))) {
+					if (on.get(nameSpace.getIndex(excluded))) return;
+				}
+			}
+			legal.add((BitSet) on.clone());
+			return;
+		}
+		listLegal(denseGraph, nameSpace, nodes, nodes.nextSetBit(next + 1), on, legal);
+		on.set(next);
+		listLegal(denseGraph, nameSpace, nodes, nodes.nextSetBit(next + 1), on, legal);
+		on.clear(next);
+	}
+
+	/**
+	 * Returns 1 unless states decide exactly nodes and are the expected ones, each once
+	 */
+	private static double compareStates(List<Configuration> states, BitSet nodes,
+			Set<BitSet> expected) {
+		Set<BitSet> listed = new HashSet<BitSet>();
+		for (Configuration state : states) {
+			if (!state.getMembers().equals(nodes)) return 1.0;
+			BitSet on = new BitSet();
+			for (int i = nodes.nextSetBit(0); i >= 0; i = nodes.nextSetBit(i + 1)) {
+				if (state.isSet(i)) on.set(i);
+			}
+			listed.add(on);
+		}
+		return listed.size() == states.size() && listed.equals(expected) ? 0.0 : 1.0;
+	}
+
+	/**
+	 * Enumerates nodes every way the enumerator offers and returns 1 if any differs from the
+	 * recursive listing
+	 */
+	private static double checkEnumerator(HEXGraph<String> denseGraph, NameSpace<String> nameSpace,
+			BitSet nodes) {
+		Set<BitSet> expected = new HashSet<BitSet>();
+		listLegal(denseGraph, nameSpace, nodes, nodes.nextSetBit(0), new BitSet(), expected);
+		StateSpaceEnumerator enumerator = new StateSpaceEnumerator(denseGraph, nodes);
+		double worst = enumerator.count() == expected.size() ? 0.0 : 1.0;
+		List<Configuration> streamed = new ArrayList<Configuration>();
+		for (Configuration state : enumerator) {
+			streamed.add(state);
+		}
+		worst = Math.max(worst, compareStates(streamed, nodes, expected));
+		worst = Math.max(worst, compareStates(Arrays.asList(enumerator.toArray()), nodes, expected));
+		worst = Math.max(worst, compareStates(Arrays.asList(enumerator.toArrayParallel()), nodes,
+				expected));
+		Configuration[] split = enumerator.toArray(ENUMERATION_POOL, ENUMERATION_CUTOFF);
+		worst = Math.max(worst, compareStates(Arrays.asList(split), nodes, expected));
+		// the parallel listing is joined back in enumeration order
+		worst = Math.max(worst, Arrays.equals(split, enumerator.toArray()) ? 0.0 : 1.0);
+		if (worst > 0.0) {
+			System.out.println("State space enumeration is wrong for classes " + nodes);
+		}
+		return worst;
+	}
+
+	/**
+	 * Lists the clique state spaces of a new tree through a cache that only holds the biggest
+	 * one at a time and returns 1 unless the cache counts every lookup, evicts what does not
+	 * fit, and later calls hand out the very same sets without asking it again
+	 */
+	private static double checkStateSpaceCache(HEXGraphMethods methods, double[] scores) {
+		long biggest = 1;
+		long total = 0;
+		for (Set<Configuration> states : methods.getJunctionTreeStateSpaces(
+				methods.buildJunctionTree()).values()) {
+			biggest = Math.max(biggest, states.size());
+			total += states.size();
+		}
+		StateSpaceCache cache = new StateSpaceCache(biggest);
+		HEXGraphMethods cached = methods.getDeepCopy();
+		cached.setStateSpaceCache(cache);
+		JunctionTree<String> tree = cached.buildJunctionTree();
+		int cliques = tree.getNodeSet().size();
+
+		double worst = 0.0;
+		Map<JunctionTreeNode<String>, Set<Configuration>> first = cached.getJunctionTreeStateSpaces(tree);
+		if (cache.getMisses() != cliques || cache.getHits() != 0 || cache.getCachedStates() > biggest
+				|| (total > biggest) != (cache.getEvictions() > 0)) {
+			worst = 1.0;
+		}
+		long evictions = cache.getEvictions();
+		for (int call = 0; call < 2; call++) {
+			Map<JunctionTreeNode<String>, Set<Configuration>> again = cached.getJunctionTreeStateSpaces(tree);
+			for (JunctionTreeNode<String> clique : tree.getNodeSet()) {
+				// message passing binds to state spaces by identity
+				if (again.get(clique) != first.get(clique)) worst = 1.0;
+			}
+			cached.exactMarginalInference(tree, scores);
+		}
+		if (cache.getMisses() != cliques || cache.getHits() != 0 || cache.getEvictions() != evictions) {
+			worst = 1.0;
+		}
+
+		// another tree over the same cliques has nothing pinned yet, so it asks the cache again
+		cached.getJunctionTreeStateSpaces(cached.buildJunctionTree());
+		if (cache.getHits() + cache.getMisses() != 2 * cliques) {
+			worst = 1.0;
+		}
+		if (worst > 0.0) {
+			System.out.println("State spaces are not pinned to their tree: " + cache);
+		}
+		return worst;
+	}
+
+	/**
+	 * Returns the edges of tree as the pairs of members of the cliques they join
+	 */
+	private static Set<Set<BitSet>> getEdges(JunctionTree<String> tree) {
+		Set<Set<BitSet>> edges = new HashSet<Set<BitSet>>();
+		for (JunctionTreeNode<String> clique : tree.getNodeSet()) {
+			for (JunctionTreeNode<String> neighbor : clique.getNeighbors()) {
+				edges.add(new HashSet<BitSet>(Arrays.asList(clique.getMembers(), neighbor.getMembers())));
+			}
+		}
+		return edges;
+	}
+
+	/**
+	 * Compiles graphFile, writes it and loads it back, and returns the largest difference of
+	 * either model's marginals from the expected ones, or 1 if the two models differ or
+	 * loadOrCompile hands out a model that is not current. Appends a blank line to graphFile.
+	 */
+	private static double checkCompiledModel(File dir, File graphFile, NameSpace<String> nameSpace,
+			double[] scores, double[] marginals) throws IOException {
+		String path = graphFile.getPath();
+		File artifact = CompiledHexModel.getArtifactFile(graphFile, dir);
+		CompiledHexModel compiled = CompiledHexModel.compile(path, nameSpace);
+		compiled.write(artifact);
+		CompiledHexModel loaded = CompiledHexModel.load(artifact, nameSpace);
+
+		double worst = 0.0;
+		if (!loaded.getJunctionTree().getNodeSet().equals(compiled.getJunctionTree().getNodeSet())
+				|| !getEdges(loaded.getJunctionTree()).equals(getEdges(compiled.getJunctionTree()))
+				|| !loaded.getJunctionTreeStateSpaces().equals(compiled.getJunctionTreeStateSpaces())) {
+			worst = 1.0;
+		}
+		for (CompiledHexModel model : Arrays.asList(compiled, loaded)) {
+			Map<String, Double> result = model.getMethods().exactMarginalInference(
+					model.getJunctionTree(), scores);
+			for (int i = 0; i < scores.length; i++) {
+				worst = Math.max(worst, Math.abs(result.get(nameSpace.get(i)) - marginals[i]));
+			}
+		}
+
+		// a current artifact is loaded as is
+		CompiledHexModel current = CompiledHexModel.loadOrCompile(path, artifact, nameSpace);
+		if (current.getSourceChecksum() != compiled.getSourceChecksum() || !current.isCurrent(graphFile)
+				|| !current.getJunctionTreeStateSpaces().equals(compiled.getJunctionTreeStateSpaces())) {
+			worst = 1.0;
+		}
+
+		// asking over another name space recompiles, and the artifact follows it
+		String[] reversed = nameSpace.getNames().clone();
+		Collections.reverse(Arrays.asList(reversed));
+		NameSpace<String> other = new NameSpace<String>(reversed);
+		CompiledHexModel recompiled = CompiledHexModel.loadOrCompile(path, artifact, other);
+		if (recompiled.getNameSpace() != other
+				|| !Arrays.equals(CompiledHexModel.load(artifact, null).getNameSpace().getNames(), reversed)) {
+			worst = 1.0;
+		}
+		try {
+			CompiledHexModel.load(artifact, nameSpace);
+			worst = 1.0;
+		} catch (IOException e) {
+			// compiled over the other name space now
+		}
+
+		// so does changing the source, even if only by a blank line
+		FileWriter append = new FileWriter(graphFile, true);
+		append.write(String.format("%n"));
+		append.close();
+		CompiledHexModel changed = CompiledHexModel.loadOrCompile(path, artifact, nameSpace);
+		long checksum = CompiledHexModel.checksum(graphFile);
+		if (checksum == compiled.getSourceChecksum() || changed.getSourceChecksum() != checksum
+				|| CompiledHexModel.load(artifact, nameSpace).getSourceChecksum() != checksum) {
+			worst = 1.0;
+		}
+		if (worst > TOLERANCE) {
+			System.out.println("Compiled model does not match the graph it was compiled from");
+		}
+		return worst;
+	}
+
+	private static boolean isAncestor(int[] parent, int ancestor, int node) {
+		for (int p = parent[node]; p >= 0; p = parent[p]) {
+			if (p == ancestor) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Writes the graph to a .hxg file, runs inference with random scores and returns the largest
+	 * difference from brute force. Relations starting with # are exclusions.
+	 */
+	private static double check(File dir, int numClasses, String[] relations, Random random,
+			boolean compile) throws IOException {
+		String[] names = new String[numClasses];
+		for (int i = 0; i < numClasses; i++) {
+			names[i] = "c" + i;
+		}
+		NameSpace<String> nameSpace = new NameSpace<String>(names);
+
+		File graphFile = new File(dir, "graph.hxg");
+		PrintWriter writer = new PrintWriter(graphFile, "UTF-8");
+		writer.println("#E#");
+		for (String name : names) {
+			writer.println(name);
+		}
+		writer.println("#X#");
+		for (String relation : relations) {
+			if (relation.startsWith("#")) writer.println(relation.substring(1));
+		}
+		writer.println("#H#");
+		for (String relation : relations) {
+			if (!relation.startsWith("#")) writer.println(relation);
+		}
+		writer.close();
+
+		HEXGraphFactory factory = new HEXGraphFactory(nameSpace);
+		factory.buildHEXGraph(graphFile.getPath());
+		HEXGraphMethods methods = new HEXGraphMethods(factory, graphFile.getPath(), nameSpace);
+
+		double worst = 0.0;
+		HEXGraph<String> denseGraph = factory.getDenseGraph(graphFile.getPath());
+		BitSet all = new BitSet();
+		all.set(0, numClasses);
+		BitSet subset = new BitSet();
+		for (int i = 0; i < numClasses; i++) {
+			if (random.nextBoolean()) subset.set(i);
+		}
+		for (BitSet nodes : Arrays.asList(all, subset)) {
+			worst = Math.max(worst, checkEnumerator(denseGraph, nameSpace, nodes));
+		}
+
+		Map<String, Double> scores = new HashMap<String, Double>();
+		double[] scoreArray = new double[numClasses];
+		for (int i = 0; i < numClasses; i++) {
+			scoreArray[i] = random.nextGaussian() * 3;
+			scores.put(names[i], scoreArray[i]);
+		}
+
+		// brute force: every legal configuration has probability proportional to the
+		// exponentiated sum of the scores of its true classes
+		Set<Configuration> stateSpace = methods.listStateSpace();
+		Map<Configuration, Double> joint = new HashMap<Configuration, Double>();
+		double partition = 0.0;
+		for (Configuration config : stateSpace) {
+			double logScore = 0.0;
+			for (int i = 0; i < numClasses; i++) {
+				if (config.isSet(i)) logScore += scoreArray[i];
+			}
+			joint.put(config, Math.exp(logScore));
+			partition += Math.exp(logScore);
+		}
+		double[] marginals = new double[numClasses];
+		double best = 0.0;
+		for (Configuration config : stateSpace) {
+			joint.put(config, joint.get(config) / partition);
+			best = Math.max(best, joint.get(config));
+			for (int i = 0; i < numClasses; i++) {
+				if (config.isSet(i)) marginals[i] += joint.get(config);
+			}
+		}
+
+		List<Double> sorted = new ArrayList<Double>(joint.values());
+		Collections.sort(sorted, Collections.reverseOrder());
+
+		// a couple of random labels, which may contradict each other
+		Map<String, Boolean> labels = new HashMap<String, Boolean>();
+		for (int l = 1 + random.nextInt(2); l > 0; l--) {
+			labels.put(names[random.nextInt(numClasses)], random.nextBoolean());
+		}
+		Set<Configuration> agreeing = new HashSet<Configuration>();
+		for (Configuration config : stateSpace) {
+			boolean agrees = true;
+			for (Map.Entry<String, Boolean> label : labels.entrySet()) {
+				agrees &= config.isSet(nameSpace.getIndex(label.getKey())) == label.getValue();
+			}
+			if (agrees) agreeing.add(config);
+		}
+		Configuration evidence = null;
+		try {
+			evidence = methods.clamp(labels);
+		} catch (IllegalArgumentException e) {
+			// only labels no legal configuration agrees with may be rejected
+		}
+		// other evidence to alternate with, a class known to be false, which never contradicts
+		String otherLabel = names[random.nextInt(numClasses)];
+		Configuration otherEvidence = methods.clamp(Collections.singletonMap(otherLabel, false));
+		Set<Configuration> otherAgreeing = new HashSet<Configuration>();
+		for (Configuration config : stateSpace) {
+			if (!config.isSet(nameSpace.getIndex(otherLabel))) otherAgreeing.add(config);
+		}
+
+		worst = Math.max(worst, checkStateSpaceCache(methods, scoreArray));
+		if (compile) {
+			worst = Math.max(worst, checkCompiledModel(dir, graphFile, nameSpace, scoreArray, marginals));
+		}
+		if ((evidence == null) != agreeing.isEmpty()) {
+			worst = 1.0;
+		}
+		// these graphs are small enough to pick exact inference, which reports no error
+		GibbsSampler.Estimate<String> chosen = methods.marginalInference(scores);
+		for (int i = 0; i < numClasses; i++) {
+			worst = Math.max(worst, Math.abs(chosen.getMarginal(names[i]) - marginals[i]));
+		}
+		if (!chosen.isConverged() || chosen.getMaxStandardError() != 0.0 || chosen.getSweeps() != 0) {
+			worst = 1.0;
+		}
+		
+		// sampling has an error of its own, so it counts as a failure past a looser bound
+		GibbsSampler<String> sampler = methods.getSampler();
+		sampler.setSeed(random.nextLong());
+		sampler.setMaxSweeps(NUM_SWEEPS);
+		sampler.setMaxMillis(Long.MAX_VALUE);
+		sampler.setTolerance(0.0);
+		GibbsSampler.Estimate<String> estimate = methods.approximateMarginalInference(sampler, scores);
+		for (int i = 0; i < numClasses; i++) {
+			if (Math.abs(estimate.getMarginal(names[i]) - marginals[i]) > SAMPLING_TOLERANCE) {
+				worst = 1.0;
+			}
+		}
+		for (EliminationHeuristic heuristic : EliminationHeuristic.values()) {
+			JunctionTree<String> tree = methods.buildJunctionTree(heuristic);
+			// messages passed sequentially, then with every subtree forked as a task of its own
+			// whatever the number of cores
+			for (int threshold : PARALLEL_THRESHOLDS) {
+				tree.setParallelThreshold(threshold);
+				if (threshold == 1 && hasForkedTree(tree)) {
+					sForkedTrees++;
+				}
+				Map<String, Double> result = methods.exactMarginalInference(tree, scores);
+				for (int i = 0; i < numClasses; i++) {
+					worst = Math.max(worst, Math.abs(result.get(names[i]) - marginals[i]));
+				}
+				// the same scores in a batch, around an instance with other scores
+				double[][] batch = { scoreArray, new double[numClasses], scoreArray };
+				for (int i = 0; i < numClasses; i++) {
+					batch[1][i] = random.nextGaussian();
+				}
+				double[][] batchResult = methods.exactMarginalInference(tree, batch);
+				for (int i = 0; i < numClasses; i++) {
+					worst = Math.max(worst, Math.abs(batchResult[0][i] - marginals[i]));
+					worst = Math.max(worst, Math.abs(batchResult[2][i] - marginals[i]));
+				}
+				Map<Configuration, Double> treeJoint = tree.exactInference(stateSpace,
+						methods.getJunctionTreeStateSpaces(tree), scoreArray);
+				for (Configuration config : stateSpace) {
+					worst = Math.max(worst, Math.abs(treeJoint.get(config) - joint.get(config)));
+				}
+				// ties may pick another configuration, but it has to be legal and as likely
+				Pair<Configuration, Double> map = methods.exactPairInference(tree, scores);
+				Double mapJoint = joint.get(map.first);
+				worst = Math.max(worst, mapJoint == null ? 1.0 : Math.abs(mapJoint - best));
+				worst = Math.max(worst, Math.abs(map.second - best));
+
+				// the k best have to be distinct, legal, and as likely as the k best by brute force
+				List<Pair<Configuration, Double>> kBest = methods.exactKBestInference(tree, scores, K_BEST);
+				if (kBest.size() != Math.min(K_BEST, sorted.size())) {
+					worst = 1.0;
+				}
+				Set<Configuration> distinct = new HashSet<Configuration>();
+				for (int r = 0; r < kBest.size(); r++) {
+					Double kJoint = joint.get(kBest.get(r).first);
+					if (kJoint == null || !distinct.add(kBest.get(r).first)) {
+						worst = 1.0;
+						continue;
+					}
+					worst = Math.max(worst, Math.abs(kJoint - sorted.get(r)));
+					worst = Math.max(worst, Math.abs(kBest.get(r).second - sorted.get(r)));
+				}
+
+				// the first incremental run is in full, the next ones only redo what a change reaches
+				double[] updated = scoreArray.clone();
+				for (int u = 0; u < NUM_UPDATES; u++) {
+					if (u > 0) {
+						updated[random.nextInt(numClasses)] += random.nextGaussian();
+					}
+					double[] expected = getMarginals(stateSpace, updated);
+					Map<String, Double> incremental = methods.incrementalMarginalInference(tree, updated, 0.0);
+					for (int i = 0; i < numClasses; i++) {
+						worst = Math.max(worst, Math.abs(incremental.get(names[i]) - expected[i]));
+					}
+				}
+
+				if (evidence != null) {
+					double[] expected = getMarginals(agreeing, scoreArray);
+					Map<String, Double> clamped = methods.exactMarginalInference(tree, scoreArray, evidence);
+					double bestAgreeing = 0.0;
+					for (Configuration config : agreeing) {
+						bestAgreeing = Math.max(bestAgreeing, joint.get(config));
+					}
+					for (int i = 0; i < numClasses; i++) {
+						worst = Math.max(worst, Math.abs(clamped.get(names[i]) - expected[i]));
+					}
+					Pair<Configuration, Double> clampedMap = methods.exactPairInference(tree, scoreArray, evidence);
+					worst = Math.max(worst, agreeing.contains(clampedMap.first)
+							? Math.abs(joint.get(clampedMap.first) - bestAgreeing) : 1.0);
+					worst = Math.max(worst, Math.abs(clampedMap.second - bestAgreeing
+							/ getProbability(agreeing, joint)));
+
+					// evidence changing from call to call only scores out other states of the
+					// tables the tree is bound to, so it never rebuilds them
+					double[] otherExpected = getMarginals(otherAgreeing, scoreArray);
+					long binds = tree.getBindCount();
+					for (int r = 0; r < 2; r++) {
+						clamped = methods.exactMarginalInference(tree, scoreArray, evidence);
+						Map<String, Double> other = methods.exactMarginalInference(tree, scoreArray,
+								otherEvidence);
+						for (int i = 0; i < numClasses; i++) {
+							worst = Math.max(worst, Math.abs(clamped.get(names[i]) - expected[i]));
+							worst = Math.max(worst, Math.abs(other.get(names[i]) - otherExpected[i]));
+						}
+					}
+					if (tree.getBindCount() != binds) {
+						worst = 1.0;
+					}
+				}
+			}
+		}
+		if (worst > TOLERANCE) {
+			System.out.println(String.format("%d classes, relations %s: error %.3g",
+					numClasses, Arrays.toString(relations), worst));
+		}
+		return worst;
+	}
+}
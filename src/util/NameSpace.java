@@ -27,6 +27,10 @@ public class NameSpace<V> {
 		return mNameMapping.get(query);
 	}
 	
+	public boolean contains(V query) {
+		return mNameMapping.containsKey(query);
+	}
+	
 	public int size() {
 		return mClassNames.length;
 	}